@@ -4,6 +4,7 @@ import java.io.*;
 import java.util.*;
 
 import simpledb.Predicate.Op;
+import simpledb.buffer.BufferAccessStrategy;
 import simpledb.buffer.BufferPoolManager;
 
 /**
@@ -94,8 +95,7 @@ public class BTreeFile implements DbFile {
 							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
-				return p;
+				return createPage(id, pageBuf);
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPoolManager.getPageSize()];
@@ -113,18 +113,7 @@ public class BTreeFile implements DbFile {
 					                                   + BufferPoolManager.getPageSize() + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
-					return p;
-				}
-				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
-					return p;
-				}
-				else { // id.pgcateg() == BTreePageId.HEADER
-					BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
-					return p;
-				}
+				return createPage(id, pageBuf);
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
@@ -139,6 +128,27 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * Create a page of this file from its on-disk data.
+	 * 
+	 * @param pid - the id of the page
+	 * @param data - the contents of the page on disk
+	 * @return the page of the category given by pid
+	 */
+	public Page createPage(PageId pid, byte[] data) throws IOException {
+		BTreePageId id = (BTreePageId) pid;
+		switch(id.pgcateg()) {
+		case BTreePageId.ROOT_PTR:
+			return new BTreeRootPtrPage(id, data);
+		case BTreePageId.INTERNAL:
+			return new BTreeInternalPage(id, data, keyField);
+		case BTreePageId.LEAF:
+			return new BTreeLeafPage(id, data, keyField);
+		default: // BTreePageId.HEADER
+			return new BTreeHeaderPage(id, data);
+		}
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPoolManager when pages are flushed to disk
@@ -161,6 +171,16 @@ public class BTreeFile implements DbFile {
 		}
 	}
 	
+	// see DbFile.java for javadocs
+	public int writePages(List<Page> pages) throws IOException {
+		try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+			int runs = PageRuns.write(rf.getChannel(), pages, pid -> ((BTreePageId) pid).pgcateg() == BTreePageId.ROOT_PTR ? 0
+					: BTreeRootPtrPage.getPageSize() + (long) (pid.getPageNumber()-1) * BufferPoolManager.getPageSize());
+			rf.getChannel().force(false);
+			return runs;
+		}
+	}
+
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
@@ -177,10 +197,15 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * Finds and locks the leaf page in the B+ tree corresponding to the left-most page
+	 * possibly containing the key field f, and locks it with permission perm.
+	 * 
+	 * Internal pages are locked READ_ONLY and "crabbed": the lock on a page is released
+	 * as soon as the child it points to is locked, unless tid held it before, so readers
+	 * and inserters only ever hold one internal page of the path.  Since a split may
+	 * have moved keys between leaves after the parent was read, the leaf found is then
+	 * checked against its neighbours and the search moves along the sibling pointers
+	 * (as in a B-link tree) until it reaches the leaf that really holds the key.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
@@ -195,10 +220,177 @@ public class BTreeFile implements DbFile {
 	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-        return null;
+		return findLeafPage(tid, dirtypages, pid, perm, f, false, null);
 	}
-	
+
+	/**
+	 * Finds and locks a leaf page like {@link #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)}.
+	 * 
+	 * With forSplit set, internal pages are locked READ_WRITE instead, and the locks on the
+	 * pages above an internal page with an empty slot are released: a split below that page
+	 * stops there, so only the pages it can reach stay locked, top-down, before the split starts.
+	 * 
+	 * @param forSplit - whether the leaf is about to be split
+	 * @param locked - if not null, receives the id of the leaf if tid did not hold a lock on it before
+	 * @return the left-most leaf page possibly containing the key field f
+	 */
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
+			Field f, boolean forSplit, Set<PageId> locked)
+					throws DbException, TransactionAbortedException {
+		final BTreePageId start = pid;
+		while(true) {
+			// internal pages locked on the way down that may still be released
+			ArrayList<PageId> releasable = new ArrayList<PageId>();
+			pid = start;
+			while(pid.pgcateg() == BTreePageId.INTERNAL) {
+				boolean fresh = !holdsLock(tid, dirtypages, pid);
+				BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid,
+						forSplit ? Permissions.READ_WRITE : Permissions.READ_ONLY);
+				if(!forSplit || page.getNumEmptySlots() > 0) {
+					releasePages(tid, dirtypages, releasable);
+				}
+				if(fresh) {
+					releasable.add(pid);
+				}
+				pid = childFor(page, f);
+			}
+			boolean fresh = !holdsLock(tid, dirtypages, pid);
+			BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+			if(!forSplit || leaf.getNumEmptySlots() > 0) {
+				releasePages(tid, dirtypages, releasable);
+			}
+			leaf = moveToKey(tid, dirtypages, leaf, fresh, perm, f, locked);
+			if(leaf != null) {
+				return leaf;
+			}
+			// the leaf was merged away meanwhile: search again from the root
+			releasePages(tid, dirtypages, releasable);
+		}
+	}
+
+	/** @return the child of page that may hold f, or its left-most child if f is null */
+	private BTreePageId childFor(BTreeInternalPage page, Field f) throws DbException {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			if(f == null || f.compare(Op.LESS_THAN_OR_EQ, e.getKey())) {
+				return e.getLeftChild();
+			}
+		}
+		if(e == null) {
+			throw new DbException("internal page " + page.getId() + " has no entries");
+		}
+		return e.getRightChild();
+	}
+
+	/**
+	 * Moves from leaf along the sibling pointers to the left-most leaf possibly containing f.
+	 * Each leaf left behind is unlocked first if tid had not locked it before.
+	 * 
+	 * @param fresh - whether tid had not locked leaf before
+	 * @return the leaf, or null if leaf is an empty page that has been merged into a sibling
+	 */
+	private BTreeLeafPage moveToKey(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage leaf,
+			boolean fresh, Permissions perm, Field f, Set<PageId> locked)
+					throws DbException, TransactionAbortedException {
+		while(true) {
+			BTreePageId next = null;
+			if(leaf.getNumTuples() == 0) {
+				if(leaf.getParentId().pgcateg() != BTreePageId.ROOT_PTR) {
+					if(fresh) {
+						releasePage(tid, dirtypages, leaf.getId());
+					}
+					return null;
+				}
+			}
+			else if(f == null) {
+				next = leaf.getLeftSiblingId();
+			}
+			else if(leaf.getLeftSiblingId() != null
+					&& f.compare(Op.LESS_THAN_OR_EQ, firstKey(leaf))) {
+				// keys may have been moved to the left sibling
+				next = leaf.getLeftSiblingId();
+				Field key = lastKey(tid, dirtypages, next);
+				if(key == null || !f.compare(Op.LESS_THAN_OR_EQ, key)) {
+					next = null;
+				}
+			}
+			else if(leaf.getRightSiblingId() != null
+					&& f.compare(Op.GREATER_THAN, lastKey(leaf))) {
+				// a split may have moved f to the right sibling
+				next = leaf.getRightSiblingId();
+				Field key = firstKey(tid, dirtypages, next);
+				if(key == null || !f.compare(Op.GREATER_THAN, key)) {
+					next = null;
+				}
+			}
+			if(next == null) {
+				if(fresh && locked != null) {
+					locked.add(leaf.getId());
+				}
+				return leaf;
+			}
+			if(fresh) {
+				releasePage(tid, dirtypages, leaf.getId());
+			}
+			fresh = !holdsLock(tid, dirtypages, next);
+			leaf = (BTreeLeafPage) getPage(tid, dirtypages, next, perm);
+		}
+	}
+
+	private Field firstKey(BTreeLeafPage leaf) {
+		return leaf.iterator().next().getField(keyField);
+	}
+
+	private Field lastKey(BTreeLeafPage leaf) {
+		return leaf.reverseIterator().next().getField(keyField);
+	}
+
+	/**
+	 * @return the first key of leaf pid, read under a lock that is released again unless
+	 * tid held it before, or null if the leaf is empty
+	 */
+	private Field firstKey(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException, TransactionAbortedException {
+		return peekKey(tid, dirtypages, pid, true);
+	}
+
+	/** @see #firstKey(TransactionId, HashMap, BTreePageId) */
+	private Field lastKey(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException, TransactionAbortedException {
+		return peekKey(tid, dirtypages, pid, false);
+	}
+
+	private Field peekKey(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, boolean first)
+			throws DbException, TransactionAbortedException {
+		boolean fresh = !holdsLock(tid, dirtypages, pid);
+		BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		Field key = leaf.getNumTuples() == 0 ? null : first ? firstKey(leaf) : lastKey(leaf);
+		if(fresh) {
+			releasePage(tid, dirtypages, pid);
+		}
+		return key;
+	}
+
+	/** @return true if tid has locked pid, or has it in dirtypages */
+	private boolean holdsLock(TransactionId tid, HashMap<PageId, Page> dirtypages, PageId pid) {
+		return dirtypages.containsKey(pid) || Database.getBufferPool().holdsLock(tid, pid);
+	}
+
+	/** Releases the lock tid holds on a page it has not modified. */
+	private void releasePage(TransactionId tid, HashMap<PageId, Page> dirtypages, PageId pid) {
+		dirtypages.remove(pid);
+		Database.getBufferPool().releasePage(tid, pid);
+	}
+
+	private void releasePages(TransactionId tid, HashMap<PageId, Page> dirtypages, List<PageId> pids) {
+		for(PageId pid : pids) {
+			releasePage(tid, dirtypages, pid);
+		}
+		pids.clear();
+	}
+
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
 	 * Used by the BTreeFile iterator.
@@ -240,16 +432,37 @@ public class BTreeFile implements DbFile {
 	 */
 	protected BTreeLeafPage splitLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page, Field field) 
 			throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newRightPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// move the upper half of the tuples to the new page
+		Tuple[] moving = new Tuple[page.getNumTuples() / 2];
+		Iterator<Tuple> it = page.reverseIterator();
+		for(int i = moving.length - 1; i >= 0; i--) {
+			moving[i] = it.next();
+		}
+		for(Tuple t : moving) {
+			page.deleteTuple(t);
+			newRightPage.insertTuple(t);
+		}
+
+		// link the new page in to the right of the old one
+		BTreePageId oldRightId = page.getRightSiblingId();
+		if(oldRightId != null) {
+			BTreeLeafPage oldRight = (BTreeLeafPage) getPage(tid, dirtypages, oldRightId, Permissions.READ_WRITE);
+			oldRight.setLeftSiblingId(newRightPage.getId());
+		}
+		newRightPage.setRightSiblingId(oldRightId);
+		newRightPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newRightPage.getId());
+
+		// copy the first key of the new page up into the parent
+		Field middle = moving[0].getField(keyField);
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middle);
+		parent.insertEntry(new BTreeEntry(middle, page.getId(), newRightPage.getId()));
+		page.setParentId(parent.getId());
+		newRightPage.setParentId(parent.getId());
+
+		return field.compare(Op.GREATER_THAN, middle) ? newRightPage : page;
 	}
 	
 	/**
@@ -277,16 +490,34 @@ public class BTreeFile implements DbFile {
 	protected BTreeInternalPage splitInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		BTreeInternalPage newRightPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// move the upper half of the entries to the new page, and take the one below
+		// them out to push it up
+		BTreeEntry[] moving = new BTreeEntry[page.getNumEntries() / 2];
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		for(int i = moving.length - 1; i >= 0; i--) {
+			moving[i] = it.next();
+		}
+		BTreeEntry middle = it.next();
+		for(int i = moving.length - 1; i >= 0; i--) {
+			page.deleteKeyAndRightChild(moving[i]);
+		}
+		for(BTreeEntry e : moving) {
+			newRightPage.insertEntry(e);
+		}
+		page.deleteKeyAndRightChild(middle);
+
+		// push the middle key up into the parent
+		middle.setLeftChild(page.getId());
+		middle.setRightChild(newRightPage.getId());
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middle.getKey());
+		parent.insertEntry(middle);
+		page.setParentId(parent.getId());
+		newRightPage.setParentId(parent.getId());
+		updateParentPointers(tid, dirtypages, newRightPage);
+
+		return field.compare(Op.GREATER_THAN, middle.getKey()) ? newRightPage : page;
 	}
 	
 	/**
@@ -439,6 +670,8 @@ public class BTreeFile implements DbFile {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
 		// get a read lock on the root pointer page and use it to locate the root page
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean rootPtrHeld = holdsLock(tid, dirtypages, rootPtrId);
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId rootId = rootPtr.getRootId();
 
@@ -447,12 +680,26 @@ public class BTreeFile implements DbFile {
 			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
 			rootPtr.setRootId(rootId);
 		}
+		else if(!rootPtrHeld) {
+			// a search that starts below a root split meanwhile still finds its leaf
+			releasePage(tid, dirtypages, rootPtrId);
+		}
 
 		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		// and split the leaf page if there are no more slots available.  The first
+		// search only write-locks the leaf; if it is full, the search is repeated
+		// keeping write locks on the internal pages the split can reach.
+		Field key = t.getField(keyField);
+		HashSet<PageId> locked = new HashSet<PageId>();
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, key, false, locked);
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			if(locked.contains(leafPage.getId())) {
+				releasePage(tid, dirtypages, leafPage.getId());
+			}
+			leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, key, true, null);
+			if(leafPage.getNumEmptySlots() == 0) {
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, key);
+			}
 		}
 
 		// insert the tuple into the leaf page
@@ -577,11 +824,20 @@ public class BTreeFile implements DbFile {
 	 */
 	protected void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
 			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
-		// some code goes here
-        //
-        // Move some of the tuples from the sibling to the page so
-		// that the tuples are evenly distributed. Be sure to update
-		// the corresponding parent entry.
+		// move the tuples of the sibling nearest to the page
+		Tuple[] moving = new Tuple[(sibling.getNumTuples() - page.getNumTuples()) / 2];
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		for(int i = 0; i < moving.length; i++) {
+			moving[i] = it.next();
+		}
+		for(Tuple t : moving) {
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+
+		// the parent key is the first key of the right-hand page
+		entry.setKey(firstKey(isRightSibling ? sibling : page));
+		parent.updateEntry(entry);
 	}
 
 	/**
@@ -657,11 +913,18 @@ public class BTreeFile implements DbFile {
 	protected void stealFromLeftInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the left sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		int numToMove = (leftSibling.getNumEntries() - page.getNumEntries()) / 2;
+		for(int i = 0; i < numToMove; i++) {
+			// rotate the last key of the sibling up through the parent entry, whose key
+			// comes down in front of the page
+			BTreeEntry last = leftSibling.reverseIterator().next();
+			BTreeEntry first = page.iterator().next();
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), last.getRightChild(), first.getLeftChild()));
+			parentEntry.setKey(last.getKey());
+			leftSibling.deleteKeyAndRightChild(last);
+		}
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -685,11 +948,18 @@ public class BTreeFile implements DbFile {
 	protected void stealFromRightInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the right sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		int numToMove = (rightSibling.getNumEntries() - page.getNumEntries()) / 2;
+		for(int i = 0; i < numToMove; i++) {
+			// rotate the first key of the sibling up through the parent entry, whose key
+			// comes down at the end of the page
+			BTreeEntry first = rightSibling.iterator().next();
+			BTreeEntry last = page.reverseIterator().next();
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), last.getRightChild(), first.getLeftChild()));
+			parentEntry.setKey(first.getKey());
+			rightSibling.deleteKeyAndLeftChild(first);
+		}
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -713,13 +983,27 @@ public class BTreeFile implements DbFile {
 	protected void mergeLeafPages(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeLeafPage leftPage, BTreeLeafPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
+		Tuple[] moving = new Tuple[rightPage.getNumTuples()];
+		Iterator<Tuple> it = rightPage.iterator();
+		for(int i = 0; i < moving.length; i++) {
+			moving[i] = it.next();
+		}
+		for(Tuple t : moving) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		// unlink the right page; it keeps its own sibling pointers, so that a search
+		// waiting for it finds it empty and starts again
+		BTreePageId rightRightId = rightPage.getRightSiblingId();
+		leftPage.setRightSiblingId(rightRightId);
+		if(rightRightId != null) {
+			BTreeLeafPage rightRight = (BTreeLeafPage) getPage(tid, dirtypages, rightRightId, Permissions.READ_WRITE);
+			rightRight.setLeftSiblingId(leftPage.getId());
+		}
 
-		// some code goes here
-        //
-		// Move all the tuples from the right page to the left page, update
-		// the sibling pointers, and make the right page available for reuse.
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -745,14 +1029,24 @@ public class BTreeFile implements DbFile {
 	protected void mergeInternalPages(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage leftPage, BTreeInternalPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
-		
-		// some code goes here
-        //
-        // Move all the entries from the right page to the left page, update
-		// the parent pointers of the children in the entries that were moved, 
-		// and make the right page available for reuse
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		// pull the parent key down between the two pages' entries
+		BTreeEntry last = leftPage.reverseIterator().next();
+		BTreeEntry first = rightPage.iterator().next();
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), last.getRightChild(), first.getLeftChild()));
+
+		BTreeEntry[] moving = new BTreeEntry[rightPage.getNumEntries()];
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		for(int i = 0; i < moving.length; i++) {
+			moving[i] = it.next();
+		}
+		for(BTreeEntry e : moving) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
 	/**
@@ -834,6 +1128,27 @@ public class BTreeFile implements DbFile {
 		return dirtyPagesArr;
 	}
 
+	/**
+	 * Reads the id of the root page for a search.  The read lock on the root pointer page
+	 * is released again unless tid held it before, so that searches do not keep the root
+	 * from splitting: one that starts from a root split meanwhile still reaches its leaf
+	 * through the sibling pointers.
+	 * 
+	 * @param tid - the transaction id
+	 * @return the id of the root page
+	 */
+	BTreePageId getRootId(TransactionId tid) throws DbException, TransactionAbortedException {
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean held = Database.getBufferPool().holdsLock(tid, rootPtrId);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, rootPtrId, Permissions.READ_ONLY);
+		BTreePageId rootId = rootPtr.getRootId();
+		if(!held) {
+			Database.getBufferPool().releasePage(tid, rootPtrId);
+		}
+		return rootId;
+	}
+
 	/**
 	 * Get a read lock on the root pointer page. Create the root pointer page and root page
 	 * if necessary.
@@ -951,8 +1266,12 @@ public class BTreeFile implements DbFile {
 		rf.write(BTreePage.createEmptyPageData());
 		rf.close();
 		
-		// make sure the page is not in the buffer pool	or in the local cache		
-		Database.getBufferPool().discardPage(newPageId);
+		// make sure the page is not in the buffer pool	or in the local cache,
+		// as whatever kind of page it was before it was freed: a dirty copy
+		// would be written over the new page
+		for(int categ : new int[] {BTreePageId.INTERNAL, BTreePageId.LEAF, BTreePageId.HEADER}) {
+			Database.getBufferPool().discardPage(new BTreePageId(tableid, emptyPageNo, categ));
+		}
 		dirtypages.remove(newPageId);
 		
 		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
@@ -1079,6 +1398,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	BufferAccessStrategy strategy = null;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1097,11 +1417,13 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
+		BTreePageId root = f.getRootId(tid);
 		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		curp = (BTreeLeafPage) Database.getBufferPool().pinPage(tid, curp.getId(), Permissions.READ_ONLY);
 		it = curp.iterator();
+		// leaves of a large tree are read through a private ring of frames,
+		// so a full index scan does not push internal pages out of the pool
+		strategy = Database.getBufferPool().getScanStrategy(f.numPages());
 	}
 
 	/**
@@ -1117,12 +1439,13 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 		while (it == null && curp != null) {
 			BTreePageId nextp = curp.getRightSiblingId();
+			Database.getBufferPool().unpinPage(tid, curp.getId());
 			if(nextp == null) {
 				curp = null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				curp = (BTreeLeafPage) Database.getBufferPool().pinPage(tid,
+						nextp, Permissions.READ_ONLY, strategy);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1147,8 +1470,11 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		if (curp != null)
+			Database.getBufferPool().unpinPage(tid, curp.getId());
 		it = null;
 		curp = null;
+		strategy = null;
 	}
 }
 
@@ -1182,9 +1508,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
+		BTreePageId root = f.getRootId(tid);
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
 			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
@@ -1192,6 +1516,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		else {
 			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
 		}
+		curp = (BTreeLeafPage) Database.getBufferPool().pinPage(tid, curp.getId(), Permissions.READ_ONLY);
 		it = curp.iterator();
 	}
 
@@ -1230,7 +1555,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 				return null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+				Database.getBufferPool().unpinPage(tid, curp.getId());
+				curp = (BTreeLeafPage) Database.getBufferPool().pinPage(tid,
 						nextp, Permissions.READ_ONLY);
 				it = curp.iterator();
 			}
@@ -1252,6 +1578,9 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		if (curp != null)
+			Database.getBufferPool().unpinPage(tid, curp.getId());
 		it = null;
+		curp = null;
 	}
 }
@@ -1,8 +1,12 @@
 package simpledb;
 
 import simpledb.buffer.BufferPoolManager;
+import simpledb.buffer.HotPages;
+import simpledb.buffer.ReplacementPolicy;
 
 import java.io.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -23,6 +27,8 @@ public class Database {
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
 
+    private final static String HOTPAGESFILENAME = "hotpages";
+
     private Database() {
         _catalog = new Catalog();
         _bufferpool = new BufferPoolManager(BufferPoolManager.DEFAULT_PAGES);
@@ -52,16 +58,56 @@ public class Database {
         return _instance.get()._catalog;
     }
 
+    /**
+     * Save the pages in the buffer pool, hottest first, so that the next
+     * start can load them again with warmUp().  Called on shutdown.
+     */
+    public static void saveHotPages() throws IOException {
+        HotPages.write(new File(HOTPAGESFILENAME), getBufferPool().getHotPages());
+    }
+
+    /**
+     * Start loading the pages saved by the last saveHotPages() into the
+     * buffer pool in the background.  Call once the catalog is loaded.
+     *
+     * @return the number of pages loaded, once done; 0 if none were saved
+     */
+    public static Future<Integer> warmUp() throws IOException {
+        File f = new File(HOTPAGESFILENAME);
+        if (!f.exists()) {
+            return CompletableFuture.completedFuture(0);
+        }
+        return getBufferPool().warmUp(HotPages.read(f));
+    }
+
     /**
      * Method used for testing -- create a new instance of the buffer pool and
      * return it
      */
     public static BufferPoolManager resetBufferPool(int pages) {
+        return resetBufferPool(pages, ReplacementPolicy.CLOCK);
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * using the given replacement policy and return it
+     */
+    public static BufferPoolManager resetBufferPool(int pages, ReplacementPolicy policy) {
+        return resetBufferPool(pages, policy, 0);
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * with an off-heap arena of arenaPages page images and return it
+     */
+    public static BufferPoolManager resetBufferPool(int pages, ReplacementPolicy policy,
+            int arenaPages) {
         java.lang.reflect.Field bufferPoolF=null;
+        getBufferPool().stopBackgroundWriter();
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPoolManager(pages));
+            bufferPoolF.set(_instance.get(), new BufferPoolManager(pages, policy, arenaPages));
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -77,7 +123,13 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        Database old = _instance.getAndSet(new Database());
+        old._bufferpool.stopBackgroundWriter();
+        try {
+            old._logfile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
 }
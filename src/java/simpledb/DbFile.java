@@ -5,6 +5,7 @@ import simpledb.buffer.BufferPoolManager;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * The interface for database files on disk. Each table is represented by a
@@ -21,6 +22,32 @@ public interface DbFile {
      */
     public Page readPage(PageId id);
 
+    /**
+     * Read the on-disk data of the specified page into frame, which has room
+     * for exactly one page.  Used by a buffer pool that keeps page images in
+     * an off-heap {@link simpledb.buffer.FrameArena}.  The default reads the
+     * page with {@link #readPage} and copies its data.
+     *
+     * @throws IllegalArgumentException if the page does not exist in this file.
+     * @throws IOException if the read fails
+     */
+    default void readPageData(PageId id, ByteBuffer frame) throws IOException {
+        byte[] data = readPage(id).getPageData();
+        frame.put(data, 0, Math.min(data.length, frame.remaining()));
+    }
+
+    /**
+     * Create the specified page from its on-disk data, as read by
+     * {@link #readPageData} or returned by {@link Page#getPageData}.
+     *
+     * @return the page, or null if this file cannot create its pages from
+     *   their data; the buffer pool then always uses {@link #readPage}
+     * @throws IOException if the data cannot be parsed
+     */
+    default Page createPage(PageId id, byte[] data) throws IOException {
+        return null;
+    }
+
     /**
      * Push the specified page to disk.
      *
@@ -30,6 +57,22 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Push the specified pages to disk and force them to stable storage,
+     * e.g. when a transaction commits.  The default writes them one at a
+     * time with {@link #writePage}, in the order given, and does not force.
+     *
+     * @param pages pages of this file, sorted by page number
+     * @return the number of writes issued
+     * @throws IOException if a write fails
+     */
+    default int writePages(List<Page> pages) throws IOException {
+        for (Page p : pages) {
+            writePage(p);
+        }
+        return pages.size();
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
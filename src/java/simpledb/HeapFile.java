@@ -1,8 +1,12 @@
 package simpledb;
 
+import simpledb.buffer.BufferAccessStrategy;
 import simpledb.buffer.BufferPoolManager;
+import simpledb.buffer.ReadAhead;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -20,6 +24,8 @@ public class HeapFile implements DbFile {
     private final File file;
     private final TupleDesc tupleDesc;
     private final RandomAccessFile fileInputStream;
+    /** held while the file is extended by a page */
+    private final Object extensionLock = new Object();
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -80,19 +86,55 @@ public class HeapFile implements DbFile {
 
         final byte[] data = HeapPage.createEmptyPageData();
         try {
-        	fileInputStream.seek(BufferPoolManager.getPageSize() * pid.getPageNumber());
-            fileInputStream.read(data,0 , BufferPoolManager.getPageSize());
-            return new HeapPage((HeapPageId) pid, data);
+            readPageData(pid, ByteBuffer.wrap(data));
+            return createPage(pid, data);
         } catch (IOException e) {
             throw new IllegalArgumentException();
         }
     }
 
+    // see DbFile.java for javadocs
+    public void readPageData(PageId pid, ByteBuffer frame) throws IOException {
+        if(numPages() <= pid.getPageNumber() || pid.getPageNumber() < 0){
+            throw new IllegalArgumentException();
+        }
+        // positional reads do not move the shared file pointer, so
+        // concurrent buffer pool misses on this file cannot interleave
+        final long position = (long) BufferPoolManager.getPageSize() * pid.getPageNumber()
+                - frame.position();
+        while (frame.hasRemaining()) {
+            if (fileInputStream.getChannel().read(frame, position + frame.position()) < 0) {
+                break;
+            }
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public Page createPage(PageId pid, byte[] data) throws IOException {
+        return new HeapPage((HeapPageId) pid, data);
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-        final int offset = page.getId().getPageNumber() * BufferPoolManager.getPageSize();
-        this.fileInputStream.seek(offset);
-        this.fileInputStream.write(page.getPageData());
+        final long offset = (long) page.getId().getPageNumber() * BufferPoolManager.getPageSize();
+        final ByteBuffer buffer = ByteBuffer.wrap(page.getPageData());
+        while (buffer.hasRemaining()) {
+            this.fileInputStream.getChannel().write(buffer, offset + buffer.position());
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public int writePages(List<Page> pages) throws IOException {
+        final FileChannel channel = this.fileInputStream.getChannel();
+        final int runs;
+        // the runs are written at the channel's position, which only
+        // batches move: writePage and the readers are positional
+        synchronized (channel) {
+            runs = PageRuns.write(channel, pages,
+                    pid -> (long) pid.getPageNumber() * BufferPoolManager.getPageSize());
+        }
+        channel.force(false);
+        return runs;
     }
 
     /**
@@ -105,28 +147,67 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
+        if(!t.getTupleDesc().equals(this.tupleDesc)){
+            throw new DbException("tupleDesc is mismatch");
+        }
+        final BufferPoolManager bufferPool = Database.getBufferPool();
         int pageNum = 0;
-        while(pageNum < this.numPages()) {
-            final HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(this.getId(), pageNum), Permissions.READ_WRITE);
-            if(page.getNumEmptySlots() > 0){
-                page.insertTuple(t);
-                return new ArrayList<Page>(){{add(page);}};
+        while(true) {
+            while(pageNum < this.numPages()) {
+                final HeapPageId pid = new HeapPageId(this.getId(), pageNum);
+                // look for a free slot under a shared lock, so that inserts do
+                // not lock every full page of the file exclusively
+                final boolean held = bufferPool.holdsLock(tid, pid);
+                final boolean hasRoom =
+                        ((HeapPage) bufferPool.getPage(tid, pid, Permissions.READ_ONLY)).getNumEmptySlots() > 0;
+                if(!held){
+                    // tid has read nothing from the page but its slot count.
+                    // Dropping the shared lock before asking for the exclusive
+                    // one keeps two inserters that both saw room from each
+                    // waiting for the other to give up its shared lock
+                    bufferPool.releasePage(tid, pid);
+                }
+                if(hasRoom){
+                    final HeapPage page = (HeapPage) bufferPool.getPage(tid, pid, Permissions.READ_WRITE);
+                    // another insert may have taken the last slot meanwhile
+                    if(page.getNumEmptySlots() > 0){
+                        // logged before the page changes: a page dirty from
+                        // an earlier change may be written at any time, with
+                        // the log forced only up to the records it has
+                        t.setRecordId(new RecordId(pid, page.getEmptySlot()));
+                        Database.getLogFile().logTupleInsert(tid, t);
+                        page.insertTuple(t);
+                        return new ArrayList<Page>(){{add(page);}};
+                    }
+                    if(!held){
+                        bufferPool.releasePage(tid, pid);
+                    }
+                }
+                pageNum ++;
+            }
+            // extend the file with an empty page, which the next pass inserts
+            // into through the buffer pool, so that the page is not written
+            // before the insert is logged.  The page number is taken under
+            // the lock, so two inserts never write the same new page; one
+            // that finds the file grown since its scan probes the new pages
+            synchronized (this.extensionLock) {
+                if(pageNum == this.numPages()){
+                    writePage(new HeapPage(new HeapPageId(getId(), pageNum), HeapPage.createEmptyPageData()));
+                }
             }
-            pageNum ++;
         }
-        final int pid = this.numPages();
-        final byte[] emptyPageData = HeapPage.createEmptyPageData();
-        final HeapPage heapPage = new HeapPage(new HeapPageId(getId(), pid), emptyPageData);
-        heapPage.insertTuple(t);
-        writePage(heapPage);
-
-        return new ArrayList<Page>(){{add(heapPage);}};
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
-                                                                              TransactionAbortedException {
-        final HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,t.getRecordId().getPageId(), Permissions.READ_WRITE);
+                                                                              IOException, TransactionAbortedException {
+        final RecordId rid = t.getRecordId();
+        final HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_WRITE);
+        if(!page.isSlotUsed(rid.getTupleNumber())){
+            throw new DbException("The tuple solt is already empty");
+        }
+        // logged before the page changes, as in insertTuple
+        Database.getLogFile().logTupleDelete(tid, rid, t);
         page.deleteTuple(t);
         return new ArrayList<Page>(){{add(page);}};
     }
@@ -134,6 +215,10 @@ public class HeapFile implements DbFile {
         private int nextPageNumber;
         private TransactionId transactionId;
         private Iterator<Tuple> pageIter;
+        private BufferAccessStrategy strategy;
+        private ReadAhead readAhead;
+        /** the current page, pinned so it stays resident while it is read */
+        private HeapPageId pinned;
 
         public HeapFileIterator(TransactionId tid){
             transactionId = tid;
@@ -149,7 +234,8 @@ public class HeapFile implements DbFile {
                 return pageIter.next();
             }
             while(++this.nextPageNumber < numPages()) {
-                HeapPage page = (HeapPage) Database.getBufferPool().getPage(transactionId, new HeapPageId(getId(), nextPageNumber), Permissions.READ_ONLY);
+                readAhead.access(nextPageNumber);
+                HeapPage page = moveTo(nextPageNumber);
                 this.pageIter = page.iterator();
                 if(pageIter.hasNext()){
                     return pageIter.next();
@@ -160,11 +246,45 @@ public class HeapFile implements DbFile {
 
         @Override
         public void open() throws DbException, TransactionAbortedException {
-        	HeapPage page =(HeapPage) Database.getBufferPool().getPage(transactionId, new HeapPageId(getId(), nextPageNumber), Permissions.READ_ONLY);
+            // a scan that would have its page locks escalated anyway takes
+            // the table lock up front
+            final int threshold = Database.getBufferPool().getLockManager().getEscalationThreshold();
+            if (threshold > 0 && numPages() > threshold) {
+                Database.getBufferPool().lockTable(transactionId, getId(), Permissions.READ_ONLY);
+            }
+            // large scans read through a private ring of frames instead of
+            // pushing the rest of the buffer pool out
+            this.strategy = Database.getBufferPool().getScanStrategy(numPages());
+            if (readAhead != null) {
+                readAhead.close();
+            }
+            this.readAhead = new ReadAhead(Database.getBufferPool(),
+                    n -> new HeapPageId(getId(), n), HeapFile.this::numPages);
+            readAhead.access(nextPageNumber);
+        	HeapPage page = moveTo(nextPageNumber);
 
             this.pageIter = page.iterator();
         }
 
+        /**
+         * Unpins the current page, before fetching the next one so that a
+         * scan ring can reuse its frame, and pins page pageNumber instead.
+         */
+        private HeapPage moveTo(int pageNumber) throws DbException, TransactionAbortedException {
+            unpin();
+            HeapPageId pid = new HeapPageId(getId(), pageNumber);
+            HeapPage page = (HeapPage) Database.getBufferPool().pinPage(transactionId, pid, Permissions.READ_ONLY, strategy);
+            this.pinned = pid;
+            return page;
+        }
+
+        private void unpin() {
+            if (pinned != null) {
+                Database.getBufferPool().unpinPage(transactionId, pinned);
+                pinned = null;
+            }
+        }
+
         @Override
         public void rewind() throws DbException, TransactionAbortedException {
         	this.nextPageNumber = 0;
@@ -174,7 +294,13 @@ public class HeapFile implements DbFile {
         @Override
         public void close() {
            super.close();
+           unpin();
            this.pageIter = null;
+           this.strategy = null;
+           if (readAhead != null) {
+               readAhead.close();
+               readAhead = null;
+           }
         }
     }
 
@@ -70,6 +70,13 @@ public class HeapPage implements Page {
         @return the number of tuples on this page
     */
     private int getNumTuples() {
+        return getNumTuples(td);
+    }
+
+    /** Retrieve the number of tuples a page of a HeapFile with schema td holds.
+        @return the number of tuples on a page with schema td
+    */
+    public static int getNumTuples(TupleDesc td) {
         final int size = td.getSize();
         return (int) Math.floor((BufferPoolManager.getPageSize() * 8) / (size * 8 + 1));
     }
@@ -267,6 +274,17 @@ public class HeapPage implements Page {
         if(!t.getTupleDesc().equals(td)){
             throw new DbException("tupleDesc is mismatch");
         }
+        final int tupleIndex = getEmptySlot();
+        t.setRecordId(new RecordId(pid, tupleIndex));
+        tuples[tupleIndex] = t;
+        markSlotUsed(tupleIndex, true);
+    }
+
+    /**
+     * Returns the slot insertTuple() puts the next tuple in, or -1 if the
+     * page is full.
+     */
+    public int getEmptySlot() {
         for (int i = 0; i < header.length; i++) {
             byte b = header[i];
             if(b == -1){
@@ -277,12 +295,27 @@ public class HeapPage implements Page {
                 b = (byte) (b >> 1);
                 j++;
             }
-            final int tupleIndex = i * 8 + j;
-            t.setRecordId(new RecordId(pid, tupleIndex));
-            tuples[tupleIndex] = t;
-            markSlotUsed(tupleIndex, true);
-            break;
+            return i * 8 + j;
         }
+        return -1;
+    }
+
+    /**
+     * Puts t in slot i, whether or not the slot is in use.  Used by
+     * recovery, which knows the slot a logged tuple belongs in.
+     */
+    public void setSlot(int i, Tuple t) {
+        t.setRecordId(new RecordId(pid, i));
+        tuples[i] = t;
+        markSlotUsed(i, true);
+    }
+
+    /**
+     * Empties slot i, whether or not it is in use.  Used by recovery.
+     */
+    public void clearSlot(int i) {
+        tuples[i] = null;
+        markSlotUsed(i, false);
     }
 
     /**
@@ -0,0 +1,184 @@
+package simpledb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The unwritten tail of the log: a ring of bytes that LogFile appends
+ * records to, and a writer thread that copies them into the log file
+ * behind it.  Appending a record costs a copy into the ring; the file
+ * writes happen on the writer, and a caller that needs records in the file
+ * waits for them with {@link #flush}.
+ * <p>
+ * Positions are log file offsets: the ring holds the bytes from the
+ * written offset up to the end offset, each at its offset modulo the ring
+ * size.  An append that does not fit waits for the writer to make room.
+ * The writer starts with the first append and exits once it has been idle
+ * for a while, so a dropped LogFile leaves no thread behind.
+ *
+ * @Threadsafe, appends and the writer's bookkeeping are serialized on
+ *   this; the writer copies bytes out of the ring without holding it
+ */
+class LogBuffer {
+    /** the default ring size, in bytes */
+    static final int DEFAULT_CAPACITY = 1 << 20;
+    private static final long IDLE_MILLIS = 1000;
+
+    private byte[] ring;
+    private FileChannel channel;
+    /** offset of the first byte not yet in the file */
+    private long written;
+    /** offset just past the last byte appended */
+    private long end;
+    private Thread writer;
+    private IOException failure;
+    private boolean closed;
+
+    LogBuffer(int capacity) {
+        this.ring = new byte[capacity];
+    }
+
+    /**
+     * Starts appending to channel at offset, once everything appended to
+     * the previous channel has been written.
+     */
+    synchronized void attach(FileChannel channel, long offset) throws IOException {
+        flush(this.channel, this.end);
+        this.channel = channel;
+        this.written = offset;
+        this.end = offset;
+        notifyAll();
+    }
+
+    /**
+     * Copies record into the ring, after the records appended before it.
+     *
+     * @return the offset the record starts at
+     */
+    synchronized long append(byte[] record) throws IOException {
+        if (closed) {
+            throw new IOException("log buffer is closed");
+        }
+        if (record.length > ring.length) {
+            // only while the ring is empty can it be resized in place
+            flush(channel, end);
+            ring = new byte[Integer.highestOneBit(record.length) << 1];
+        }
+        while (end + record.length - written > ring.length) {
+            awaitWriter();
+        }
+        final long start = end;
+        final int pos = (int) (start % ring.length);
+        final int first = Math.min(record.length, ring.length - pos);
+        System.arraycopy(record, 0, ring, pos, first);
+        System.arraycopy(record, first, ring, 0, record.length - first);
+        end += record.length;
+        startWriter();
+        notifyAll();
+        return start;
+    }
+
+    /**
+     * Waits until everything appended to channel before upTo is in the
+     * file, or until the buffer has moved to another channel, which it
+     * does only once the old one is written.
+     */
+    synchronized void flush(FileChannel channel, long upTo) throws IOException {
+        while (this.channel == channel && written < upTo) {
+            awaitWriter();
+        }
+    }
+
+    /** Writes out everything appended and stops the writer. */
+    synchronized void close() throws IOException {
+        flush(channel, end);
+        closed = true;
+        notifyAll();
+    }
+
+    /** Waits for the writer to make progress; caller holds this. */
+    private void awaitWriter() throws IOException {
+        if (failure != null) {
+            throw new IOException("log writer failed", failure);
+        }
+        startWriter();
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for the log writer");
+        }
+        if (failure != null) {
+            throw new IOException("log writer failed", failure);
+        }
+    }
+
+    /** Starts a writer if there is none; caller holds this. */
+    private void startWriter() {
+        if (writer == null && failure == null) {
+            writer = new Thread(this::runWriter, "simpledb-logwriter");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    private void runWriter() {
+        while (true) {
+            final long from, to;
+            final byte[] ring;
+            final FileChannel channel;
+            synchronized (this) {
+                long idleSince = System.currentTimeMillis();
+                while (written == end) {
+                    final long left = IDLE_MILLIS - (System.currentTimeMillis() - idleSince);
+                    if (closed || left <= 0) {
+                        writer = null;
+                        return;
+                    }
+                    try {
+                        wait(left);
+                    } catch (InterruptedException e) {
+                        writer = null;
+                        return;
+                    }
+                }
+                from = written;
+                to = end;
+                ring = this.ring;
+                channel = this.channel;
+            }
+            // appends only fill the ring outside [from, to), and attach
+            // and resizing wait for it to be written
+            try {
+                write(channel, ring, from, to);
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    writer = null;
+                    notifyAll();
+                    return;
+                }
+            }
+            synchronized (this) {
+                written = to;
+                notifyAll();
+            }
+        }
+    }
+
+    /** Writes the bytes of ring for offsets from up to to into channel. */
+    private static void write(FileChannel channel, byte[] ring, long from, long to)
+            throws IOException {
+        while (from < to) {
+            final int pos = (int) (from % ring.length);
+            final int len = (int) Math.min(to - from, ring.length - pos);
+            final ByteBuffer bytes = ByteBuffer.wrap(ring, pos, len);
+            while (bytes.hasRemaining()) {
+                channel.write(bytes, from + bytes.position() - pos);
+            }
+            from += len;
+        }
+    }
+}
@@ -3,7 +3,13 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.zip.CRC32;
 import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+import simpledb.buffer.BufferPoolManager;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -14,24 +20,33 @@ two-phase locking discipline are followed.  <p>
 <u> Locking note: </u>
 <p>
 
-Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPoolManager are also
-synchronized (for similar reasons.)  Problem is that BufferPoolManager writes
-log records (on page flushed) and the log file flushes BufferPoolManager
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPoolManager
-must not be declared synchronized and must begin with a block like:
-
-<p>
-<pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
-
-       ..
-
-       }
-    }
-</pre>
+Many of the methods here are synchronized on the LogFile, which guards
+appends, the segment files and the dirty page table.  Log forces shared
+by group commit are coordinated on a separate lock, forceLock, so a
+commit waiting for its record to reach disk does not hold the LogFile.
+The buffer pool has no global lock: a page is guarded by one of its
+partition locks, and writes to a file by that file's lock.  It calls in
+here, to log a page image or force the log ahead of a write, while
+holding them.  The log calls the buffer pool the other way when
+rollback and recovery apply changes to pages, and on shutdown, and
+those calls may evict a page and so force the log.  So no LogFile
+method calls into the buffer pool while holding the LogFile: the ones
+that do (logAbort, rollback, logRestore, recover and shutdown) are not
+synchronized, and take the LogFile only around their own appends and
+reads.
+
+<p> Records are serialized before taking the lock, and appended under
+it to a LogBuffer, whose writer thread copies them into the file.  So
+appending costs a copy rather than file I/O; anything that reads the
+log file or forces it must first wait for the buffer to be written.
+
+<p> The log also keeps the dirty page table: for each page with logged
+changes that may not be on disk yet, the LSN of the first (its recLSN)
+and of the last of them.  The buffer pool forces the log up to the last
+one before it writes the page, and then reports the write, which takes
+the page out of the table.  Checkpoints record the table, and recovery
+starts redo at its oldest recLSN and skips the changes to each page
+older than the page's recLSN, rather than replaying the whole log.
 */
 
 /**
@@ -39,20 +54,34 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
-
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
-
-<li> Each log record begins with an integer type and a long integer
-transaction id.
-
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
-
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> The log file itself holds one long integer, the LSN of the last
+written checkpoint, or -1 if there are no checkpoints.
+
+<li> The log records are kept in segment files next to it, named after
+it with the segment number appended (log.0, log.1, ...).  Every segment
+spans the same number of bytes of log, the segment size, and the record
+with log sequence number (LSN) n is in segment n / size, at offset n %
+size.  A segment begins with a header of two long integers, its base
+(the LSN of its offset 0, i.e. its number times the size) and the
+segment size; the log records follow.  Log records are variable length,
+and never cross segments: a record that does not fit in the rest of a
+segment starts the next one.  LSNs never change, so truncating the log
+only deletes the segments before the oldest record recovery needs.
+
+<li> Each log record is framed by a header and a trailer.  The header
+is an integer CRC-32 checksum, the integer length of the stored fields,
+and a byte for how they are stored: as they are, or compressed by their
+runs of zeros (see ZeroRunCodec), which shrinks page images to little
+more than the tuples on them.  The checksum covers the length, the
+format and the stored fields.  The trailer is a long integer, the LSN
+of the record, i.e. where it began.  A record whose checksum or LSN
+does not match, such as one a crash cut short, ends the log.
+
+<li> The fields of each log record begin with an integer type and a
+long integer transaction id.
+
+<li> There are eight record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, TUPLE_INSERT, TUPLE_DELETE and COMPENSATION
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -61,11 +90,30 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li> TUPLE_INSERT and TUPLE_DELETE records describe a change to one slot
+of a heap page: the page id (its class name, then the count and values
+of the integers from PageId.serialize()), the slot number, and the
+length and bytes of the tuple's serialized fields.  An insert is redone
+by putting the tuple in the slot and undone by clearing the slot; a
+delete the other way round.  Heap pages are logged this way as tuples
+change, and other pages with UPDATE records when they are written.
+
+<li> COMPENSATION records (CLRs) are written as an update is rolled
+back.  They consist of the LSN of the next update of the transaction to
+roll back (-1 if none), the type of the change that undoes the update,
+and that change: a page image for an UPDATE, which is the update's
+before image, or a tuple change laid out as above.  CLRs are redone but
+never undone, so a rollback interrupted by a crash picks up where it
+stopped.
+
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record, and of the dirty
+page table: the pages whose logged changes may not be on disk, and the
+LSN of the first such change (the recLSN).  The format of the record is
+an integer count of the number of transactions, as well as a long
+integer transaction id and a long integer first record LSN for each
+active transaction; then an integer count of the dirty pages, and a
+page id, laid out as above, and a long integer recLSN for each.
 
 </ul>
 
@@ -74,7 +122,9 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private RandomAccessFile raf; // the checkpoint pointer
+    private RandomAccessFile tail; // the segment being appended to //protected by this
+    private long segmentSize = newSegmentSize; //protected by this
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,17 +132,67 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int TUPLE_INSERT_RECORD = 6;
+    static final int TUPLE_DELETE_RECORD = 7;
+    static final int COMPENSATION_RECORD = 8;
     static final long NO_CHECKPOINT_ID = -1;
+    static final long NO_LSN = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    final static int SEGMENT_HEADER_SIZE = 2 * LONG_SIZE;
+    final static int FRAME_HEADER_SIZE = 2 * INT_SIZE + 1;
+
+    // how a record's fields are stored in its frame
+    static final byte RAW_FORMAT = 0;
+    static final byte ZERO_RUN_FORMAT = 1;
+    // smaller records are not worth compressing
+    private static final int MIN_COMPRESSED_SIZE = 64;
+
+    /** Bytes of log per segment file, unless set otherwise. */
+    public static final long DEFAULT_SEGMENT_SIZE = 1L << 24;
 
-    long currentOffset = -1;//protected by this
+    /** Milliseconds an asynchronous commit may wait for the log to be
+        forced, unless set otherwise. */
+    public static final long DEFAULT_ASYNC_COMMIT_DELAY = 10;
+
+    private static long newSegmentSize = DEFAULT_SEGMENT_SIZE;
+
+    long currentOffset = -1; // LSN of the next record //protected by this
+    private long forcedOffset = -1; // the log is on disk up to this LSN //protected by this
+    private long base = 0; // the LSN of offset 0 of the tail segment //protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    // the dirty page table: the LSNs of the first and of the last change
+    // logged for each page since it was last written
+    private final Map<PageId, Long> recLSNs = new HashMap<PageId, Long>(); //protected by this
+    private final Map<PageId, Long> pageLSNs = new HashMap<PageId, Long>(); //protected by this
+
+    private final LogBuffer buffer = new LogBuffer(LogBuffer.DEFAULT_CAPACITY);
+
+    // group commit: a committing transaction appends its record under
+    // this, then waits for a force of the log that started after the
+    // append.  One thread at a time forces the log, outside this, for
+    // every record appended so far; the others append behind it and wait.
+    // The buffer pool's forces ahead of page writes wait the same way.
+    private final Object forceLock = new Object();
+    private long durableOffset = -1; // the log is on disk up to this LSN //protected by forceLock
+    private boolean forcing = false; //protected by forceLock
+    int totalForces = 0; //protected by forceLock
+    private volatile boolean groupCommit = true;
+    private volatile int redoThreads = Runtime.getRuntime().availableProcessors();
+
+    // async commit: the commit record is appended but not forced, and a
+    // flusher thread forces the log every asyncCommitDelay milliseconds
+    // while such commits keep coming
+    private volatile long asyncCommitDelay = DEFAULT_ASYNC_COMMIT_DELAY;
+    private long lastAsyncCommit = NO_LSN; // LSN of the last async commit record //protected by this
+    private Thread flusher; //protected by this
+    private IOException flushFailure; //protected by this
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -130,9 +230,211 @@ public class LogFile {
             raf.seek(0);
             raf.setLength(0);
             raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            for (long n : segments()) {
+                segmentFile(n).delete();
+            }
+            openSegment(0);
+            startAppending(base + SEGMENT_HEADER_SIZE);
+        }
+    }
+
+    /** Set the number of bytes of log per segment file, for logs created
+        from now on.  Recovery takes the size from the segments. */
+    public static void setSegmentSize(long size) {
+        newSegmentSize = size;
+    }
+
+    /** Go back to the default segment size.  Used for testing. */
+    public static void resetSegmentSize() {
+        newSegmentSize = DEFAULT_SEGMENT_SIZE;
+    }
+
+    // the file of segment n
+    private File segmentFile(long n) {
+        return new File(logFile.getPath() + "." + n);
+    }
+
+    // the numbers of the segments on disk, in order
+    private List<Long> segments() {
+        List<Long> segments = new ArrayList<Long>();
+        File[] files = logFile.getAbsoluteFile().getParentFile().listFiles();
+        String prefix = logFile.getName() + ".";
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            if (name.startsWith(prefix) && name.length() > prefix.length()
+                && name.substring(prefix.length()).matches("[0-9]+")) {
+                segments.add(Long.parseLong(name.substring(prefix.length())));
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    // the segment the record at lsn is in; caller holds this
+    private long segmentOf(long lsn) {
+        return lsn / segmentSize;
+    }
+
+    // make segment n the tail, writing its header if it is new; caller
+    // holds this
+    private void openSegment(long n) throws IOException {
+        RandomAccessFile segment = new RandomAccessFile(segmentFile(n), "rw");
+        if (segment.length() < SEGMENT_HEADER_SIZE) {
+            segment.setLength(0);
+            segment.writeLong(n * segmentSize);
+            segment.writeLong(segmentSize);
+        } else if (segment.readLong() != n * segmentSize || segment.readLong() != segmentSize) {
+            segment.close();
+            throw new IOException("log segment " + segmentFile(n) + " does not belong to this log");
+        }
+        if (tail != null) {
+            tail.close();
+        }
+        tail = segment;
+        base = n * segmentSize;
+    }
+
+    // start appending records at lsn, the end of the tail segment
+    private void startAppending(long lsn) throws IOException {
+        buffer.attach(tail.getChannel(), position(lsn));
+        currentOffset = lsn;
+        forcedOffset = -1;
+        synchronized (forceLock) {
+            durableOffset = -1;
+        }
+    }
+
+    // the offset in the tail segment of the record at lsn; caller holds
+    // this
+    private long position(long lsn) {
+        return lsn - base;
+    }
+
+    // move appending on to the next segment, once the records in this one
+    // are on disk; caller holds this
+    private void nextSegment(int recordLength) throws IOException {
+        if (SEGMENT_HEADER_SIZE + recordLength > segmentSize) {
+            throw new IOException("log record of " + recordLength
+                                  + " bytes does not fit in a log segment");
+        }
+        flushBuffer();
+        tail.getChannel().force(true);
+        openSegment(segmentOf(currentOffset) + 1);
+        startAppending(base + SEGMENT_HEADER_SIZE);
+        // a force of the new segment covers its header as well
+        forcedOffset = currentOffset;
+        synchronized (forceLock) {
+            durableOffset = Math.max(durableOffset, currentOffset);
+            forceLock.notifyAll();
+        }
+    }
+
+    /** A log record being serialized, before it is appended. */
+    private static class Record extends DataOutputStream {
+        private byte[] framed;
+
+        Record(int type, TransactionId tid) throws IOException {
+            this(type, tid == null ? -1 : tid.getId());
+        }
+
+        Record(int type, long tid) throws IOException {
+            super(new Body());
+            writeInt(type);
+            writeLong(tid);
+        }
+
+        /** Compresses and checksums the record, which is complete.
+            Appending does it if it has not been done; callers with large
+            records do it first, outside the lock.
+            @return the framed record, with room at the end for its LSN
+        */
+        byte[] frame() {
+            if (framed == null) {
+                Body body = (Body) out;
+                byte format = RAW_FORMAT;
+                byte[] stored = body.bytes();
+                int length = body.size();
+                if (length >= MIN_COMPRESSED_SIZE) {
+                    byte[] compressed = ZeroRunCodec.compress(stored, length);
+                    if (compressed.length < length) {
+                        format = ZERO_RUN_FORMAT;
+                        stored = compressed;
+                        length = compressed.length;
+                    }
+                }
+                framed = new byte[FRAME_HEADER_SIZE + length + LONG_SIZE];
+                ByteBuffer.wrap(framed, INT_SIZE, INT_SIZE + 1).putInt(length).put(format);
+                System.arraycopy(stored, 0, framed, FRAME_HEADER_SIZE, length);
+                CRC32 crc = new CRC32();
+                crc.update(framed, INT_SIZE, FRAME_HEADER_SIZE - INT_SIZE + length);
+                ByteBuffer.wrap(framed).putInt((int) crc.getValue());
+            }
+            return framed;
+        }
+    }
+
+    /** The serialized fields of a record, whose buffer frame() reads in
+        place. */
+    private static class Body extends ByteArrayOutputStream {
+        Body() {
+            super(64);
+        }
+
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
+    // read the framed record at lsn at the current position of in, check
+    // it, and return its fields; in is left at the next record.
+    // EOFException if the log ends before a whole, intact record
+    private static byte[] readFrame(RandomAccessFile in, long lsn) throws IOException {
+        byte[] header = new byte[FRAME_HEADER_SIZE];
+        in.readFully(header);
+        ByteBuffer fields = ByteBuffer.wrap(header);
+        int checksum = fields.getInt();
+        int length = fields.getInt();
+        byte format = fields.get();
+        // a torn record may claim any length
+        if (length < 0 || length > in.length() - in.getFilePointer() - LONG_SIZE) {
+            throw new EOFException("torn log record at " + lsn);
+        }
+        byte[] stored = new byte[length + LONG_SIZE];
+        in.readFully(stored);
+        CRC32 crc = new CRC32();
+        crc.update(header, INT_SIZE, FRAME_HEADER_SIZE - INT_SIZE);
+        crc.update(stored, 0, length);
+        if ((int) crc.getValue() != checksum || ByteBuffer.wrap(stored).getLong(length) != lsn) {
+            throw new EOFException("torn log record at " + lsn);
+        }
+        switch (format) {
+        case RAW_FORMAT:
+            return Arrays.copyOf(stored, length);
+        case ZERO_RUN_FORMAT:
+            return ZeroRunCodec.expand(stored, length);
+        default:
+            throw new IOException("log record at " + lsn + " has unknown format " + format);
+        }
+    }
+
+    // append a record to the log buffer, ending it with its LSN; caller
+    // holds this
+    private long append(Record record) throws IOException {
+        byte[] bytes = record.frame();
+        if (position(currentOffset) + bytes.length > segmentSize) {
+            nextSegment(bytes.length);
         }
+        long start = currentOffset;
+        ByteBuffer.wrap(bytes).putLong(bytes.length - LONG_SIZE, start);
+        buffer.append(bytes);
+        currentOffset = start + bytes.length;
+        return start;
+    }
+
+    // wait until every record appended so far is in the log file;
+    // caller holds this
+    private void flushBuffer() throws IOException {
+        buffer.flush(tail.getChannel(), position(currentOffset));
     }
 
     public synchronized int getTotalRecords() {
@@ -144,46 +446,207 @@ public class LogFile {
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
+        // must do this here, since rollback only works for
+        // live transactions (needs tidToFirstLogRecord)
+        rollback(tid);
+
+        synchronized(this) {
+            preAppend();
+            //Debug.log("ABORT");
+            //should we verify that this is a live transaction?
+
+            append(new Record(ABORT_RECORD, tid));
+            force();
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+    }
 
-        synchronized (Database.getBufferPool()) {
+    /** Write a commit record to disk for the specified tid,
+        and force the log to disk.  With group commit (the default),
+        concurrent commits share a single force.
 
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
+        @param tid The committing transaction.
+    */
+    public void logCommit(TransactionId tid) throws IOException {
+        logCommit(tid, false);
+    }
 
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
+    /** Write a commit record for the specified tid, and force the log
+        to disk unless the commit is asynchronous.  An asynchronous
+        commit returns once its record is appended, and a flusher
+        thread forces the log within the async commit delay.  A crash
+        before then loses the commit, and recovery rolls the
+        transaction back; as the log is forced in order, it loses every
+        commit after it as well, so what survives is consistent.
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+        @param tid The committing transaction.
+        @param async Whether to return before the record is on disk.
+        @see #setAsyncCommitDelay
+    */
+    public void logCommit(TransactionId tid, boolean async) throws IOException {
+        Record record = new Record(COMMIT_RECORD, tid);
+        long commit;
+        synchronized (this) {
+            if (flushFailure != null) {
+                throw new IOException("background log force failed", flushFailure);
+            }
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            commit = append(record);
+            tidToFirstLogRecord.remove(tid.getId());
+            if (async) {
+                lastAsyncCommit = commit;
+                startFlusher();
+                return;
+            }
+            if (!groupCommit) {
                 force();
-                tidToFirstLogRecord.remove(tid.getId());
+                return;
             }
         }
+        awaitForce(commit);
     }
 
-    /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+    /** Wait until the record at lsn is on disk, forcing the log unless
+        another thread already is.  A force covers every record appended
+        before it starts, so a thread that arrives during one waits for
+        the next, and the next covers everyone who arrived in the
+        meantime.
+    */
+    private void awaitForce(long lsn) throws IOException {
+        synchronized (forceLock) {
+            while (forcing && durableOffset <= lsn) {
+                try {
+                    forceLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for the log force");
+                }
+            }
+            if (durableOffset > lsn) {
+                return;
+            }
+            forcing = true;
+        }
+        long end = -1;
+        boolean forced = false;
+        try {
+            FileChannel channel;
+            long endPosition;
+            synchronized (this) {
+                end = currentOffset;
+                endPosition = position(end);
+                channel = tail.getChannel();
+            }
+            try {
+                buffer.flush(channel, endPosition);
+                channel.force(true);
+                synchronized (this) {
+                    if (tail.getChannel() == channel) {
+                        forcedOffset = Math.max(forcedOffset, end);
+                    }
+                }
+            } catch (ClosedChannelException e) {
+                // appending moved on to the next segment, after forcing
+                // this one
+            }
+            forced = true;
+        } finally {
+            synchronized (forceLock) {
+                forcing = false;
+                if (forced) {
+                    totalForces++;
+                    durableOffset = Math.max(durableOffset, end);
+                }
+                forceLock.notifyAll();
+            }
+        }
+    }
 
-        @param tid The committing transaction.
+    // start a flusher for the async commits if none is running; caller
+    // holds this
+    private void startFlusher() {
+        if (flusher == null) {
+            flusher = new Thread(this::runFlusher, "simpledb-logflusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    // force the async commits appended during each delay, until one
+    // passes without any
+    private void runFlusher() {
+        while (true) {
+            try {
+                Thread.sleep(asyncCommitDelay);
+            } catch (InterruptedException e) {
+                synchronized (this) {
+                    flusher = null;
+                    return;
+                }
+            }
+            long target;
+            synchronized (this) {
+                target = lastAsyncCommit;
+            }
+            try {
+                awaitForce(target);
+            } catch (IOException e) {
+                synchronized (this) {
+                    flushFailure = e;
+                    flusher = null;
+                    return;
+                }
+            }
+            synchronized (this) {
+                if (lastAsyncCommit == target) {
+                    flusher = null;
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Choose how long an asynchronous commit may wait for the log to
+        be forced, which bounds how many of the latest commits a crash
+        can lose.
+
+        @param millis The delay, in milliseconds.
+        @see #logCommit(TransactionId, boolean)
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void setAsyncCommitDelay(long millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("async commit delay must be positive");
+        }
+        asyncCommitDelay = millis;
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Choose whether concurrent commits share log forces.  Without
+        group commit, each commit forces the log while holding it, as
+        it did before; this is mostly useful for comparison.
+    */
+    public void setGroupCommit(boolean enabled) {
+        groupCommit = enabled;
+    }
+
+    /** Choose how many threads recovery redoes changes with.  With
+        more than one, each page's changes go to one thread, chosen by
+        the page's hash, which applies them in log order.
+    */
+    public void setRedoThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("redo needs at least one thread");
+        }
+        redoThreads = threads;
+    }
+
+    /** @return the number of times the log has been forced to disk */
+    public int getTotalForces() {
+        synchronized (forceLock) {
+            return totalForces;
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -191,36 +654,48 @@ public class LogFile {
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the record
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
         /* update record conists of
 
            record type
            transaction id
            before page data (see writePageData)
            after page data
-           start offset
+           LSN
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        Record record = new Record(UPDATE_RECORD, tid);
+        writePageData(record,before);
+        writePageData(record,after);
+        record.frame();
+
+        synchronized (this) {
+            Debug.log("WRITE, offset = " + currentOffset);
+            preAppend();
+            long lsn = append(record);
+            logged(after.getId(), lsn);
+
+            Debug.log("WRITE OFFSET = " + currentOffset);
+            return lsn;
+        }
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    // note in the dirty page table that a change to pid was logged at
+    // lsn; caller holds this
+    private void logged(PageId pid, long lsn) {
+        if (!recLSNs.containsKey(pid)) {
+            recLSNs.put(pid, lsn);
+        }
+        pageLSNs.put(pid, lsn);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    void writePageData(DataOutput raf, Page p) throws IOException{
         PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
 
         //page data is:
         // page class name
@@ -231,15 +706,9 @@ public class LogFile {
         // page class data
 
         String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
 
         raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
+        writePageId(raf, pid);
         byte[] pageData = p.getPageData();
         raf.writeInt(pageData.length);
         raf.write(pageData);
@@ -247,210 +716,572 @@ public class LogFile {
     }
 
     Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+        return readPageImage(raf).toPage();
+    }
+
+    // read page data as written by writePageData, without making a Page
+    // of it yet
+    private PageImage readPageImage(DataInput in) throws IOException {
+        String pageClassName = in.readUTF();
+        PageId pid = readPageId(in);
+        byte[] pageData = new byte[in.readInt()];
+        in.readFully(pageData);
+        return new PageImage(pageClassName, pid, pageData);
+    }
+
+    /** A page image read back from the log.  Redo and undo hand it to
+        its file as it is, without parsing it into a page of its class:
+        files only write out the id and data of a page. */
+    private static class PageImage implements Page {
+        final String pageClassName;
+        final PageId pid;
+        final byte[] data;
+
+        PageImage(String pageClassName, PageId pid, byte[] data) {
+            this.pageClassName = pageClassName;
+            this.pid = pid;
+            this.data = data;
+        }
+
+        public PageId getId() {
+            return pid;
+        }
+
+        public byte[] getPageData() {
+            return data;
+        }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        public TransactionId isDirty() {
+            return null;
+        }
 
+        // an image is never held by the buffer pool, and always clean:
+        // whoever writes it out may mark it so
+        public void markDirty(boolean dirty, TransactionId tid) {
+        }
+
+        public Page getBeforeImage() {
+            return this;
+        }
+
+        public void setBeforeImage() {
+        }
+
+        // write the image as writePageData would have
+        void write(LogFile log, DataOutput out) throws IOException {
+            out.writeUTF(pageClassName);
+            log.writePageId(out, pid);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+
+        Page toPage() throws IOException {
+            Page newPage = null;
+            try {
+                Class<?> pageClass = Class.forName(pageClassName);
+
+                Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+
+                // pages that need more than their data, like the key field
+                // of B+tree pages, are created by their file
+                try {
+                    newPage = Database.getCatalog().getDatabaseFile(pid.getTableId()).createPage(pid, data);
+                } catch (NoSuchElementException e) {
+                    // not in the catalog: fall back to the page's constructor
+                }
+                if (newPage == null) {
+                    Object[] pageArgs = new Object[2];
+                    pageArgs[0] = pid;
+                    pageArgs[1] = data;
+
+                    newPage = (Page)pageConsts[0].newInstance(pageArgs);
+                }
+
+                //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+            } catch (ClassNotFoundException e){
+                e.printStackTrace();
+                throw new IOException();
+            } catch (InstantiationException e) {
+                e.printStackTrace();
+                throw new IOException();
+            } catch (IllegalAccessException e) {
+                e.printStackTrace();
+                throw new IOException();
+            } catch (InvocationTargetException e) {
+                e.printStackTrace();
+                throw new IOException();
+            }
+            return newPage;
+        }
+    }
+
+    void writePageId(DataOutput out, PageId pid) throws IOException {
+        int pageInfo[] = pid.serialize();
+
+        out.writeUTF(pid.getClass().getName());
+        out.writeInt(pageInfo.length);
+        for (int i = 0; i < pageInfo.length; i++) {
+            out.writeInt(pageInfo[i]);
+        }
+    }
+
+    PageId readPageId(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
         try {
             Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
             Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
+            int numIdArgs = in.readInt();
             Object idArgs[] = new Object[numIdArgs];
             for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
+                idArgs[i] = in.readInt();
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+            return (PageId)idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException | InstantiationException
+                 | IllegalAccessException | InvocationTargetException e) {
+            throw new IOException("cannot create page id of class " + idClassName, e);
+        }
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    /** Write a TUPLE_INSERT record for t, which tid is about to insert
+        into the slot its RecordId names, if the page is logged by
+        tuple and tid has logged a BEGIN.  The record must be appended before the page changes,
+        since the page may be written as soon as it does.
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+        @return the LSN of the record, or NO_LSN if none was written
+        @see #logPageWrite
+    */
+    public long logTupleInsert(TransactionId tid, Tuple t) throws IOException {
+        return logTupleChange(TUPLE_INSERT_RECORD, tid, t.getRecordId(), t);
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    /** Write a TUPLE_DELETE record for t, which tid is about to delete
+        from rid, if the page it is on is logged by tuple; before the
+        page changes, as for logTupleInsert.
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        @return the LSN of the record, or NO_LSN if none was written
+        @see #logPageWrite
+    */
+    public long logTupleDelete(TransactionId tid, RecordId rid, Tuple t) throws IOException {
+        return logTupleChange(TUPLE_DELETE_RECORD, tid, rid, t);
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    private long logTupleChange(int type, TransactionId tid, RecordId rid, Tuple t) throws IOException {
+        if (!isLoggedByTuple(rid.getPageId()) || !isLogging(tid)) {
+            return NO_LSN;
+        }
+        ByteArrayOutputStream fields = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(fields);
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+            t.getField(i).serialize(dos);
         }
-        return newPage;
+        Record record = new Record(type, tid);
+        writeTupleChange(record, rid.getPageId(), rid.getTupleNumber(), fields.toByteArray());
+        record.frame();
+
+        synchronized (this) {
+            preAppend();
+            long lsn = append(record);
+            logged(rid.getPageId(), lsn);
+            return lsn;
+        }
+    }
 
+    // whether tid logged a BEGIN and has not finished.  A transaction
+    // that never did commits through the buffer pool alone, which
+    // writes its pages, without a COMMIT record: changes logged for it
+    // would look like a loser's to recovery, and be undone
+    private synchronized boolean isLogging(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
     }
 
-    /** Write a BEGIN record for the specified transaction
-        @param tid The transaction that is beginning
+    // a change to one slot of a heap page, as in tuple records
+    private void writeTupleChange(DataOutput out, PageId pid, int slot, byte[] tuple) throws IOException {
+        writePageId(out, pid);
+        out.writeInt(slot);
+        out.writeInt(tuple.length);
+        out.write(tuple);
+    }
 
+    private void readTupleChange(DataInput in, LogRecord record) throws IOException {
+        record.pid = readPageId(in);
+        record.slot = in.readInt();
+        record.tuple = new byte[in.readInt()];
+        in.readFully(record.tuple);
+    }
+
+    /** Write the log records needed before page, dirtied by tid, can be
+        written to disk: an UPDATE record with its before and after
+        images, unless its changes are logged tuple by tuple or tid
+        never logged a BEGIN.  The log must still be forced before the
+        page is written.
+
+        @return the LSN of the record, or NO_LSN if none was written
+        @see #forcePage
     */
-    public synchronized  void logXactionBegin(TransactionId tid)
-        throws IOException {
-        Debug.log("BEGIN");
-        if(tidToFirstLogRecord.get(tid.getId()) != null){
-            System.err.printf("logXactionBegin: already began this tid\n");
-            throw new IOException("double logXactionBegin()");
+    public long logPageWrite(TransactionId tid, Page page) throws IOException {
+        if (!isLoggedByTuple(page.getId()) && isLogging(tid)) {
+            return logWrite(tid, page.getBeforeImage(), page);
         }
-        preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        return NO_LSN;
+    }
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+    /** Force the log up to the last change logged for pid, which must
+        be on disk before the page is written.
+
+        @return the LSN of that change, or NO_LSN if there is none, to
+        pass to pageWritten once the page is written
+        @see #pageWritten
+    */
+    public long forcePage(PageId pid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            Long last = pageLSNs.get(pid);
+            lsn = last == null ? NO_LSN : last;
+        }
+        forceTo(lsn);
+        return lsn;
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
-    public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+    /** Force the log up to the last change logged for any of pids,
+        with one force, ahead of writing them together.
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+        @return the LSN of the last change to each page, or NO_LSN, to
+        pass to pageWritten once the page is written
+        @see #forcePage
+    */
+    public Map<PageId, Long> forcePages(Collection<PageId> pids) throws IOException {
+        Map<PageId, Long> lsns = new HashMap<PageId, Long>();
+        long last = NO_LSN;
+        synchronized (this) {
+            for (PageId pid : pids) {
+                Long lsn = pageLSNs.get(pid);
+                lsns.put(pid, lsn == null ? NO_LSN : lsn);
+                if (lsn != null) {
+                    last = Math.max(last, lsn);
+                }
             }
         }
+        forceTo(last);
+        return lsns;
+    }
 
-        logTruncate();
+    /** Note that pid has been written to disk with the changes logged
+        up to lsn, as returned by forcePage, so that recovery need not
+        redo them.  Changes logged since then are still to be redone.
+    */
+    public synchronized void pageWritten(PageId pid, long lsn) {
+        Long last = pageLSNs.get(pid);
+        if (last == null || last <= lsn) {
+            pageLSNs.remove(pid);
+            recLSNs.remove(pid);
+        } else if (lsn != NO_LSN) {
+            // the page may hold some of the later changes; redoing the
+            // one at lsn as well keeps the recLSN on a record boundary
+            recLSNs.put(pid, lsn);
+        }
     }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+    // heap pages are logged a tuple at a time, as they change
+    private static boolean isLoggedByTuple(PageId pid) {
+        return pid instanceof HeapPageId;
+    }
 
-        long minLogRecord = cpLoc;
+    /** A record read back from the log; for updates, with how to redo
+        and undo the change on the buffer pool's copy of the page. */
+    private class LogRecord {
+        final int type;
+        final long tid;
+        final long lsn;
+        PageImage before, after; // UPDATE records, and the image of compensations for them
+        PageId pid; // tuple records
+        int slot;
+        byte[] tuple;
+        int kind; // COMPENSATION records: the type of the change they make
+        long undoNext = NO_LSN; // COMPENSATION records
+        Map<Long, Long> transactions; // CHECKPOINT records
+        Map<PageId, Long> dirtyPages;
+
+        LogRecord(int type, long tid, long lsn) {
+            this.type = type;
+            this.tid = tid;
+            this.lsn = lsn;
+        }
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+        boolean isUpdate() {
+            return type == UPDATE_RECORD || type == TUPLE_INSERT_RECORD
+                || type == TUPLE_DELETE_RECORD;
+        }
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        boolean isRedoable() {
+            return isUpdate() || type == COMPENSATION_RECORD;
+        }
+
+        PageId getPageId() {
+            return after != null ? after.pid : pid;
+        }
+
+        // the page the change leaves is cached dirty on behalf of by,
+        // to be written with the rest of the pool's pages
+        void redo(TransactionId by) throws IOException {
+            int change = type == COMPENSATION_RECORD ? kind : type;
+            if (change == UPDATE_RECORD) {
+                restore(after.toPage(), by);
+            } else {
+                applyTuple(change == TUPLE_INSERT_RECORD, by);
             }
+        }
 
-            int numOutstanding = raf.readInt();
+        void undo(TransactionId by) throws IOException {
+            if (type == UPDATE_RECORD) {
+                restore(before.toPage(), by);
+            } else {
+                applyTuple(type == TUPLE_DELETE_RECORD, by);
+            }
+        }
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+        /** @return the CLR that makes this update's undo, followed by
+            undoing the update at undoNext */
+        Record compensation(long undoNext) throws IOException {
+            Record record = new Record(COMPENSATION_RECORD, tid);
+            record.writeLong(undoNext);
+            if (type == UPDATE_RECORD) {
+                record.writeInt(UPDATE_RECORD);
+                before.write(LogFile.this, record);
+            } else {
+                record.writeInt(type == TUPLE_INSERT_RECORD ? TUPLE_DELETE_RECORD : TUPLE_INSERT_RECORD);
+                writeTupleChange(record, pid, slot, tuple);
             }
+            return record;
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+        // put the tuple in its slot, or clear the slot
+        private void applyTuple(boolean insert, TransactionId by) throws IOException {
+            HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+            HeapPage page;
+            try {
+                // the file may have been extended for the insert after
+                // the last time it was written
+                page = pid.getPageNumber() < file.numPages()
+                    ? (HeapPage) Database.getBufferPool().getPage(null, pid, Permissions.READ_ONLY)
+                    : new HeapPage((HeapPageId) pid, HeapPage.createEmptyPageData());
+            } catch (DbException | TransactionAbortedException e) {
+                throw new IOException("cannot read " + pid + " to apply a logged change", e);
+            }
+            if (insert) {
+                page.setSlot(slot, parseTuple(Database.getCatalog().getTupleDesc(pid.getTableId())));
+            } else {
+                page.clearSlot(slot);
+            }
+            restore(page, by);
+        }
 
-        raf.seek(minLogRecord);
+        private void restore(Page page, TransactionId by) throws IOException {
+            try {
+                Database.getBufferPool().restorePage(page, by);
+            } catch (DbException e) {
+                throw new IOException("cannot cache " + page.getId() + " after applying a logged change", e);
+            }
+        }
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
+        private Tuple parseTuple(TupleDesc td) throws IOException {
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(tuple));
+            Tuple t = new Tuple(td);
             try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
+                for (int i = 0; i < td.numFields(); i++) {
+                    t.setField(i, td.getFieldType(i).parse(dis));
+                }
+            } catch (java.text.ParseException e) {
+                throw new IOException("cannot parse logged tuple", e);
+            }
+            return t;
+        }
+    }
+
+    // read the record at lsn, at the current position of in, which is
+    // left at the next record; EOFException if the log ends first
+    private LogRecord readRecord(RandomAccessFile raf, long lsn) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(readFrame(raf, lsn)));
+        LogRecord record = new LogRecord(in.readInt(), in.readLong(), lsn);
+        switch (record.type) {
+        case UPDATE_RECORD:
+            record.before = readPageImage(in);
+            record.after = readPageImage(in);
+            break;
+        case TUPLE_INSERT_RECORD:
+        case TUPLE_DELETE_RECORD:
+            readTupleChange(in, record);
+            break;
+        case COMPENSATION_RECORD:
+            record.undoNext = in.readLong();
+            record.kind = in.readInt();
+            if (record.kind == UPDATE_RECORD) {
+                record.after = readPageImage(in);
+            } else {
+                readTupleChange(in, record);
+            }
+            break;
+        case CHECKPOINT_RECORD:
+            record.transactions = new HashMap<Long, Long>();
+            for (int n = in.readInt(); n > 0; n--) {
+                long tid = in.readLong();
+                record.transactions.put(tid, in.readLong());
+            }
+            record.dirtyPages = new HashMap<PageId, Long>();
+            for (int n = in.readInt(); n > 0; n--) {
+                PageId pid = readPageId(in);
+                record.dirtyPages.put(pid, in.readLong());
+            }
+            break;
+        }
+        return record;
+    }
 
-                Debug.log("NEW START = " + newStart);
+    // reads the records of the log in LSN order, across segments; used
+    // while holding this, or by recovery before anything else appends
+    private class LogReader implements Closeable {
+        private RandomAccessFile in;
+        private long segment = -1;
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+        LogReader(long lsn) throws IOException {
+            seek(lsn);
+        }
 
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
+        void seek(long lsn) throws IOException {
+            if (segmentOf(lsn) != segment) {
+                close();
+                segment = segmentOf(lsn);
+                in = new RandomAccessFile(segmentFile(segment), "r");
+            }
+            in.seek(lsn - segment * segmentSize);
+        }
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
+        // the LSN of the next record
+        long getLSN() throws IOException {
+            return segment * segmentSize + in.getFilePointer();
+        }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+        // the next record; EOFException at the end of the log
+        LogRecord next() throws IOException {
+            if (in.getFilePointer() >= in.length() && segmentFile(segment + 1).exists()) {
+                seek((segment + 1) * segmentSize + SEGMENT_HEADER_SIZE);
+            }
+            return readRecord(in, getLSN());
+        }
 
-            } catch (EOFException e) {
-                break;
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+                in = null;
             }
         }
+    }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+    /** Write a BEGIN record for the specified transaction
+        @param tid The transaction that is beginning
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+    */
+    public synchronized  void logXactionBegin(TransactionId tid)
+        throws IOException {
+        Debug.log("BEGIN");
+        if(tidToFirstLogRecord.get(tid.getId()) != null){
+            System.err.printf("logXactionBegin: already began this tid\n");
+            throw new IOException("double logXactionBegin()");
+        }
+        preAppend();
+        tidToFirstLogRecord.put(tid.getId(), append(new Record(BEGIN_RECORD, tid)));
+
+        Debug.log("BEGIN OFFSET = " + currentOffset);
+    }
+
+    /** Checkpoint the log and write a checkpoint record.  The
+        checkpoint is fuzzy: it records the running transactions and
+        the dirty page table as they are, without waiting for the
+        buffer pool, so transactions keep going while it runs.  Once
+        the record is on disk, the buffer pool writes the pages of
+        completed transactions, through its background writer if one
+        is running; the recLSNs of the next checkpoint move up as it
+        does, and with them the point the log can be truncated at.  As
+        commits leave their pages dirty, the table would otherwise
+        hold committed pages until eviction, and keep the log back to
+        the oldest.  Running transactions' pages are not written.
+    */
+    public void logCheckpoint() throws IOException {
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            long startCpOffset;
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            Record record = new Record(CHECKPOINT_RECORD, null); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            record.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                record.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                record.writeLong(tidToFirstLogRecord.get(key));
+            }
+
+            //and the dirty page table
+            record.writeInt(recLSNs.size());
+            for (Map.Entry<PageId, Long> dirty : recLSNs.entrySet()) {
+                writePageId(record, dirty.getKey());
+                record.writeLong(dirty.getValue());
+            }
+            startCpOffset = append(record);
+
+            //once the CP is on disk, make sure the CP location in the
+            // log file is updated, and on disk before logTruncate drops
+            // the segments older checkpoints need
+            force();
+            raf.seek(0);
+            raf.writeLong(startCpOffset);
+            raf.getChannel().force(true);
+            //Debug.log("CP OFFSET = " + currentOffset);
+        }
+
+        Database.getBufferPool().writeCompletedPages();
+        logTruncate();
+    }
+
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption, by deleting the segments before the oldest record
+        recovery may read */
+    public synchronized void logTruncate() throws IOException {
+        preAppend();
+        flushBuffer();
+        raf.seek(0);
+        long cpLoc = raf.readLong();
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return;
+        }
+
+        LogRecord cp;
+        LogReader reader = new LogReader(cpLoc);
+        try {
+            cp = reader.next();
+        } finally {
+            reader.close();
+        }
+        if (cp.type != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+
+        // recovery reads nothing before the checkpoint, the first record
+        // of the transactions running then, and the oldest recLSN
+        long minLogRecord = cpLoc;
+        for (long firstLogRecord : cp.transactions.values()) {
+            minLogRecord = Math.min(minLogRecord, firstLogRecord);
+        }
+        for (long recLSN : cp.dirtyPages.values()) {
+            minLogRecord = Math.min(minLogRecord, recLSN);
+        }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+        Debug.log("TRUNCATING LOG BEFORE SEGMENT " + segmentOf(minLogRecord));
+        for (long n = segmentOf(minLogRecord) - 1; n >= 0 && segmentFile(n).delete(); n--) {
+        }
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -463,22 +1294,106 @@ public class LogFile {
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
+        List<LogRecord> updates = new ArrayList<LogRecord>();
+        synchronized(this) {
+            preAppend();
+            Long first = tidToFirstLogRecord.get(tid.getId());
+            if (first == null) {
+                throw new NoSuchElementException("transaction " + tid.getId() + " is not running");
+            }
+            flushBuffer();
+            LogReader reader = new LogReader(first);
+            try {
+                while (reader.getLSN() < currentOffset) {
+                    LogRecord record = reader.next();
+                    if (record.tid == tid.getId() && record.isUpdate()) {
+                        updates.add(record);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        // pages are changed outside this, since eviction holds a
+        // buffer pool partition lock while it forces the log
+        undo(updates, tid);
+    }
+
+    /** Put back the committed images of pages that tid wrote to disk
+        before it aborted, for a transaction that aborts without a
+        rollback, as those that never logged a BEGIN do.  Each image is
+        logged as a CLR with nothing of tid left to undo after it, so
+        recovery redoes the restore instead of undoing tid again, and
+        then cached in the buffer pool as the dirty page, to be written
+        once the CLR is on disk.
+
+        @param tid The aborting transaction
+        @param images The committed images of the pages to restore
+    */
+    public void logRestore(TransactionId tid, List<Page> images) throws IOException {
+        List<Record> clrs = new ArrayList<Record>();
+        for (Page image : images) {
+            Record record = new Record(COMPENSATION_RECORD, tid);
+            record.writeLong(NO_LSN);
+            record.writeInt(UPDATE_RECORD);
+            writePageData(record, image);
+            clrs.add(record);
+        }
+        synchronized (this) {
+            for (int i = 0; i < clrs.size(); i++) {
+                preAppend();
+                logged(images.get(i).getId(), append(clrs.get(i)));
+            }
+        }
+        BufferPoolManager pool = Database.getBufferPool();
+        for (Page image : images) {
+            try {
+                pool.restorePage(image, tid);
+            } catch (DbException e) {
+                throw new IOException("cannot cache the committed image of " + image.getId(), e);
+            }
+            pool.pageRestored(image.getId());
+        }
+    }
+
+    // roll back updates, given in LSN order, newest first: log a CLR for
+    // each, and then undo the updates on the buffer pool's pages, which
+    // are left dirty on behalf of by.  The pages' LSNs are the CLRs', so
+    // no page is written before the CLRs that made it.  Caller does not
+    // hold this
+    private void undo(List<LogRecord> updates, TransactionId by) throws IOException {
+        // each CLR points to the update of its transaction to undo next
+        Map<Long, Long> previous = new HashMap<Long, Long>();
+        List<Record> clrs = new ArrayList<Record>();
+        for (LogRecord update : updates) {
+            Long undoNext = previous.put(update.tid, update.lsn);
+            clrs.add(update.compensation(undoNext == null ? NO_LSN : undoNext));
+        }
+        synchronized (this) {
+            for (int i = clrs.size() - 1; i >= 0; i--) {
                 preAppend();
-                // some code goes here
+                logged(updates.get(i).getPageId(), append(clrs.get(i)));
             }
         }
+        BufferPoolManager pool = Database.getBufferPool();
+        for (int i = updates.size() - 1; i >= 0; i--) {
+            LogRecord record = updates.get(i);
+            record.undo(by);
+            pool.pageRestored(record.getPageId());
+        }
     }
 
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // with every page written, the checkpoint leaves recovery
+            // nothing to redo
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -488,23 +1403,351 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+
+        Recovery makes three passes over the log.  Analysis reads from
+        the last checkpoint on, starting from the tables it recorded,
+        to find the transactions that never finished and the dirty
+        pages with their recLSNs.  Redo then repeats history from the
+        oldest recLSN, rollbacks included, skipping the changes that the
+        dirty page table shows are on disk.  Undo finally rolls back the
+        unfinished transactions, newest change first, logging CLRs as it
+        goes and an ABORT record for each at the end.
+
+        Redo and undo change the buffer pool's copies of the pages, so a
+        page takes all its changes before it is written, once, when the
+        pool is flushed at the end.
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                recoveryUndecided = false;
-                // some code goes here
+        List<LogRecord> losers = new ArrayList<LogRecord>();
+        Map<Long, List<Long>> active = new HashMap<Long, List<Long>>();
+        Map<PageId, Long> dirty = new HashMap<PageId, Long>();
+        LogReader reader;
+        long end;
+        synchronized (this) {
+            recoveryUndecided = false;
+            if (raf.length() < LONG_SIZE) {
+                raf.setLength(0);
+                raf.writeLong(NO_CHECKPOINT_ID);
+            }
+            raf.seek(0);
+            long checkpoint = raf.readLong();
+            List<Long> segments = segments();
+            if (segments.isEmpty()) {
+                checkpoint = NO_CHECKPOINT_ID;
+                segments.add(0L);
+                openSegment(0);
+            } else {
+                // the log may have been written with another size
+                RandomAccessFile first = new RandomAccessFile(segmentFile(segments.get(0)), "r");
+                try {
+                    first.seek(LONG_SIZE);
+                    segmentSize = first.readLong();
+                } finally {
+                    first.close();
+                }
+            }
+
+            // analysis: the scan starts early enough to see every
+            // update of the transactions running at the checkpoint
+            long start = segments.get(0) * segmentSize + SEGMENT_HEADER_SIZE;
+            reader = new LogReader(start);
+            if (checkpoint != NO_CHECKPOINT_ID) {
+                reader.seek(checkpoint);
+                LogRecord cp = reader.next();
+                dirty.putAll(cp.dirtyPages);
+                start = checkpoint;
+                for (Map.Entry<Long, Long> xaction : cp.transactions.entrySet()) {
+                    active.put(xaction.getKey(), new ArrayList<Long>());
+                    start = Math.min(start, xaction.getValue());
+                }
+            }
+            reader.seek(start);
+            end = start;
+            while (true) {
+                LogRecord record;
+                try {
+                    record = reader.next();
+                } catch (EOFException e) {
+                    break; // including a record the crash cut short
+                }
+                end = reader.getLSN();
+                switch (record.type) {
+                case BEGIN_RECORD:
+                    active.put(record.tid, new ArrayList<Long>());
+                    break;
+                case COMMIT_RECORD:
+                case ABORT_RECORD:
+                    active.remove(record.tid);
+                    break;
+                case COMPENSATION_RECORD:
+                    // the updates after undoNext are rolled back already
+                    Iterator<Long> updates = updatesOf(active, record.tid).iterator();
+                    while (updates.hasNext()) {
+                        if (updates.next() > record.undoNext) {
+                            updates.remove();
+                        }
+                    }
+                    break;
+                default:
+                    if (record.isUpdate()) {
+                        updatesOf(active, record.tid).add(record.lsn);
+                    }
+                }
+                // changes before the checkpoint are in its table if
+                // they may not be on disk
+                if (record.isRedoable() && record.lsn > checkpoint
+                    && !dirty.containsKey(record.getPageId())) {
+                    dirty.put(record.getPageId(), record.lsn);
+                }
+            }
+            // append after the last whole record
+            for (long n : segments) {
+                if (n > segmentOf(end)) {
+                    segmentFile(n).delete();
+                }
+            }
+            openSegment(segmentOf(end));
+            tail.setLength(position(end));
+            startAppending(end);
+        }
+
+        // pages are changed outside this, as in rollback; redo
+        // starts from what the dirty pages hold on disk
+        BufferPoolManager pool = Database.getBufferPool();
+        for (PageId pid : dirty.keySet()) {
+            pool.discardPage(pid);
+        }
+        TransactionId recovery = new TransactionId();
+        try {
+            // redo
+            if (!dirty.isEmpty()) {
+                redo(reader, Collections.min(dirty.values()), end, dirty, recovery);
             }
-         }
+
+            // read back the updates to undo
+            for (List<Long> updates : active.values()) {
+                for (long lsn : updates) {
+                    reader.seek(lsn);
+                    losers.add(reader.next());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        Collections.sort(losers, new Comparator<LogRecord>() {
+            public int compare(LogRecord a, LogRecord b) {
+                return Long.compare(a.lsn, b.lsn);
+            }
+        });
+
+        // undo
+        undo(losers, recovery);
+        synchronized (this) {
+            for (Long tid : active.keySet()) {
+                preAppend();
+                append(new Record(ABORT_RECORD, tid));
+            }
+            force();
+        }
+        pool.flushAllPages();
     }
 
-    /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        // some code goes here
+    // redo the changes from start up to end that dirty does not show to
+    // be on disk, on redoThreads threads, on behalf of by; caller does not
+    // hold this, as evicting a page forces the log
+    private void redo(LogReader reader, long start, long end, Map<PageId, Long> dirty,
+                      final TransactionId by)
+        throws IOException {
+        ParallelRedo workers = redoThreads > 1 ? new ParallelRedo(redoThreads) : null;
+        try {
+            reader.seek(start);
+            while (reader.getLSN() < end) {
+                final LogRecord record = reader.next();
+                if (record.isRedoable()) {
+                    Long recLSN = dirty.get(record.getPageId());
+                    if (recLSN != null && record.lsn >= recLSN) {
+                        if (workers == null) {
+                            record.redo(by);
+                        } else {
+                            workers.submit(record.getPageId(), () -> record.redo(by));
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (workers != null) {
+                workers.finish();
+            }
+        }
+    }
+
+    // the updates still to undo of the transaction tid in a recovery
+    private static List<Long> updatesOf(Map<Long, List<Long>> active, long tid) {
+        List<Long> updates = active.get(tid);
+        if (updates == null) {
+            updates = new ArrayList<Long>();
+            active.put(tid, updates);
+        }
+        return updates;
+    }
+
+    /** Close the log file without a checkpoint, once the records
+        appended so far are written to it (but not forced), as if the
+        system stopped right after the last append.  Used for testing.
+    */
+    synchronized void close() throws IOException {
+        buffer.close();
+        raf.close();
+        if (tail != null) {
+            tail.close();
+        }
+    }
+
+    /** Print out a human readable represenation of the log: the
+        checkpoint pointer, then the header of each segment and its
+        records, one per line, up to where recovery would stop reading.
+    */
+    public synchronized void print() throws IOException {
+        if (tail != null) {
+            flushBuffer();
+        }
+        long checkpoint = NO_CHECKPOINT_ID;
+        if (raf.length() >= LONG_SIZE) {
+            raf.seek(0);
+            checkpoint = raf.readLong();
+        }
+        System.out.println("last checkpoint: "
+                           + (checkpoint == NO_CHECKPOINT_ID ? "none" : Long.toString(checkpoint)));
+        for (long n : segments()) {
+            RandomAccessFile in = new RandomAccessFile(segmentFile(n), "r");
+            try {
+                if (in.length() < SEGMENT_HEADER_SIZE) {
+                    System.out.println("segment " + n + ": no header");
+                    return;
+                }
+                long segmentBase = in.readLong();
+                System.out.println("segment " + n + ": base " + segmentBase
+                                   + ", size " + in.readLong());
+                while (in.getFilePointer() < in.length()) {
+                    long lsn = segmentBase + in.getFilePointer();
+                    try {
+                        System.out.println(describe(readRecord(in, lsn)));
+                    } catch (EOFException e) {
+                        System.out.println(lsn + ": torn record, the log ends here");
+                        return;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
     }
 
+    // one line of print() for record
+    private String describe(LogRecord record) {
+        StringBuilder line = new StringBuilder();
+        line.append(record.lsn).append(": ").append(typeName(record.type));
+        if (record.type != CHECKPOINT_RECORD) {
+            line.append(" tid ").append(record.tid);
+        }
+        switch (record.type) {
+        case UPDATE_RECORD:
+            line.append(" page ").append(describe(record.before.pid));
+            break;
+        case TUPLE_INSERT_RECORD:
+        case TUPLE_DELETE_RECORD:
+            describeTupleChange(line, record);
+            break;
+        case COMPENSATION_RECORD:
+            line.append(" as ").append(typeName(record.kind));
+            if (record.kind == UPDATE_RECORD) {
+                line.append(" page ").append(describe(record.after.pid));
+            } else {
+                describeTupleChange(line, record);
+            }
+            line.append(", undo next ")
+                .append(record.undoNext == NO_LSN ? "none" : Long.toString(record.undoNext));
+            break;
+        case CHECKPOINT_RECORD:
+            line.append(" active {");
+            String separator = "";
+            for (Map.Entry<Long, Long> xaction : record.transactions.entrySet()) {
+                line.append(separator).append("tid ").append(xaction.getKey())
+                    .append(" from ").append(xaction.getValue());
+                separator = ", ";
+            }
+            line.append("} dirty {");
+            separator = "";
+            for (Map.Entry<PageId, Long> dirty : record.dirtyPages.entrySet()) {
+                line.append(separator).append(describe(dirty.getKey()))
+                    .append(" from ").append(dirty.getValue());
+                separator = ", ";
+            }
+            line.append("}");
+            break;
+        }
+        return line.toString();
+    }
+
+    private static void describeTupleChange(StringBuilder line, LogRecord record) {
+        line.append(" page ").append(describe(record.pid)).append(" slot ").append(record.slot)
+            .append(", ").append(record.tuple.length).append(" bytes");
+    }
+
+    private static String describe(PageId pid) {
+        return pid.getClass().getSimpleName() + "(" + pid.getTableId() + ", "
+            + pid.getPageNumber() + ")";
+    }
+
+    private static String typeName(int type) {
+        switch (type) {
+        case ABORT_RECORD: return "ABORT";
+        case COMMIT_RECORD: return "COMMIT";
+        case UPDATE_RECORD: return "UPDATE";
+        case BEGIN_RECORD: return "BEGIN";
+        case CHECKPOINT_RECORD: return "CHECKPOINT";
+        case TUPLE_INSERT_RECORD: return "TUPLE_INSERT";
+        case TUPLE_DELETE_RECORD: return "TUPLE_DELETE";
+        case COMPENSATION_RECORD: return "COMPENSATION";
+        default: return "UNKNOWN(" + type + ")";
+        }
+    }
+
+    /** Force the log to disk up to and including the record at lsn,
+        unless it is there already.  With group commit, the force is
+        shared with the commits and other page writes waiting at the same
+        time.
+    */
+    public void forceTo(long lsn) throws IOException {
+        if (lsn == NO_LSN) {
+            return;
+        }
+        if (groupCommit) {
+            awaitForce(lsn);
+            return;
+        }
+        synchronized (this) {
+            if (lsn >= forcedOffset) {
+                force();
+            }
+        }
+    }
+
+    /** Force the log to disk, unless nothing has been appended since
+        the last force.
+    */
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        if (forcedOffset == currentOffset) {
+            return;
+        }
+        flushBuffer();
+        tail.getChannel().force(true);
+        forcedOffset = currentOffset;
+        synchronized (forceLock) {
+            totalForces++;
+            durableOffset = Math.max(durableOffset, currentOffset);
+            forceLock.notifyAll();
+        }
     }
 
 }
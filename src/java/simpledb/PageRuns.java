@@ -0,0 +1,53 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/**
+ * Writes a batch of pages to one file with as few writes as possible: the
+ * pages are sorted by offset, and each run of pages at adjacent offsets
+ * goes to disk in a single gathering write.
+ */
+class PageRuns {
+
+    private PageRuns() {
+    }
+
+    /**
+     * Writes pages to channel.  Uses the channel's position, so the caller
+     * must keep anyone else from using the position meanwhile.
+     *
+     * @param offsetOf the offset of a page in the file
+     * @return the number of runs written
+     */
+    static int write(FileChannel channel, List<? extends Page> pages, ToLongFunction<PageId> offsetOf)
+            throws IOException {
+        final List<Page> sorted = new ArrayList<Page>(pages);
+        sorted.sort(Comparator.comparingLong(p -> offsetOf.applyAsLong(p.getId())));
+        int runs = 0;
+        int i = 0;
+        while (i < sorted.size()) {
+            final long start = offsetOf.applyAsLong(sorted.get(i).getId());
+            final List<ByteBuffer> run = new ArrayList<ByteBuffer>();
+            long end = start;
+            while (i < sorted.size() && offsetOf.applyAsLong(sorted.get(i).getId()) == end) {
+                final byte[] data = sorted.get(i).getPageData();
+                run.add(ByteBuffer.wrap(data));
+                end += data.length;
+                i++;
+            }
+            final ByteBuffer[] buffers = run.toArray(new ByteBuffer[run.size()]);
+            channel.position(start);
+            for (long remaining = end - start; remaining > 0; ) {
+                remaining -= channel.write(buffers);
+            }
+            runs++;
+        }
+        return runs;
+    }
+}
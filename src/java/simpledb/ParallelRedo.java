@@ -0,0 +1,125 @@
+package simpledb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Redoes logged changes on a pool of threads.  Each change goes to the
+ * thread its page hashes to, which applies the changes it is given in
+ * order, so every page sees its changes in log order while different
+ * pages are redone at once.  The log is read on the caller's thread; the
+ * queues are bounded, so it never gets far ahead of the workers.
+ *
+ * @Threadsafe, submit and finish are called from one thread; the workers
+ *   share only their queues and the first failure
+ */
+class ParallelRedo {
+    /** A change to redo. */
+    interface Change {
+        void apply() throws IOException;
+    }
+
+    private static final int QUEUE_SIZE = 256;
+    /** tells a worker that no more changes are coming */
+    private static final Change DONE = () -> { };
+
+    private final Worker[] workers;
+    private volatile IOException failure;
+
+    ParallelRedo(int threads) {
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queues change, to pid, behind the changes to pid submitted before
+     * it.
+     *
+     * @throws IOException if a change has failed to apply
+     */
+    void submit(PageId pid, Change change) throws IOException {
+        checkFailure();
+        put(workers[workerOf(pid)], change);
+    }
+
+    private int workerOf(PageId pid) {
+        // B+tree page ids keep the page category in the low bits of their
+        // hash, so the high bits are mixed down before the remainder
+        final int h = pid.hashCode() * 0x9E3779B9;
+        return Math.floorMod(h ^ (h >>> 16), workers.length);
+    }
+
+    /**
+     * Waits for every change submitted to be applied, and stops the
+     * workers.
+     *
+     * @throws IOException if a change has failed to apply
+     */
+    void finish() throws IOException {
+        for (Worker worker : workers) {
+            put(worker, DONE);
+        }
+        for (Worker worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for redo");
+            }
+        }
+        checkFailure();
+    }
+
+    private void put(Worker worker, Change change) throws IOException {
+        try {
+            worker.queue.put(change);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted queueing redo");
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("redo failed", failure);
+        }
+    }
+
+    private class Worker extends Thread {
+        final BlockingQueue<Change> queue = new ArrayBlockingQueue<Change>(QUEUE_SIZE);
+
+        Worker(int i) {
+            super("simpledb-redo-" + i);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Change change;
+                try {
+                    change = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (change == DONE) {
+                    return;
+                }
+                // after a failure the rest are only drained, so that the
+                // reader is not left blocked on a full queue
+                if (failure == null) {
+                    try {
+                        change.apply();
+                    } catch (IOException | RuntimeException e) {
+                        failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -272,6 +272,13 @@ public class Parser {
 
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
+    private boolean asyncCommit = false;
+
+    private void beginTransaction() {
+        curtrans = new Transaction();
+        curtrans.setAsyncCommit(asyncCommit);
+        curtrans.start();
+    }
 
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
@@ -453,8 +460,7 @@ public class Parser {
             if (curtrans != null)
                 throw new simpledb.ParsingException(
                         "Can't start new transactions until current transaction has been committed or rolledback.");
-            curtrans = new Transaction();
-            curtrans.start();
+            beginTransaction();
             inUserTrans = true;
             System.out.println("Started a new transaction tid = "
                     + curtrans.getId().getId());
@@ -511,8 +517,7 @@ public class Parser {
                 handleTransactStatement((ZTransactStmt) s);
             else {
                 if (!this.inUserTrans) {
-                    curtrans = new Transaction();
-                    curtrans.start();
+                    beginTransaction();
                     System.out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
                 }
@@ -585,7 +590,7 @@ public class Parser {
 
     public static void main(String argv[]) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 5) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -595,10 +600,15 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-asynccommit] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
+        try {
+            Database.saveHotPages();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         System.out.println("Bye");
     }
 
@@ -607,6 +617,7 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
+        Database.warmUp();
         TableStats.computeStatistics();
 
         String queryFile = null;
@@ -616,6 +627,9 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-asynccommit")) {
+                    asyncCommit = true;
+                    System.out.println("Asynchronous commit enabled.");
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
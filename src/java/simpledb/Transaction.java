@@ -9,15 +9,31 @@ import java.io.*;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
+    private volatile boolean asyncCommit = false;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly if true, the transaction reads a snapshot of the
+     *   database as of its start, without taking locks or writing the log,
+     *   and may not write
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly) {
+            Database.getBufferPool().beginSnapshot(tid);
+            return;
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -29,6 +45,27 @@ public class Transaction {
         return tid;
     }
 
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Lets commit return before the commit record is on disk.  The log is
+     * forced shortly after, so a crash may lose the commit, but then
+     * recovery rolls the transaction back as a whole: a page written
+     * before the commit record is on disk has the log forced up to its
+     * changes first, and those are undone.
+     *
+     * @see LogFile#logCommit(TransactionId, boolean)
+     */
+    public void setAsyncCommit(boolean asyncCommit) {
+        this.asyncCommit = asyncCommit;
+    }
+
+    public boolean isAsyncCommit() {
+        return asyncCommit;
+    }
+
     /** Finish the transaction */
     public void commit() throws IOException {
         transactionComplete(false);
@@ -42,18 +79,31 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
+        if (started && readOnly) {
+            //nothing to write or undo: just end the snapshot
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            started = false;
+            return;
+        }
+
         if (started) {
             //write commit / abort records
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
-                Database.getLogFile().logCommit(tid);
+                //log the dirty pages for this transaction; they are
+                //written later, as recovery can redo them from the log
+                Database.getBufferPool().logDirtyPages(tid);
+                Database.getLogFile().logCommit(tid, asyncCommit);
             }
 
             try {
-                Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+                // release locks
+                if (abort) {
+                    Database.getBufferPool().transactionComplete(tid, false);
+                } else {
+                    Database.getBufferPool().commitLogged(tid);
+                }
             } catch (IOException e) {
                 e.printStackTrace();
             }
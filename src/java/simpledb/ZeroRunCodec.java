@@ -0,0 +1,105 @@
+package simpledb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Compresses bytes by their runs of zeros, which is most of what a log
+ * record of a page holds: unused slots, and string fields padded to their
+ * full length.  The encoding is the length of the input, then pairs of a
+ * count of literal bytes, those bytes, and a count of zeros, up to the
+ * end of the input.  Lengths and counts are varints: seven bits a byte,
+ * low bits first, with the top bit set on every byte but the last.
+ * Runs of fewer than MIN_RUN zeros stay in the literals, where they cost
+ * no more than the counts would.
+ */
+class ZeroRunCodec {
+    private static final int MIN_RUN = 4;
+
+    private ZeroRunCodec() {
+    }
+
+    /** @return the encoding of data[0, length) */
+    static byte[] compress(byte[] data, int length) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 4 + 16);
+        writeVarint(out, length);
+        int literal = 0;
+        int i = 0;
+        while (i < length) {
+            int run = 0;
+            while (i + run < length && data[i + run] == 0) {
+                run++;
+            }
+            if (run >= MIN_RUN || (run > 0 && i + run == length)) {
+                writeVarint(out, i - literal);
+                out.write(data, literal, i - literal);
+                writeVarint(out, run);
+                i += run;
+                literal = i;
+            } else {
+                i += Math.max(run, 1);
+            }
+        }
+        if (literal < length) {
+            writeVarint(out, length - literal);
+            out.write(data, literal, length - literal);
+            writeVarint(out, 0);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the bytes encoded in data[0, length)
+     * @throws IOException if data is not an encoding
+     */
+    static byte[] expand(byte[] data, int length) throws IOException {
+        int[] pos = new int[1];
+        int size = readVarint(data, length, pos);
+        byte[] out = new byte[size];
+        int o = 0;
+        while (pos[0] < length) {
+            int literals = readVarint(data, length, pos);
+            if (literals > length - pos[0] || literals > size - o) {
+                throw new IOException("corrupt zero-run encoding");
+            }
+            System.arraycopy(data, pos[0], out, o, literals);
+            pos[0] += literals;
+            o += literals;
+            int zeros = readVarint(data, length, pos);
+            if (zeros > size - o) {
+                throw new IOException("corrupt zero-run encoding");
+            }
+            o += zeros; // the array starts out zeroed
+        }
+        if (o != size) {
+            throw new IOException("corrupt zero-run encoding");
+        }
+        return out;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] data, int length, int[] pos) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (pos[0] >= length) {
+                throw new IOException("corrupt zero-run encoding");
+            }
+            int b = data[pos[0]++];
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new IOException("corrupt zero-run encoding");
+    }
+}
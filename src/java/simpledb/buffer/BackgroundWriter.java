@@ -0,0 +1,113 @@
+package simpledb.buffer;
+
+import java.io.IOException;
+
+/**
+ * A daemon thread that trickles dirty pages of a buffer pool to disk ahead
+ * of eviction.
+ * <p>
+ * Every round sweeps the frames from where the previous round stopped,
+ * writing dirty pages whose transaction has completed, until it has written
+ * maxPagesPerRound pages or looked at every frame once; it then sleeps for
+ * delayMillis.  The two settings bound the write rate the writer adds, at
+ * most maxPagesPerRound pages per delayMillis.  Pages of running
+ * transactions are skipped and left to commit or eviction.  A transaction
+ * that commits through the log leaves its pages dirty, so most pages the
+ * writer finds are committed ones.
+ *
+ * @see BufferPoolManager#startBackgroundWriter(long, int)
+ */
+public class BackgroundWriter extends Thread {
+    private final BufferPoolManager pool;
+    private final long delayMillis;
+    private final int maxPagesPerRound;
+    private final Object sleeper = new Object();
+    private volatile boolean running;
+    private int cursor;
+    private volatile long pagesWritten;
+
+    BackgroundWriter(BufferPoolManager pool, long delayMillis, int maxPagesPerRound) {
+        super("simpledb-bgwriter");
+        if (maxPagesPerRound < 1) {
+            throw new IllegalArgumentException("maxPagesPerRound must be at least 1");
+        }
+        this.pool = pool;
+        this.delayMillis = delayMillis;
+        this.maxPagesPerRound = maxPagesPerRound;
+        this.running = true;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            writeRound();
+            synchronized (sleeper) {
+                if (!running) {
+                    break;
+                }
+                try {
+                    sleeper.wait(delayMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs one round of the sweep.
+     *
+     * @return the number of pages written
+     */
+    int writeRound() {
+        final int frames = pool.getNumPages();
+        int written = 0;
+        if (cursor >= frames) {
+            // the pool has shrunk
+            cursor = 0;
+        }
+        for (int i = 0; i < frames && written < maxPagesPerRound; i++) {
+            final int index = cursor;
+            cursor = (cursor + 1) % frames;
+            try {
+                if (pool.writeBack(index)) {
+                    written++;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        pagesWritten += written;
+        return written;
+    }
+
+    /** @return the total number of pages this writer has written */
+    long getPagesWritten() {
+        return pagesWritten;
+    }
+
+    /** Ends the writer's current sleep, so that it starts its next round. */
+    void wakeUp() {
+        synchronized (sleeper) {
+            sleeper.notifyAll();
+        }
+    }
+
+    /**
+     * Stops the writer and waits for the current round to finish.  The
+     * writer is woken rather than interrupted: an interrupt during a write
+     * would close the file channel.
+     */
+    void shutdown() {
+        synchronized (sleeper) {
+            running = false;
+            sleeper.notifyAll();
+        }
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
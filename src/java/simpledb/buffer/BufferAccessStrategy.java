@@ -0,0 +1,54 @@
+package simpledb.buffer;
+
+import simpledb.Page;
+
+/**
+ * A small private ring of buffer pool frames used by one bulk reader, such
+ * as a sequential scan of a table that is larger than the pool.
+ * <p>
+ * When the reader misses, the buffer pool first tries to reuse the frame the
+ * reader filled ring-size misses ago, and only takes a victim from the shared
+ * replacer if that frame has been evicted, re-dirtied or replaced meanwhile.
+ * A scan therefore occupies at most a ring's worth of frames and leaves the
+ * rest of the pool's working set alone.
+ * <p>
+ * A strategy belongs to a single iterator and is not thread-safe.
+ *
+ * @see BufferPoolManager#getScanStrategy(int)
+ */
+public class BufferAccessStrategy {
+    /** Largest ring handed out, in pages. */
+    static final int MAX_RING_PAGES = 16;
+
+    private final int[] frames;
+    private final Page[] pages;
+    private int current;
+
+    BufferAccessStrategy(int ringPages) {
+        this.frames = new int[ringPages];
+        this.pages = new Page[ringPages];
+        this.current = 0;
+    }
+
+    /** @return the number of frames in this ring */
+    public int size() {
+        return frames.length;
+    }
+
+    /** @return the page this ring put into the frame it will reuse next, or null */
+    Page nextPage() {
+        return pages[current];
+    }
+
+    /** @return the frame this ring will reuse next, valid if nextPage() is not null */
+    int nextFrame() {
+        return frames[current];
+    }
+
+    /** Records that the ring's current slot now holds page in frame index. */
+    void add(int index, Page page) {
+        frames[current] = index;
+        pages[current] = page;
+        current = (current + 1) % frames.length;
+    }
+}
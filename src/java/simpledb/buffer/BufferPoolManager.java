@@ -5,9 +5,26 @@ import simpledb.*;
 import java.io.*;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * BufferPoolManager manages the reading and writing of pages into memory from
@@ -17,8 +34,51 @@ import java.util.Map;
  * The BufferPoolManager is also responsible for locking;  when a transaction fetches
  * a page, BufferPoolManager checks that the transaction has the appropriate
  * locks to read/write the page.
- * 
- * @Threadsafe, all fields are final
+ * <p>
+ * The page table is a concurrent hash map, so a lookup for a resident page
+ * never blocks. Misses are serialized per partition (the hash of the PageId
+ * picks one of {@link #PARTITIONS} locks), so two threads missing on the
+ * same page read it only once while misses on other partitions proceed in
+ * parallel. Replacers are thread-safe on their own; with
+ * {@link ReplacementPolicy#CLOCK} a hit only sets a reference bit.  A miss
+ * claims a frame (evicting under the victim's partition lock) before it
+ * takes its own partition lock, so no thread ever holds two partition locks.
+ * <p>
+ * Callers that keep using a page across other buffer pool calls, such as an
+ * iterator reading its current page, fetch it with {@link #pinPage} and
+ * release it with {@link #unpinPage}.  A frame with a non-zero pin count is
+ * never evicted: a pinned victim goes back to the replacer as if it had just
+ * been used, and another victim is chosen.
+ * <p>
+ * The number of frames can be changed while the pool is in use with
+ * {@link #resize(int)}.  Frames and pin counts live in arrays that only
+ * grow, and are replaced, together with the replacer, while holding every
+ * partition lock; lock-free readers check frame indexes against the array
+ * they read.  Frames past the current size are retired, not freed.
+ * <p>
+ * Pages can be read ahead with {@link #prefetchPage(PageId)}: a background
+ * I/O thread reads them from disk, and the miss that later asks for one of
+ * them takes the page read ahead instead of reading it again.  Pages read
+ * ahead are held outside the frames until then, and are dropped whenever
+ * the buffer pool writes or discards the page, so they are never stale.
+ * <p>
+ * A {@link BackgroundWriter} can be started to write dirty pages out ahead
+ * of eviction, so that a miss rarely has to write its victim first.  It only
+ * writes pages whose dirtying transaction has completed: pages dirtied by a
+ * running transaction must not reach disk before it commits.  Without one,
+ * checkpoints write those pages through {@link #writeCompletedPages()}.
+ * <p>
+ * A buffer pool can also be given an off-heap {@link FrameArena}.  Its frames
+ * then act as a small on-heap tier of deserialized pages over a large arena
+ * of page images: evicted pages are kept in the arena, and misses read from
+ * disk into it, so a big pool does not mean a big heap.
+ * <p>
+ * The pages a pool holds can be listed with {@link #getHotPages()}, saved
+ * with {@link HotPages}, and loaded into a fresh pool with
+ * {@link #warmUp(List)} so that a restart does not begin with a cold cache.
+ *
+ * @Threadsafe, pages, pinCounts and replacer change only while holding every
+ *   partition lock, and writer is guarded by this
  */
 public class BufferPoolManager {
     /** Bytes per page, including header. */
@@ -30,40 +90,337 @@ public class BufferPoolManager {
     other classes. BufferPoolManager should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
-    private final Page[] pages;
-    private final Map<PageId, Integer> pageTable;
-    private final LinkedList<Integer> freePageIndex;
-    private LRUReplacer<PageId> lruReplacer;
 
+    /** Number of partitions the page table is striped into; must be a power of two. */
+    static final int PARTITIONS = 64;
+
+    /** Returned by evictPage() when the victim it was given is pinned. */
+    private static final int PINNED = -1;
+
+    private volatile AtomicReferenceArray<Page> pages;
+    private volatile AtomicIntegerArray pinCounts;
+    private final ConcurrentHashMap<PageId, Integer> pageTable;
+    private final ConcurrentLinkedQueue<Integer> freePageIndex;
+    /** frames at or above numFrames that nobody uses */
+    private final ConcurrentLinkedQueue<Integer> retiredFrames;
+    /** number of frames in use; the arrays can be longer after a shrink */
+    private volatile int numFrames;
+    private final ReentrantLock[] partitionLocks;
+    private final ReplacementPolicy policy;
+    private volatile Replacer<PageId> replacer;
+    /** serializes resize() calls */
+    private final Object resizeLock = new Object();
+    /** off-heap page images below the frames, or null */
+    private final FrameArena arena;
+    private final ConcurrentHashMap<PageId, FutureTask<Page>> prefetched;
+    /** page locks of the transactions using this pool */
+    private final LockManager lockManager;
+    /** committed page versions for transactions that read a snapshot */
+    private final VersionStore versions;
+    /** transactions that requested a page READ_WRITE and have not completed */
+    private final Set<TransactionId> activeWriters;
+    /** number of dirty victims evictPage() had to write itself */
+    private final AtomicLong evictionWrites;
+    /** number of writes issued by flushes, one per run of adjacent pages */
+    private final AtomicLong flushWrites;
     /**
-     * Creates a BufferPoolManager that caches up to numPages pages.
+     * per table id, held while the table's pages are written, so that two
+     * writes of a page land in the order their images were taken
+     */
+    private final ConcurrentHashMap<Integer, ReentrantLock> fileLocks;
+    private BackgroundWriter writer;
+
+    /** Reads pages ahead for every buffer pool; a daemon, so it never blocks exit. */
+    private static final ExecutorService prefetchExecutor =
+            Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "simpledb-prefetch");
+                t.setDaemon(true);
+                return t;
+            });
+
+    /**
+     * Creates a BufferPoolManager that caches up to numPages pages, replacing
+     * pages by CLOCK, whose hits take no lock.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPoolManager(int numPages) {
-        this.pages = new Page[numPages];
-        this.pageTable = new HashMap<>();
-        this.freePageIndex = new LinkedList<>();
-        this.lruReplacer = new LRUReplacer<>();
-        for (int i = 0; i < pages.length; i++) {
-            freePageIndex.push(i);
+        this(numPages, ReplacementPolicy.CLOCK);
+    }
+
+    /**
+     * Creates a BufferPoolManager that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the policy used to choose pages to evict
+     */
+    public BufferPoolManager(int numPages, ReplacementPolicy policy) {
+        this(numPages, policy, 0);
+    }
+
+    /**
+     * Creates a BufferPoolManager that caches up to numPages pages on the
+     * heap and up to arenaPages more page images off the heap.
+     *
+     * @param numPages maximum number of deserialized pages in this buffer pool.
+     * @param policy the policy used to choose pages to evict
+     * @param arenaPages number of frames in the off-heap arena, 0 for none
+     */
+    public BufferPoolManager(int numPages, ReplacementPolicy policy, int arenaPages) {
+        this.pages = new AtomicReferenceArray<>(numPages);
+        this.pinCounts = new AtomicIntegerArray(numPages);
+        this.pageTable = new ConcurrentHashMap<>(numPages, 0.75f, PARTITIONS);
+        this.freePageIndex = new ConcurrentLinkedQueue<>();
+        this.retiredFrames = new ConcurrentLinkedQueue<>();
+        this.numFrames = numPages;
+        this.partitionLocks = new ReentrantLock[PARTITIONS];
+        this.policy = policy;
+        this.replacer = policy.newReplacer(numPages);
+        this.arena = arenaPages > 0 ? new FrameArena(arenaPages, getPageSize()) : null;
+        this.prefetched = new ConcurrentHashMap<>();
+        this.lockManager = new LockManager();
+        this.versions = new VersionStore();
+        this.activeWriters = ConcurrentHashMap.newKeySet();
+        this.evictionWrites = new AtomicLong();
+        this.flushWrites = new AtomicLong();
+        this.fileLocks = new ConcurrentHashMap<>();
+        for (int i = 0; i < partitionLocks.length; i++) {
+            partitionLocks[i] = new ReentrantLock();
+        }
+        for (int i = 0; i < numPages; i++) {
+            freePageIndex.add(i);
         }
     }
-    
+
     public static int getPageSize() {
       return pageSize;
     }
-    
+
     // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
     public static void setPageSize(int pageSize) {
     	BufferPoolManager.pageSize = pageSize;
     }
-    
+
     // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
     public static void resetPageSize() {
     	BufferPoolManager.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    /** @return the maximum number of pages this buffer pool caches */
+    public int getNumPages() {
+        return numFrames;
+    }
+
+    /**
+     * Changes the number of frames in this buffer pool while it is in use.
+     * <p>
+     * Growing keeps every cached page and adds empty frames.  Shrinking
+     * first evicts the pages the replacer would evict anyway, one at a time
+     * and without stopping other threads, until the remaining pages fit.
+     * Then, while holding every partition lock, it moves the pages left in
+     * frames above the new size into free frames below it.  Either way the
+     * replacer is rebuilt for the new size, with the cached pages inserted
+     * from the coldest to the hottest.
+     * <p>
+     * Frames above the new size are retired rather than freed: misses never
+     * use them, and a later resize revives them.  The frame arrays only ever
+     * grow, so a frame index always names the same frame.
+     *
+     * @param numPages the new number of frames, at least 1
+     * @throws DbException if too many pages are pinned to shrink to numPages;
+     *   the pool then keeps its current size
+     */
+    public void resize(int numPages) throws DbException {
+        if (numPages < 1) {
+            throw new IllegalArgumentException("a buffer pool needs at least one frame");
+        }
+        synchronized (resizeLock) {
+            final int oldSize = this.numFrames;
+            if (numPages == oldSize) {
+                return;
+            }
+            if (numPages < oldSize) {
+                // from here on, misses retire the frames that are going away
+                this.numFrames = numPages;
+                // shed the coldest pages online; whatever concurrent misses
+                // bring back in is evicted below
+                for (int i = 0; i < oldSize && this.pageTable.size() > numPages; i++) {
+                    final Integer index = evictPage();
+                    if (index != null && index != PINNED) {
+                        releaseFrame(index);
+                    }
+                }
+            }
+            lockAll();
+            try {
+                if (numPages < oldSize) {
+                    try {
+                        vacateFrames(numPages, oldSize);
+                    } catch (DbException e) {
+                        this.numFrames = oldSize;
+                        reviveFrames();
+                        throw e;
+                    }
+                } else {
+                    if (numPages > pages.length()) {
+                        final int length = pages.length();
+                        final AtomicReferenceArray<Page> newPages = new AtomicReferenceArray<>(numPages);
+                        final AtomicIntegerArray newPins = new AtomicIntegerArray(numPages);
+                        for (int i = 0; i < length; i++) {
+                            newPages.set(i, pages.get(i));
+                            newPins.set(i, pinCounts.get(i));
+                        }
+                        this.pages = newPages;
+                        this.pinCounts = newPins;
+                        for (int i = length; i < numPages; i++) {
+                            this.retiredFrames.add(i);
+                        }
+                    }
+                    this.numFrames = numPages;
+                    reviveFrames();
+                }
+                rebuildReplacer(numPages);
+            } finally {
+                unlockAll();
+            }
+        }
+    }
+
+    /**
+     * Evicts pages until at most numPages are resident and moves the pages
+     * in frames at or above numPages below it.  Called by resize() with
+     * every partition lock held.
+     */
+    private void vacateFrames(int numPages, int oldSize) throws DbException {
+        int failures = 0;
+        while (this.pageTable.size() > numPages) {
+            final Integer index = evictPage();
+            if (index == null || index == PINNED) {
+                if (++failures > oldSize) {
+                    throw new DbException("cannot shrink the buffer pool to "
+                            + numPages + " pages: too many pages are pinned");
+                }
+            } else {
+                releaseFrame(index);
+            }
+        }
+        for (int i = numPages; i < pages.length(); i++) {
+            final Page page = pages.get(i);
+            if (page == null) {
+                continue;
+            }
+            final Integer j = takeFreeFrame(numPages);
+            if (j == null) {
+                // every frame below numPages is taken, some by misses
+                // waiting for a partition lock: drop the page instead
+                this.replacer.erase(page.getId());
+                final Integer evicted = evict(page.getId());
+                if (evicted != null && evicted == PINNED) {
+                    throw new DbException("cannot shrink the buffer pool to "
+                            + numPages + " pages: too many pages are pinned");
+                }
+                if (evicted != null) {
+                    releaseFrame(evicted);
+                }
+                continue;
+            }
+            pages.set(j, page);
+            pinCounts.set(j, pinCounts.get(i));
+            this.pageTable.put(page.getId(), j);
+            pages.set(i, null);
+            pinCounts.set(i, 0);
+            releaseFrame(i);
+        }
+        for (Integer index : this.freePageIndex) {
+            if (index >= numPages && this.freePageIndex.remove(index)) {
+                releaseFrame(index);
+            }
+        }
+    }
+
+    /**
+     * Takes a frame below limit off the free list, evicting the replacer's
+     * victim if there is none.  Called by resize() with every partition
+     * lock held.
+     *
+     * @return the frame, or null if none below limit could be freed
+     */
+    private Integer takeFreeFrame(int limit) throws DbException {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            for (Integer index : this.freePageIndex) {
+                if (index < limit && this.freePageIndex.remove(index)) {
+                    return index;
+                }
+            }
+            final PageId victim = this.replacer.victim();
+            if (victim == null) {
+                return null;
+            }
+            final Integer index = evict(victim);
+            if (index != null && index != PINNED) {
+                releaseFrame(index);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a frame nobody uses to the free list, or retires it if it is
+     * at or above the current number of frames.
+     */
+    private void releaseFrame(int index) {
+        if (index < this.numFrames) {
+            this.freePageIndex.add(index);
+            return;
+        }
+        this.retiredFrames.add(index);
+        // a concurrent resize may have revived frames before this one retired
+        if (index < this.numFrames && this.retiredFrames.remove(index)) {
+            this.freePageIndex.add(index);
+        }
+    }
+
+    /** Moves the retired frames below the current number of frames to the free list. */
+    private void reviveFrames() {
+        for (Integer index : this.retiredFrames) {
+            if (index < this.numFrames && this.retiredFrames.remove(index)) {
+                this.freePageIndex.add(index);
+            }
+        }
+    }
+
+    /**
+     * Replaces the replacer with one for capacity frames, inserting the
+     * resident pages in the order the old one would have evicted them.
+     * Called by resize() with every partition lock held.
+     */
+    private void rebuildReplacer(int capacity) {
+        final List<PageId> coldestFirst = new ArrayList<>();
+        PageId victim;
+        while ((victim = this.replacer.victim()) != null) {
+            coldestFirst.add(victim);
+        }
+        final Replacer<PageId> newReplacer = policy.newReplacer(capacity);
+        for (PageId pid : coldestFirst) {
+            if (this.pageTable.containsKey(pid)) {
+                newReplacer.insert(pid);
+            }
+        }
+        this.replacer = newReplacer;
+    }
+
+    private void lockAll() {
+        for (ReentrantLock lock : partitionLocks) {
+            lock.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (ReentrantLock lock : partitionLocks) {
+            lock.unlock();
+        }
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -74,6 +431,10 @@ public class BufferPoolManager {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, a page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * A transaction that reads a snapshot takes no lock and gets a private
+     * copy of the page as its snapshot sees it; it may not ask for
+     * READ_WRITE.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
@@ -81,21 +442,528 @@ public class BufferPoolManager {
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId, Permissions)},
+     * reading it into one of the strategy's ring frames on a miss.
+     *
+     * @param strategy the ring of the calling scan, or null for normal access
+     * @see #getScanStrategy(int)
+     */
+    public  Page getPage(TransactionId tid, PageId pid, Permissions perm,
+                         BufferAccessStrategy strategy)
+        throws TransactionAbortedException, DbException {
+        if (tid != null) {
+            final Long snapshot = this.versions.snapshotOf(tid);
+            if (snapshot != null) {
+                if (perm == Permissions.READ_WRITE) {
+                    throw new DbException("transaction " + tid.getId() + " is read-only");
+                }
+                return readSnapshot(snapshot, pid, strategy);
+            }
+            this.lockManager.acquire(tid, pid, perm);
+            if (perm == Permissions.READ_WRITE) {
+                this.activeWriters.add(tid);
+                final Page page = fetchPage(pid, strategy);
+                claimDirty(tid, page);
+                return page;
+            }
+        }
+        return fetchPage(pid, strategy);
+    }
+
+    /**
+     * Makes tid, which may change page in place from now on, the
+     * transaction that dirtied it, if a completed one did: otherwise the
+     * page could be written with tid's changes as if they were committed.
+     * Done under the partition lock that eviction and the background writer
+     * hold while writing, so a write in progress is not of tid's changes.
+     */
+    private void claimDirty(TransactionId tid, Page page) {
+        final TransactionId dirtier = page.isDirty();
+        if (dirtier == null || dirtier.equals(tid)) {
+            return;
+        }
+        final ReentrantLock lock = partitionLock(page.getId());
+        lock.lock();
+        try {
+            if (page.isDirty() != null) {
+                page.markDirty(true, tid);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Looks pid up in the pool, reading it on a miss; takes no lock. */
+    private Page fetchPage(PageId pid, BufferAccessStrategy strategy) throws DbException {
+        Page page = lookupPage(pid);
+        if (page != null) {
+            return page;
+        }
+        // claim a frame before taking the partition lock, so that evicting
+        // never needs a second partition lock
+        final int index = strategy == null ? allocateFrame() : allocateFrame(strategy);
+        final ReentrantLock lock = partitionLock(pid);
+        lock.lock();
+        try {
+            if (index < numFrames) {
+                // another thread may have read the page while we waited
+                page = lookupPage(pid);
+                if (page != null) {
+                    releaseFrame(index);
+                    return page;
+                }
+                final Page readPage;
+                try {
+                    readPage = readPage(pid);
+                } catch (RuntimeException e) {
+                    releaseFrame(index);
+                    throw e;
+                }
+                installPage(index, readPage);
+                if (strategy != null) {
+                    strategy.add(index, readPage);
+                }
+                return readPage;
+            }
+            releaseFrame(index);
+        } finally {
+            lock.unlock();
+        }
+        // the pool shrank while we waited and the frame is gone
+        return fetchPage(pid, strategy);
+    }
+
+    /**
+     * Makes tid, which must not have read or written any page yet, read a
+     * snapshot of the database as of now until it completes.
+     *
+     * @see #getPage(TransactionId, PageId, Permissions)
+     */
+    public void beginSnapshot(TransactionId tid) {
+        this.versions.beginSnapshot(tid);
+    }
+
+    /**
+     * @return a copy of the version of pid that a snapshot taken at
+     *   snapshot sees; the committed version of the resident page unless a
+     *   later commit has replaced it
+     */
+    private Page readSnapshot(long snapshot, PageId pid, BufferAccessStrategy strategy)
+        throws TransactionAbortedException, DbException {
+        while (true) {
+            final long at = this.versions.committedAt(pid);
+            if (at > snapshot) {
+                return this.versions.versionAt(pid, snapshot);
+            }
+            Page image = this.versions.stolenImage(pid);
+            if (image == null) {
+                image = getPage(null, pid, Permissions.READ_ONLY, strategy).getBeforeImage();
+                if (this.versions.stolenImage(pid) != null) {
+                    // written uncommitted meanwhile; the copy read may be it
+                    continue;
+                }
+            }
+            // a commit sets the page's timestamp before its before image
+            if (this.versions.committedAt(pid) == at) {
+                return image;
+            }
+        }
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId, Permissions)}
+     * and pin it: the page is not evicted until a matching call to
+     * {@link #unpinPage(PageId)}.
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return pinPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve and pin the specified page, reading it into one of the
+     * strategy's ring frames on a miss.
+     *
+     * @param strategy the ring of the calling scan, or null for normal access
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm,
+                        BufferAccessStrategy strategy)
+        throws TransactionAbortedException, DbException {
+        while (true) {
+            final Page read = getPage(tid, pid, perm, strategy);
+            if (tid != null && this.versions.snapshotOf(tid) != null) {
+                // a private copy, which no frame holds
+                return read;
+            }
+            // pins change under the partition lock, which eviction holds
+            // while it checks the pin count and clears the frame
+            final ReentrantLock lock = partitionLock(pid);
+            lock.lock();
+            try {
+                final Page page = lookupResident(pid);
+                if (page != null) {
+                    this.pinCounts.incrementAndGet(this.pageTable.get(pid));
+                    return page;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Releases one pin of the specified page taken by pinPage().  Does
+     * nothing if the page has been discarded meanwhile.
+     */
+    public void unpinPage(PageId pid) {
+        final ReentrantLock lock = partitionLock(pid);
+        lock.lock();
+        try {
+            if (lookupResident(pid) != null) {
+                final int index = this.pageTable.get(pid);
+                if (this.pinCounts.get(index) > 0) {
+                    this.pinCounts.decrementAndGet(index);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases a pin taken by pinPage() on behalf of tid.  Pages read by a
+     * snapshot are not pinned, so nothing is released for them.
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        if (tid == null || this.versions.snapshotOf(tid) == null) {
+            unpinPage(pid);
+        }
+    }
+
+    /** @return the number of pins held on the specified page, 0 if it is not resident */
+    public int getPinCount(PageId pid) {
+        final Integer index = this.pageTable.get(pid);
+        return index == null ? 0 : this.pinCounts.get(index);
+    }
+
+    /**
+     * Returns a ring strategy for a scan over numPages pages, or null if the
+     * scanned file fits in the pool and can be cached like any other data.
+     * A scan that does not fit would only push every other page out and
+     * find its own first pages gone by the time it runs again.
+     *
+     * @param numPages the number of pages the caller is about to read in order
+     */
+    public BufferAccessStrategy getScanStrategy(int numPages) {
+        if (numPages <= getNumPages()) {
+            return null;
+        }
+        return new BufferAccessStrategy(Math.max(1,
+                Math.min(BufferAccessStrategy.MAX_RING_PAGES, getNumPages() / 8)));
+    }
+
+    /**
+     * Starts reading pid from disk on the background I/O thread, unless it is
+     * resident or already being read ahead.  Returns immediately.  Nothing is
+     * read ahead while as many pages as the pool holds are waiting to be used.
+     *
+     * @param pid the ID of a page that is expected to be requested soon
+     * @see ReadAhead
+     */
+    public void prefetchPage(final PageId pid) {
+        if (this.pageTable.containsKey(pid) || this.prefetched.containsKey(pid)
+                || (arena != null && arena.contains(pid))
+                || this.prefetched.size() >= numFrames) {
+            return;
+        }
+        final FutureTask<Page> task = new FutureTask<>(
+                () -> Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid));
+        if (this.prefetched.putIfAbsent(pid, task) == null) {
+            prefetchExecutor.execute(task);
+        }
+    }
+
+    /**
+     * Drops the page read ahead for pid, if any.  Called when the page is
+     * written or discarded, and by read-ahead streams for pages they will
+     * no longer ask for.
+     */
+    public void cancelPrefetch(PageId pid) {
+        final FutureTask<Page> task = this.prefetched.remove(pid);
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * @return the resident pages, hottest first, in the order the replacer
+     *   would evict them last
+     */
+    public List<PageId> getHotPages() {
+        final List<PageId> pids = this.replacer.victimOrder();
+        pids.removeIf(pid -> !this.pageTable.containsKey(pid));
+        Collections.reverse(pids);
+        return pids;
+    }
+
+    /**
+     * Loads pids into free frames on the background I/O thread.  Only the
+     * first getNumPages() entries are used; they are read in file order,
+     * by table and page number, so each file is read front to back.  Pages
+     * that are already resident, or that no longer exist, are skipped.
+     * Warm-up never evicts a page: it stops when no frame is free.
+     *
+     * @param pids the pages to load, hottest first, e.g. from getHotPages()
+     * @return the number of pages loaded, once warm-up has finished
+     */
+    public Future<Integer> warmUp(List<PageId> pids) {
+        final List<PageId> sorted = new ArrayList<>(pids.subList(0, Math.min(pids.size(), numFrames)));
+        sorted.sort(Comparator.comparingInt(PageId::getTableId)
+                .thenComparingInt(PageId::getPageNumber));
+        final FutureTask<Integer> task = new FutureTask<>(() -> {
+            int loaded = 0;
+            for (PageId pid : sorted) {
+                final Boolean read = preloadPage(pid);
+                if (read == null) {
+                    break;
+                }
+                if (read) {
+                    loaded++;
+                }
+            }
+            return loaded;
+        });
+        prefetchExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * Reads pid into a free frame for warmUp().
+     *
+     * @return true if pid was read, false if it was skipped, null if no
+     *   frame is free
+     */
+    private Boolean preloadPage(PageId pid) {
+        final ReentrantLock lock = partitionLock(pid);
+        lock.lock();
+        try {
+            if (this.pageTable.containsKey(pid)) {
+                return false;
+            }
+            Integer index;
+            while ((index = this.freePageIndex.poll()) != null && index >= numFrames) {
+                releaseFrame(index);
+            }
+            if (index == null) {
+                return null;
+            }
+            final Page page;
+            try {
+                page = readPage(pid);
+            } catch (RuntimeException e) {
+                // the table was dropped or the file truncated since the save
+                releaseFrame(index);
+                return false;
+            }
+            installPage(index, page);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return the off-heap arena below the frames, or null */
+    public FrameArena getArena() {
+        return arena;
+    }
+
+    /**
+     * Reads pid for a miss: from the arena if it holds the page, else the
+     * copy read ahead if there is one, else from disk (into the arena if
+     * there is one).  A read-ahead still queued is run by the calling thread
+     * rather than waited for.  The caller must hold the partition lock of pid.
+     */
+    private Page readPage(PageId pid) {
+        final DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (arena != null) {
+            try {
+                final Page page = arena.get(pid, file);
+                if (page != null) {
+                    return page;
+                }
+            } catch (IOException e) {
+                arena.invalidate(pid);
+            }
+        }
+        final FutureTask<Page> task = this.prefetched.remove(pid);
+        if (task != null) {
+            task.run();
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | CancellationException e) {
+                // read it again below and let that read report the error
+            }
+        }
+        if (arena != null) {
+            try {
+                final Page page = arena.read(pid, file);
+                if (page != null) {
+                    return page;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return file.readPage(pid);
+    }
+
+    /**
+     * Looks up a resident page without blocking.  The frame a page lives in
+     * can be recycled between reading the page table and reading the frame,
+     * so the frame's content is checked against the requested id.
+     *
+     * @return the cached page, or null if pid is not resident
+     */
+    private Page lookupPage(PageId pid) {
         final Integer idx = this.pageTable.get(pid);
-        if(idx!= null){
-            this.lruReplacer.insert(pid);
-            return this.pages[idx];
+        final AtomicReferenceArray<Page> frames = this.pages;
+        if (idx == null || idx >= frames.length()) {
+            return null;
         }
-        if(freePageIndex.isEmpty()){
-        	this.evictPage();
+        final Page page = frames.get(idx);
+        if (page == null || !page.getId().equals(pid)) {
+            return null;
+        }
+        this.replacer.touch(pid);
+        return page;
+    }
+
+    private ReentrantLock partitionLock(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return partitionLocks[h & (PARTITIONS - 1)];
+    }
+
+    /**
+     * Takes a frame off the free list, evicting a page if there is none.
+     * Must not be called while holding a partition lock.
+     *
+     * @return the index of a frame now owned by the caller
+     */
+    private int allocateFrame() throws DbException {
+        int pinnedVictims = 0;
+        while (true) {
+            Integer index = freePageIndex.poll();
+            if (index == null) {
+                index = this.evictPage();
+                if (index != null && index == PINNED) {
+                    if (++pinnedVictims > numFrames) {
+                        throw new DbException("all pages in the buffer pool are pinned");
+                    }
+                    continue;
+                }
+            }
+            if (index != null) {
+                if (index < numFrames) {
+                    return index;
+                }
+                // the pool has shrunk
+                releaseFrame(index);
+            }
+        }
+    }
+
+    /**
+     * Takes the frame the strategy filled longest ago if it still holds the
+     * clean page the strategy put there, otherwise a frame from allocateFrame().
+     * Must not be called while holding a partition lock.
+     */
+    private int allocateFrame(BufferAccessStrategy strategy) throws DbException {
+        final Page ringPage = strategy.nextPage();
+        if (ringPage != null) {
+            final Integer index = recycleFrame(strategy.nextFrame(), ringPage);
+            if (index != null) {
+                return index;
+            }
+        }
+        return allocateFrame();
+    }
+
+    /**
+     * Evicts page from frame index, unless the frame has been given to
+     * another page or the page is dirty.
+     *
+     * @return index, or null if the frame could not be recycled
+     */
+    private Integer recycleFrame(int index, Page page) {
+        final PageId pid = page.getId();
+        final ReentrantLock lock = partitionLock(pid);
+        lock.lock();
+        try {
+            final Integer current = this.pageTable.get(pid);
+            if (current == null || current != index || index >= numFrames
+                    || pages.get(index) != page || page.isDirty() != null
+                    || this.pinCounts.get(index) > 0) {
+                return null;
+            }
+            this.pageTable.remove(pid);
+            this.replacer.erase(pid);
+            pages.set(index, null);
+            return index;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Puts a page into a frame obtained from allocateFrame().
+     * The caller must hold the partition lock of the page.
+     */
+    private void installPage(int index, Page page) {
+        pages.set(index, page);
+        this.pageTable.put(page.getId(), index);
+        this.replacer.insert(page.getId());
+    }
+
+    /**
+     * Makes page the cached version of its PageId, replacing any version
+     * that is already resident.
+     */
+    private void cachePage(Page page) throws DbException {
+        final PageId pid = page.getId();
+        final ReentrantLock lock = partitionLock(pid);
+        Integer index = null;
+        while (true) {
+            lock.lock();
+            try {
+                if (index != null && index >= numFrames) {
+                    // the pool shrank while we waited and the frame is gone
+                    releaseFrame(index);
+                    index = null;
+                }
+                final Integer idx = this.pageTable.get(pid);
+                if (idx != null) {
+                    pages.set(idx, page);
+                    if (index != null) {
+                        releaseFrame(index);
+                    }
+                    return;
+                }
+                if (index != null) {
+                    installPage(index, page);
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            index = allocateFrame();
         }
-        final Integer index = freePageIndex.pop();
-        final DbFile databaseFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        final Page readPage = databaseFile.readPage(pid);
-        pages[index] = readPage;
-        this.lruReplacer.insert(pid);
-        this.pageTable.put(pid, index);
-        return readPage;
     }
 
     /**
@@ -108,8 +976,9 @@ public class BufferPoolManager {
      * @param pid the ID of the page to unlock
      */
     public  void releasePage(TransactionId tid, PageId pid) {
-        // some code goes here
-        // not necessary for lab1|lab2
+        if (tid != null) {
+            this.lockManager.release(tid, pid);
+        }
     }
 
     /**
@@ -118,40 +987,189 @@ public class BufferPoolManager {
      * @param tid the ID of the transaction requesting the unlock
      */
     public void transactionComplete(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        transactionComplete(tid, true);
+    }
+
+    /**
+     * Locks a whole table for tid, S for READ_ONLY and X for READ_WRITE, so
+     * that its pages need no locks of their own.  Requests with no
+     * transaction, and snapshots, are not locked.
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+        throws TransactionAbortedException {
+        if (tid != null && this.versions.snapshotOf(tid) == null) {
+            this.lockManager.acquireTable(tid, tableId, perm);
+        }
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        // some code goes here
-        // not necessary for lab1|lab2
-        return false;
+        return tid != null && this.lockManager.holdsLock(tid, p);
+    }
+
+    /** @return the lock manager that getPage() acquires table and page locks from */
+    public LockManager getLockManager() {
+        return this.lockManager;
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
+     * <p>
+     * Only the pages the transaction has locked are looked at.  On commit
+     * the ones it dirtied are written, and every one of them takes its
+     * current contents as its before image, the old one being kept while
+     * snapshots that may read it are running.  This is the commit of a
+     * transaction that goes through the buffer pool alone, without a
+     * COMMIT record: nothing of it is in the log, so its pages must be on
+     * disk.  A transaction that logged its commit completes through
+     * {@link #commitLogged(TransactionId)} instead, which leaves them
+     * dirty.  On abort the ones it may
+     * have changed go back to their before images, their committed
+     * versions: writes lock whole pages, so no other transaction can have
+     * changed them since.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        complete(tid, commit, true);
+    }
+
+    /**
+     * Logs the changes tid has made to resident pages that are not logged
+     * as they change, so that its commit record, appended next, covers
+     * all of them without the pages being written.
+     *
+     * @see #commitLogged(TransactionId)
+     */
+    public void logDirtyPages(TransactionId tid) throws IOException {
+        final LogFile log = Database.getLogFile();
+        for (PageId pid : this.lockManager.getLockedPages(tid)) {
+            final Page page = lookupResident(pid);
+            if (page != null && tid.equals(page.isDirty())) {
+                log.logPageWrite(tid, page);
+            }
+        }
+    }
+
+    /**
+     * Commits tid, whose commit record is in the log, like
+     * transactionComplete(tid, true) but without writing the pages it
+     * dirtied: redo can rebuild them from the log, so they stay dirty
+     * for the background writer or eviction to write.
+     *
+     * @see #logDirtyPages(TransactionId)
+     */
+    public void commitLogged(TransactionId tid) throws IOException {
+        complete(tid, true, false);
+    }
+
+    /**
+     * @param write whether a commit writes the pages tid dirtied
+     */
+    private void complete(TransactionId tid, boolean commit, boolean write)
+        throws IOException {
+        try {
+            final List<Page> locked = new ArrayList<>();
+            for (PageId pid : this.lockManager.getLockedPages(tid)) {
+                final Page page = lookupResident(pid);
+                if (page != null) {
+                    locked.add(page);
+                }
+            }
+            if (commit) {
+                if (write) {
+                    flushDirtyPages(locked, dirtier -> dirtier.equals(tid));
+                }
+                // only pages locked exclusively can have changed
+                final List<Page> written = new ArrayList<>();
+                for (Page page : locked) {
+                    if (this.lockManager.holdsExclusive(tid, page.getId())) {
+                        written.add(page);
+                    } else {
+                        page.setBeforeImage();
+                    }
+                }
+                this.versions.commit(written);
+                // pages written and evicted before the commit are
+                // committed on disk now as well
+                for (PageId pid : this.lockManager.getLockedPages(tid)) {
+                    if (this.lockManager.holdsExclusive(tid, pid)) {
+                        this.versions.restored(pid);
+                    }
+                }
+            } else {
+                // pages written before the abort still hold tid's changes
+                // on disk, unless the log has rolled them back already
+                final List<Page> restore = new ArrayList<>();
+                final Set<PageId> restored = new HashSet<>();
+                for (PageId pid : this.lockManager.getLockedPages(tid)) {
+                    final Page committed = this.versions.stolenImage(pid);
+                    if (committed != null && this.lockManager.holdsExclusive(tid, pid)) {
+                        restore.add(committed);
+                        restored.add(pid);
+                    }
+                }
+                if (!restore.isEmpty()) {
+                    Database.getLogFile().logRestore(tid, restore);
+                }
+                // an operation that aborted part way may have changed
+                // pages it had not marked dirty yet
+                for (Page page : locked) {
+                    if (!restored.contains(page.getId()) && (tid.equals(page.isDirty())
+                            || this.lockManager.holdsExclusive(tid, page.getId()))) {
+                        revert(page, tid);
+                    }
+                }
+            }
+        } finally {
+            this.activeWriters.remove(tid);
+            this.lockManager.releaseAll(tid);
+            this.versions.endSnapshot(tid);
+        }
+    }
+
+    /**
+     * Puts the before image of page, which aborting tid may have changed,
+     * in its place.  The page stays dirty if it was, since what is on disk
+     * may not be the committed version.
+     */
+    private void revert(Page page, TransactionId tid) throws IOException {
+        final Page committed = page.getBeforeImage();
+        if (page.isDirty() != null) {
+            committed.markDirty(true, tid);
+        }
+        try {
+            cachePage(committed);
+        } catch (DbException e) {
+            throw new IOException("cannot put back the committed version of " + page.getId(), e);
+        }
+    }
+
+    /**
+     * Makes page, which rollback or recovery has rebuilt from the log, the
+     * cached version of its PageId, dirtied by tid.  Its contents become
+     * its before image.  The page is not locked: the caller holds tid's
+     * exclusive lock on it, or is recovery, which runs alone.
+     */
+    public void restorePage(Page page, TransactionId tid) throws DbException {
+        page.setBeforeImage();
+        page.markDirty(true, tid);
+        cachePage(page);
     }
 
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
-     * acquire a write lock on the page the tuple is added to and any other 
-     * pages that are updated (Lock acquisition is not needed for lab2). 
+     * acquire a write lock on the page the tuple is added to and any other
+     * pages that are updated (Lock acquisition is not needed for lab2).
      * May block if the lock(s) cannot be acquired.
-     * 
+     *
      * Marks any pages that were dirtied by the operation as dirty by calling
-     * their markDirty bit, and adds versions of any pages that have 
-     * been dirtied to the cache (replacing any existing versions of those pages) so 
-     * that future requests see up-to-date pages. 
+     * their markDirty bit, and adds versions of any pages that have
+     * been dirtied to the cache (replacing any existing versions of those pages) so
+     * that future requests see up-to-date pages.
      *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -159,15 +1177,13 @@ public class BufferPoolManager {
      */
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
+        // the file logs the change before it makes it, if the page is
+        // logged by tuple, so no write of the page can get ahead of the log
         final ArrayList<Page> pages = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
-        pages.forEach(it -> {
-            it.markDirty(true, tid);
-            if(!this.pageTable.containsKey(it.getId())){
-                final Integer pop = this.freePageIndex.pop();
-                this.pageTable.put(it.getId(), pop);
-                this.pages[pop] = it;
-            }
-        });
+        for (Page page : pages) {
+            page.markDirty(true, tid);
+            cachePage(page);
+        }
     }
 
     /**
@@ -176,20 +1192,22 @@ public class BufferPoolManager {
      * other pages that are updated. May block if the lock(s) cannot be acquired.
      *
      * Marks any pages that were dirtied by the operation as dirty by calling
-     * their markDirty bit, and adds versions of any pages that have 
-     * been dirtied to the cache (replacing any existing versions of those pages) so 
-     * that future requests see up-to-date pages. 
+     * their markDirty bit, and adds versions of any pages that have
+     * been dirtied to the cache (replacing any existing versions of those pages) so
+     * that future requests see up-to-date pages.
      *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
      */
     public  void deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
-        final ArrayList<Page> pages = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId()).deleteTuple(tid, t);
-        pages.forEach(page ->{
+        // logged by the file, as for insertTuple
+        final RecordId rid = t.getRecordId();
+        final ArrayList<Page> pages = Database.getCatalog().getDatabaseFile(rid.getPageId().getTableId()).deleteTuple(tid, t);
+        for (Page page : pages) {
             page.markDirty(true, tid);
-        });
-
+            cachePage(page);
+        }
     }
 
     /**
@@ -197,10 +1215,16 @@ public class BufferPoolManager {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
-        // some code goes here
-        // not necessary for lab1
+    public void flushAllPages() throws IOException {
+        flushDirtyPages(residentPages(), dirtier -> true);
+    }
 
+    /**
+     * Notes that pid's disk copy is committed again, once the changes an
+     * aborted transaction wrote to it before finishing have been undone.
+     */
+    public void pageRestored(PageId pid) {
+        this.versions.restored(pid);
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -211,12 +1235,24 @@ public class BufferPoolManager {
      Also used by B+ tree files to ensure that deleted pages
      are removed from the cache so they can be reused safely
      */
-    public synchronized void discardPage(PageId pid) {
-    	if(this.pageTable.containsKey(pid)){
-            Integer index = this.pageTable.get(pid);
-            pages[index] = null;
-            this.pageTable.remove(pid);
-            this.freePageIndex.push(index);
+    public void discardPage(PageId pid) {
+        final ReentrantLock lock = partitionLock(pid);
+        lock.lock();
+        try {
+            cancelPrefetch(pid);
+            if (arena != null) {
+                arena.invalidate(pid);
+            }
+            final Integer index = this.pageTable.remove(pid);
+            if (index == null) {
+                return;
+            }
+            this.replacer.erase(pid);
+            pages.set(index, null);
+            this.pinCounts.set(index, 0);
+            releaseFrame(index);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -224,40 +1260,318 @@ public class BufferPoolManager {
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
-        Integer index = this.pageTable.get(pid);
-        if(index == null){
+    private void flushPage(PageId pid) throws IOException {
+        final Page page = lookupResident(pid);
+        if (page == null) {
             return;
         }
-        Page page = pages[index];
-        if(page.isDirty()==null){
-            return;
+        writeIfDirty(page);
+    }
+
+    /** @return the resident page for pid without touching the replacer */
+    private Page lookupResident(PageId pid) {
+        final Integer index = this.pageTable.get(pid);
+        final AtomicReferenceArray<Page> frames = this.pages;
+        if (index == null || index >= frames.length()) {
+            return null;
+        }
+        final Page page = frames.get(index);
+        return page != null && page.getId().equals(pid) ? page : null;
+    }
+
+    /**
+     * Writes page if it is dirty.  The page is left dirty if another
+     * transaction dirtied it while it was being written.
+     *
+     * @return true if the page was written
+     */
+    private boolean writeIfDirty(Page page) throws IOException {
+        final TransactionId dirtier = page.isDirty();
+        if (dirtier == null) {
+            return false;
+        }
+        stealIfUncommitted(page, dirtier);
+        // write-ahead: the log covers the page before it is written
+        final LogFile log = Database.getLogFile();
+        logImage(log, page, dirtier);
+        final long lsn = log.forcePage(page.getId());
+        DbFile databaseFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+        final ReentrantLock lock = fileLock(page.getId().getTableId());
+        lock.lock();
+        try {
+            databaseFile.writePage(page);
+            if (page.isDirty() == dirtier) {
+                page.markDirty(false, null);
+            }
+            log.pageWritten(page.getId(), lsn);
+        } finally {
+            lock.unlock();
+        }
+        cancelPrefetch(page.getId());
+        return true;
+    }
+
+    /**
+     * Logs what the log needs before page, dirtied by dirtier, is written.
+     * Only a running transaction's changes need it: a page whose
+     * transaction has completed was logged at its commit, or rebuilt from
+     * the log by rollback or recovery, and those records cover it.
+     */
+    private void logImage(LogFile log, Page page, TransactionId dirtier) throws IOException {
+        if (this.activeWriters.contains(dirtier)) {
+            log.logPageWrite(dirtier, page);
+        }
+    }
+
+    private ReentrantLock fileLock(int tableId) {
+        return this.fileLocks.computeIfAbsent(tableId, t -> new ReentrantLock());
+    }
+
+    /**
+     * Keeps the committed version of page for snapshots before it is
+     * written, if dirtier has not completed.
+     */
+    private void stealIfUncommitted(Page page, TransactionId dirtier) {
+        if (this.activeWriters.contains(dirtier)) {
+            this.versions.stealing(page);
+        }
+    }
+
+    /**
+     * @return true if page is dirty and may be written before it is evicted,
+     *   i.e. the transaction that dirtied it has completed
+     */
+    private boolean isWritable(Page page) {
+        final TransactionId dirtier = page.isDirty();
+        return dirtier != null && !this.activeWriters.contains(dirtier);
+    }
+
+    /**
+     * Writes the page in frame index if it is dirty and writable, for the
+     * background writer.
+     *
+     * @return true if a page was written
+     */
+    boolean writeBack(int index) throws IOException {
+        final AtomicReferenceArray<Page> frames = this.pages;
+        final Page page = index < frames.length() ? frames.get(index) : null;
+        if (page == null || !isWritable(page)) {
+            return false;
+        }
+        final PageId pid = page.getId();
+        final ReentrantLock lock = partitionLock(pid);
+        lock.lock();
+        try {
+            final Integer current = this.pageTable.get(pid);
+            if (current == null || current != index || index >= pages.length()
+                    || pages.get(index) != page || !isWritable(page)) {
+                return false;
+            }
+            return writeIfDirty(page);
+        } finally {
+            lock.unlock();
         }
-        DbFile databaseFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        databaseFile.writePage(page);
+    }
+
+    /**
+     * Starts a background writer for this buffer pool, replacing any
+     * running one.
+     *
+     * @param delayMillis the pause between two rounds of the writer
+     * @param maxPagesPerRound the most pages written in one round
+     * @see BackgroundWriter
+     */
+    public synchronized void startBackgroundWriter(long delayMillis, int maxPagesPerRound) {
+        stopBackgroundWriter();
+        this.writer = new BackgroundWriter(this, delayMillis, maxPagesPerRound);
+        this.writer.start();
+    }
+
+    /**
+     * Writes out the dirty pages whose transaction has completed.  If a
+     * background writer is running, it is woken to start a round now rather
+     * than after its delay; otherwise the pages are written here, as no one
+     * else would write them before eviction.  Checkpoints call this, since
+     * they leave dirty pages to the buffer pool and the log can only be
+     * truncated up to the oldest of them.
+     *
+     * @return the number of pages written here; 0 if the writer was woken
+     */
+    public int writeCompletedPages() throws IOException {
+        synchronized (this) {
+            if (this.writer != null) {
+                this.writer.wakeUp();
+                return 0;
+            }
+        }
+        int written = 0;
+        for (int i = 0; i < this.pages.length(); i++) {
+            if (writeBack(i)) {
+                written++;
+            }
+        }
+        return written;
+    }
+
+    /** Stops the background writer, if one is running, and waits for it to exit. */
+    public synchronized void stopBackgroundWriter() {
+        if (this.writer != null) {
+            this.writer.shutdown();
+            this.writer = null;
+        }
+    }
+
+    /** @return the number of dirty victims evictPage() had to write itself */
+    long getEvictionWrites() {
+        return this.evictionWrites.get();
+    }
+
+    /** @return the number of writes flushAllPages() and flushPages() issued */
+    long getFlushWrites() {
+        return this.flushWrites.get();
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+    public void flushPages(TransactionId tid) throws IOException {
+        flushDirtyPages(residentPages(), dirtier -> dirtier.equals(tid));
+    }
+
+    /** @return the pages in the frames */
+    private List<Page> residentPages() {
+        final List<Page> resident = new ArrayList<>();
+        final AtomicReferenceArray<Page> frames = this.pages;
+        for (int i = 0; i < frames.length(); i++) {
+            final Page page = frames.get(i);
+            if (page != null) {
+                resident.add(page);
+            }
+        }
+        return resident;
+    }
+
+    /**
+     * Writes those of candidates that are dirty and whose dirtier matches.
+     * The pages are grouped by file and sorted by page number, and each file
+     * gets them in one {@link DbFile#writePages} call, which can merge
+     * adjacent pages into one write and forces the file once.
+     * <p>
+     * Only the file being written is locked, not the buffer pool, so a
+     * commit flushing its own pages never waits for another file's force.
+     */
+    private void flushDirtyPages(List<Page> candidates,
+            java.util.function.Predicate<TransactionId> dirtiedBy) throws IOException {
+        final Map<Integer, List<Page>> byFile = new HashMap<>();
+        final Map<Page, TransactionId> dirtiers = new IdentityHashMap<>();
+        for (Page page : candidates) {
+            final TransactionId dirtier = page.isDirty();
+            if (dirtier == null || !dirtiedBy.test(dirtier)) {
+                continue;
+            }
+            stealIfUncommitted(page, dirtier);
+            byFile.computeIfAbsent(page.getId().getTableId(), t -> new ArrayList<>()).add(page);
+            dirtiers.put(page, dirtier);
+        }
+        // write-ahead: the log covers every page before any is written, in
+        // one force shared with whoever else is forcing the log
+        final LogFile log = Database.getLogFile();
+        final List<PageId> pids = new ArrayList<>();
+        for (Map.Entry<Page, TransactionId> entry : dirtiers.entrySet()) {
+            logImage(log, entry.getKey(), entry.getValue());
+            pids.add(entry.getKey().getId());
+        }
+        final Map<PageId, Long> lsns = log.forcePages(pids);
+        for (Map.Entry<Integer, List<Page>> entry : byFile.entrySet()) {
+            final List<Page> batch = entry.getValue();
+            batch.sort(Comparator.comparingInt(page -> page.getId().getPageNumber()));
+            final ReentrantLock lock = fileLock(entry.getKey());
+            lock.lock();
+            try {
+                final int writes = Database.getCatalog().getDatabaseFile(entry.getKey()).writePages(batch);
+                this.flushWrites.addAndGet(writes);
+                for (Page page : batch) {
+                    // as in writeIfDirty(), a page dirtied again meanwhile stays dirty
+                    if (page.isDirty() == dirtiers.get(page)) {
+                        page.markDirty(false, null);
+                    }
+                    log.pageWritten(page.getId(), lsns.get(page.getId()));
+                }
+            } finally {
+                lock.unlock();
+            }
+            for (Page page : batch) {
+                cancelPrefetch(page.getId());
+            }
+        }
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * <p>
+     * The victim is written before it leaves the page table, so a concurrent
+     * miss on the victim either still finds it resident or reads the flushed
+     * version from disk.
+     *
+     * @return the index of the frame that was freed, null if the victim was
+     *   concurrently discarded, or PINNED if the victim was pinned; in either
+     *   of the latter cases another victim should be chosen
+     */
+    private Integer evictPage() throws DbException {
+        final PageId victim = this.replacer.victim();
+        if (victim == null) {
+            if (this.pageTable.size() < numFrames) {
+                // a frame is free or about to be installed by another miss
+                Thread.yield();
+                return null;
+            }
+            throw new DbException("no page in the buffer pool can be evicted");
+        }
+        return evict(victim);
+    }
+
+    /**
+     * Evicts victim, which the caller has taken out of the replacer, unless
+     * it is pinned.  Takes the victim's partition lock.
+     *
+     * @return as for evictPage()
+     * @throws DbException if the victim is dirty and cannot be written; it
+     *   stays resident, dirty and in the replacer
      */
-    private synchronized  void evictPage() throws DbException {
-        PageId victim = this.lruReplacer.victim();
-        Integer index = this.pageTable.remove(victim);
+    private Integer evict(PageId victim) throws DbException {
+        final ReentrantLock lock = partitionLock(victim);
+        lock.lock();
         try {
-            this.flushPage(victim);
-        } catch (IOException e) {
-            e.printStackTrace();
+            final Integer index = this.pageTable.get(victim);
+            if (index == null) {
+                return null;
+            }
+            if (this.pinCounts.get(index) > 0) {
+                this.replacer.insert(victim);
+                return PINNED;
+            }
+            final Page page = pages.get(index);
+            if (page != null) {
+                try {
+                    if (writeIfDirty(page)) {
+                        this.evictionWrites.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    this.replacer.insert(victim);
+                    throw new DbException("cannot write evicted page " + victim + ": " + e);
+                }
+                if (arena != null) {
+                    arena.put(victim, page.getPageData());
+                }
+            }
+            this.pageTable.remove(victim);
+            // a resize may have put the victim into a new replacer meanwhile
+            this.replacer.erase(victim);
+            pages.set(index, null);
+            return index;
+        } finally {
+            lock.unlock();
         }
-        this.pages[index] = null;
-        this.freePageIndex.add(index);
     }
 
 }
@@ -0,0 +1,363 @@
+package simpledb.buffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * CLOCK-Pro replacement (Jiang, Chen and Zhang, USENIX 2005).
+ * <p>
+ * Values are either hot or cold.  A newly inserted value is cold and in its
+ * test period; if it is referenced again before a hand terminates that test
+ * period it is promoted to hot.  Only cold values are ever victims, and a
+ * victim that is still in its test period is remembered as a non-resident
+ * entry so that a quick re-insert goes straight to hot.  This keeps values
+ * that are touched once (a large scan) from pushing out frequently used ones.
+ * <p>
+ * All entries live on one circular list of slots, walked by three hands:
+ * the cold hand picks victims, the hot hand demotes hot values whose reference
+ * bit is clear, and the test hand retires non-resident entries.  The number of
+ * cold values the replacer aims for adapts to hits on non-resident entries.
+ * Like {@link ClockReplacer}, re-inserting a resident value only sets its
+ * reference bit, without taking the lock.  Each slot's reference word also
+ * counts the times the slot lost its resident value, so a hit whose slot was
+ * freed and reused since it looked the slot up fails to set the bit, and
+ * sees the slot's state as of its last change of owner.
+ */
+
+public class ClockProReplacer<T> implements Replacer<T> {
+	private static final byte FREE = 0;
+	private static final byte HOT = 1;
+	private static final byte COLD = 2;
+	private static final byte NON_RESIDENT = 3;
+
+	private final int capacity;
+	private final Object[] values;
+	private final byte[] state;
+	private final boolean[] test;
+	/** per slot: the reference bit, plus twice the slot's generation */
+	private final AtomicIntegerArray referenced;
+	private final int[] next;
+	private final int[] prev;
+	private final ConcurrentHashMap<T, Integer> slots;
+	private final int[] freeSlots;
+	private int numFree;
+
+	private int handHot = -1;
+	private int handCold = -1;
+	private int handTest = -1;
+
+	private int hotCount;
+	private int coldCount;
+	private int nonResidentCount;
+	private int coldTarget;
+
+	/**
+	 * @param capacity the maximum number of resident values, i.e. the number
+	 *   of frames in the buffer pool.  As many non-resident entries are kept.
+	 */
+	public ClockProReplacer(int capacity) {
+		this.capacity = capacity;
+		final int n = 2 * capacity;
+		this.values = new Object[n];
+		this.state = new byte[n];
+		this.test = new boolean[n];
+		this.referenced = new AtomicIntegerArray(n);
+		this.next = new int[n];
+		this.prev = new int[n];
+		this.slots = new ConcurrentHashMap<>(n);
+		this.freeSlots = new int[n];
+		for (int i = 0; i < n; i++) {
+			freeSlots[i] = n - 1 - i;
+		}
+		this.numFree = n;
+		this.coldTarget = Math.max(1, capacity / 2);
+	}
+
+	@Override
+	public void insert(final T value) {
+		final Integer slot = this.slots.get(value);
+		if(slot != null && reference(slot, value)){
+			return;
+		}
+		admit(value);
+	}
+
+	@Override
+	public void touch(final T value) {
+		final Integer slot = this.slots.get(value);
+		if(slot != null){
+			reference(slot, value);
+		}
+	}
+
+	/**
+	 * Sets the reference bit of slot s if it still holds value, resident.
+	 * The generation read first orders the reads of values and state after
+	 * the last change of owner; the CAS fails if another one happened since.
+	 *
+	 * @return false if value is not resident in s
+	 */
+	private boolean reference(int s, T value) {
+		while(true){
+			final int word = this.referenced.get(s);
+			if(!value.equals(values[s]) || !isResident(s)){
+				return false;
+			}
+			if((word & 1) == 1 ? this.referenced.get(s) == word
+					: this.referenced.compareAndSet(s, word, word | 1)){
+				return true;
+			}
+		}
+	}
+
+	/** @return the reference bit of slot s, which is cleared */
+	private int clearReference(int s) {
+		return this.referenced.getAndUpdate(s, word -> word & ~1) & 1;
+	}
+
+	/**
+	 * Starts a new generation of slot s with its bit clear.  Called after
+	 * the slot gets or loses its resident value, to publish the change.
+	 */
+	private void nextGeneration(int s) {
+		this.referenced.getAndUpdate(s, word -> (word & ~1) + 2);
+	}
+
+	private boolean isResident(int s) {
+		final byte st = state[s];
+		return st == HOT || st == COLD;
+	}
+
+	private synchronized void admit(final T value) {
+		final Integer slot = this.slots.get(value);
+		if(slot != null && reference(slot, value)){
+			return;
+		}
+		if(hotCount + coldCount >= capacity){
+			throw new IllegalStateException("ClockProReplacer is full");
+		}
+		if(slot != null){
+			// re-referenced during its test period: the cold set was too small
+			coldTarget = Math.min(capacity, coldTarget + 1);
+			remove(slot);
+			final int s = allocate(value, HOT);
+			hotCount++;
+			linkAtHead(s);
+			while(hotCount > capacity - coldTarget && hotCount > 0){
+				runHandHot();
+			}
+		}else{
+			final int s = allocate(value, COLD);
+			test[s] = true;
+			coldCount++;
+			linkAtHead(s);
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public synchronized T victim() {
+		while(hotCount + coldCount > 0){
+			if(coldCount == 0){
+				runHandHot();
+				continue;
+			}
+			final int s = handCold;
+			handCold = next[s];
+			if(state[s] != COLD){
+				continue;
+			}
+			if(clearReference(s) == 1){
+				if(test[s]){
+					// re-referenced during its test period: promote
+					test[s] = false;
+					state[s] = HOT;
+					coldCount--;
+					hotCount++;
+					moveToHead(s);
+					while(hotCount > capacity - coldTarget && hotCount > 0){
+						runHandHot();
+					}
+				}else{
+					test[s] = true;
+					moveToHead(s);
+				}
+				continue;
+			}
+			final T value = (T) values[s];
+			coldCount--;
+			if(test[s]){
+				state[s] = NON_RESIDENT;
+				nextGeneration(s);
+				nonResidentCount++;
+				while(nonResidentCount > capacity){
+					runHandTest();
+				}
+			}else{
+				remove(s);
+			}
+			return value;
+		}
+		return null;
+	}
+
+	/** Demote one hot value to cold, terminating test periods on the way. */
+	private void runHandHot() {
+		while(hotCount > 0){
+			final int s = handHot;
+			handHot = next[s];
+			if(state[s] == HOT){
+				if(clearReference(s) == 0){
+					state[s] = COLD;
+					test[s] = false;
+					hotCount--;
+					coldCount++;
+					return;
+				}
+			}else{
+				terminateTest(s);
+			}
+		}
+	}
+
+	/** Retire one non-resident entry, terminating test periods on the way. */
+	private void runHandTest() {
+		while(nonResidentCount > 0){
+			final int s = handTest;
+			handTest = next[s];
+			final boolean wasNonResident = state[s] == NON_RESIDENT;
+			terminateTest(s);
+			if(wasNonResident){
+				return;
+			}
+		}
+	}
+
+	private void terminateTest(int s) {
+		if(state[s] == NON_RESIDENT){
+			remove(s);
+			coldTarget = Math.max(1, coldTarget - 1);
+		}else if(state[s] == COLD && test[s]){
+			test[s] = false;
+			coldTarget = Math.max(1, coldTarget - 1);
+		}
+	}
+
+	@Override
+	public synchronized boolean erase(final T value) {
+		final Integer slot = this.slots.get(value);
+		if(slot == null){
+			return false;
+		}
+		final byte st = state[slot];
+		remove(slot);
+		if(st == HOT){
+			hotCount--;
+		}else if(st == COLD){
+			coldCount--;
+		}else{
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized int size() {
+		return hotCount + coldCount;
+	}
+
+	/**
+	 * Cold values whose bit is clear, in the order the cold hand reaches
+	 * them, then the other cold values, then the hot values.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public synchronized List<T> victimOrder() {
+		final List<T> order = new ArrayList<>(hotCount + coldCount);
+		if(handCold == -1){
+			return order;
+		}
+		final List<T> coldReferenced = new ArrayList<>();
+		final List<T> hot = new ArrayList<>();
+		int s = handCold;
+		do{
+			if(state[s] == COLD){
+				if((this.referenced.get(s) & 1) == 0){
+					order.add((T) values[s]);
+				}else{
+					coldReferenced.add((T) values[s]);
+				}
+			}else if(state[s] == HOT){
+				hot.add((T) values[s]);
+			}
+			s = next[s];
+		}while(s != handCold);
+		order.addAll(coldReferenced);
+		order.addAll(hot);
+		return order;
+	}
+
+	private int allocate(T value, byte st) {
+		final int s = freeSlots[--numFree];
+		values[s] = value;
+		state[s] = st;
+		test[s] = false;
+		nextGeneration(s);
+		this.slots.put(value, s);
+		return s;
+	}
+
+	/** Drops a slot entirely; the caller adjusts the hot/cold counts. */
+	private void remove(int s) {
+		if(state[s] == NON_RESIDENT){
+			nonResidentCount--;
+		}
+		unlink(s);
+		this.slots.remove(values[s]);
+		values[s] = null;
+		state[s] = FREE;
+		test[s] = false;
+		nextGeneration(s);
+		freeSlots[numFree++] = s;
+	}
+
+	/** New and promoted entries go just behind the hot hand, i.e. the list head. */
+	private void linkAtHead(int s) {
+		if(handHot == -1){
+			next[s] = s;
+			prev[s] = s;
+			handHot = handCold = handTest = s;
+			return;
+		}
+		final int h = handHot;
+		prev[s] = prev[h];
+		next[s] = h;
+		next[prev[h]] = s;
+		prev[h] = s;
+	}
+
+	private void moveToHead(int s) {
+		unlink(s);
+		linkAtHead(s);
+	}
+
+	private void unlink(int s) {
+		if(next[s] == s){
+			handHot = handCold = handTest = -1;
+			return;
+		}
+		if(handHot == s){
+			handHot = next[s];
+		}
+		if(handCold == s){
+			handCold = next[s];
+		}
+		if(handTest == s){
+			handTest = next[s];
+		}
+		next[prev[s]] = next[s];
+		prev[next[s]] = prev[s];
+	}
+}
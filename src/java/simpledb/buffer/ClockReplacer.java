@@ -0,0 +1,139 @@
+package simpledb.buffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * CLOCK approximation of LRU over a fixed number of slots.
+ * <p>
+ * Every tracked value owns a slot with a reference bit.  Re-inserting a value
+ * that is already tracked only sets its bit, without locking or allocating;
+ * victim() sweeps a hand over the slots, clearing set bits and returning the
+ * first value whose bit is already clear.
+ */
+
+public class ClockReplacer<T> implements Replacer<T> {
+	private final Object[] values;
+	private final AtomicIntegerArray referenced;
+	private final ConcurrentHashMap<T, Integer> slots;
+	private final int[] freeSlots;
+	private int numFree;
+	private int hand;
+
+	/**
+	 * @param capacity the maximum number of values tracked at once, i.e. the
+	 *   number of frames in the buffer pool
+	 */
+	public ClockReplacer(int capacity) {
+		this.values = new Object[capacity];
+		this.referenced = new AtomicIntegerArray(capacity);
+		this.slots = new ConcurrentHashMap<>(capacity);
+		this.freeSlots = new int[capacity];
+		for (int i = 0; i < capacity; i++) {
+			freeSlots[i] = capacity - 1 - i;
+		}
+		this.numFree = capacity;
+		this.hand = 0;
+	}
+
+	@Override
+	public void insert(final T value) {
+		Integer slot = this.slots.get(value);
+		if(slot != null){
+			this.referenced.set(slot, 1);
+			return;
+		}
+		synchronized (this) {
+			slot = this.slots.get(value);
+			if(slot != null){
+				this.referenced.set(slot, 1);
+				return;
+			}
+			if(numFree == 0){
+				throw new IllegalStateException("ClockReplacer is full");
+			}
+			final int s = freeSlots[--numFree];
+			values[s] = value;
+			this.referenced.set(s, 1);
+			this.slots.put(value, s);
+		}
+	}
+
+	@Override
+	public void touch(final T value) {
+		final Integer slot = this.slots.get(value);
+		if(slot != null){
+			this.referenced.set(slot, 1);
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public synchronized T victim() {
+		if(this.slots.isEmpty()){
+			return null;
+		}
+		while (true) {
+			final int s = hand;
+			hand = (hand + 1) % values.length;
+			if(values[s] == null){
+				continue;
+			}
+			if(this.referenced.getAndSet(s, 0) == 1){
+				continue;
+			}
+			final T value = (T) values[s];
+			release(s);
+			return value;
+		}
+	}
+
+	@Override
+	public synchronized boolean erase(final T value) {
+		final Integer slot = this.slots.get(value);
+		if(slot == null){
+			return false;
+		}
+		release(slot);
+		return true;
+	}
+
+	private void release(int s) {
+		this.slots.remove(values[s]);
+		values[s] = null;
+		this.referenced.set(s, 0);
+		freeSlots[numFree++] = s;
+	}
+
+	@Override
+	public int size() {
+		return this.slots.size();
+	}
+
+	/**
+	 * The values whose bit is clear, in the order the hand reaches them,
+	 * then the values whose bit is set, in the same order: the hand clears
+	 * their bits on its first sweep and takes them on the second.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public synchronized List<T> victimOrder() {
+		final List<T> order = new ArrayList<>(this.slots.size());
+		final List<T> referencedValues = new ArrayList<>();
+		for(int i = 0; i < values.length; i++){
+			final int s = (hand + i) % values.length;
+			if(values[s] == null){
+				continue;
+			}
+			if(this.referenced.get(s) == 0){
+				order.add((T) values[s]);
+			}else{
+				referencedValues.add((T) values[s]);
+			}
+		}
+		order.addAll(referencedValues);
+		return order;
+	}
+}
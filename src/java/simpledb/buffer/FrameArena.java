@@ -0,0 +1,204 @@
+package simpledb.buffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import simpledb.DbFile;
+import simpledb.Page;
+import simpledb.PageId;
+
+/**
+ * An off-heap cache of page images: one direct ByteBuffer carved into
+ * page-sized frames, below the buffer pool's frames of deserialized pages.
+ * <p>
+ * Each frame holds the on-disk bytes of one page, and nothing else: no
+ * tuples, fields or before images.  A buffer pool with an arena keeps only
+ * its hot pages as Page objects on the heap; the rest of its working set
+ * lives here, out of reach of the garbage collector, and a miss that hits
+ * the arena rebuilds the page from its frame without reading the disk.
+ * Pages that miss both are read from disk straight into an arena frame with
+ * {@link DbFile#readPageData(PageId, ByteBuffer)}.
+ * <p>
+ * The page table, replacer and free list only change while holding the
+ * arena's monitor.  Copying in or out of a published frame holds the
+ * frame's monitor and checks the frame still belongs to the page; a frame
+ * being filled is not published until it is complete, so nobody else can
+ * see it.  Callers serialize operations on any one page (the buffer pool
+ * holds the page's partition lock).
+ *
+ * @Threadsafe
+ */
+public class FrameArena {
+    private final int pageSize;
+    private final ByteBuffer[] frames;
+    private final PageId[] owners;
+    private final ConcurrentHashMap<PageId, Integer> pageTable;
+    private final ConcurrentLinkedQueue<Integer> freeFrames;
+    private final Replacer<PageId> replacer;
+
+    /**
+     * @param numFrames the number of page images the arena holds
+     * @param pageSize bytes per frame
+     */
+    public FrameArena(int numFrames, int pageSize) {
+        if ((long) numFrames * pageSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("arena of " + numFrames + " frames is too large");
+        }
+        this.pageSize = pageSize;
+        this.frames = new ByteBuffer[numFrames];
+        this.owners = new PageId[numFrames];
+        this.pageTable = new ConcurrentHashMap<>(numFrames);
+        this.freeFrames = new ConcurrentLinkedQueue<>();
+        this.replacer = ReplacementPolicy.CLOCK.newReplacer(numFrames);
+        final ByteBuffer arena = ByteBuffer.allocateDirect(numFrames * pageSize);
+        for (int i = 0; i < numFrames; i++) {
+            arena.limit((i + 1) * pageSize).position(i * pageSize);
+            frames[i] = arena.slice();
+            freeFrames.add(i);
+        }
+    }
+
+    /** @return the number of frames in the arena */
+    public int getNumFrames() {
+        return frames.length;
+    }
+
+    /** @return true if the arena holds an image of pid */
+    public boolean contains(PageId pid) {
+        return this.pageTable.containsKey(pid);
+    }
+
+    /**
+     * Rebuilds pid from its image in the arena.
+     *
+     * @return the page, or null if the arena holds no image of pid or file
+     *   cannot create pages from their data
+     */
+    public Page get(PageId pid, DbFile file) throws IOException {
+        final byte[] data = copyOut(pid);
+        if (data == null) {
+            return null;
+        }
+        this.replacer.touch(pid);
+        return file.createPage(pid, data);
+    }
+
+    /**
+     * Reads pid from disk into a frame of the arena and builds the page
+     * from it.
+     *
+     * @return the page, or null if file cannot create pages from their data
+     */
+    public Page read(PageId pid, DbFile file) throws IOException {
+        final int index = claimFrame();
+        final ByteBuffer frame = frames[index].duplicate();
+        frame.clear();
+        try {
+            file.readPageData(pid, frame);
+        } catch (IOException | RuntimeException e) {
+            this.freeFrames.add(index);
+            throw e;
+        }
+        final byte[] data = new byte[pageSize];
+        frame.clear();
+        frame.get(data);
+        publish(pid, index);
+        return file.createPage(pid, data);
+    }
+
+    /** Stores data as the image of pid, e.g. when the pool evicts the page. */
+    public void put(PageId pid, byte[] data) {
+        final Integer current = this.pageTable.get(pid);
+        if (current != null) {
+            synchronized (frames[current]) {
+                if (pid.equals(owners[current])) {
+                    copyIn(current, data);
+                    this.replacer.touch(pid);
+                    return;
+                }
+            }
+        }
+        final int index = claimFrame();
+        copyIn(index, data);
+        publish(pid, index);
+    }
+
+    /** Drops the image of pid, e.g. when its page is discarded or rewritten on disk. */
+    public synchronized void invalidate(PageId pid) {
+        final Integer index = this.pageTable.remove(pid);
+        if (index == null) {
+            return;
+        }
+        this.replacer.erase(pid);
+        release(index);
+        this.freeFrames.add(index);
+    }
+
+    private byte[] copyOut(PageId pid) {
+        final Integer index = this.pageTable.get(pid);
+        if (index == null) {
+            return null;
+        }
+        synchronized (frames[index]) {
+            if (!pid.equals(owners[index])) {
+                return null;
+            }
+            final ByteBuffer frame = frames[index].duplicate();
+            frame.clear();
+            final byte[] data = new byte[pageSize];
+            frame.get(data);
+            return data;
+        }
+    }
+
+    private void copyIn(int index, byte[] data) {
+        final ByteBuffer frame = frames[index].duplicate();
+        frame.clear();
+        frame.put(data, 0, Math.min(data.length, pageSize));
+    }
+
+    /**
+     * Takes a free frame, evicting the replacer's victim if there is none.
+     * The frame is private to the caller until publish().
+     */
+    private synchronized int claimFrame() {
+        while (true) {
+            final Integer free = this.freeFrames.poll();
+            if (free != null) {
+                return free;
+            }
+            final PageId victim = this.replacer.victim();
+            if (victim == null) {
+                // every frame is being filled by another thread
+                throw new IllegalStateException("no frame in the arena can be evicted");
+            }
+            final Integer index = this.pageTable.remove(victim);
+            if (index != null) {
+                release(index);
+                return index;
+            }
+        }
+    }
+
+    /** Makes a filled frame visible as the image of pid. */
+    private synchronized void publish(PageId pid, int index) {
+        synchronized (frames[index]) {
+            owners[index] = pid;
+        }
+        final Integer old = this.pageTable.put(pid, index);
+        if (old != null && old != index) {
+            release(old);
+            this.freeFrames.add(old);
+        }
+        this.replacer.insert(pid);
+    }
+
+    /** Waits for readers of the frame to finish and disowns it. */
+    private void release(int index) {
+        synchronized (frames[index]) {
+            owners[index] = null;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package simpledb.buffer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import simpledb.PageId;
+
+/**
+ * Reads and writes the list of pages a buffer pool held when it was last
+ * shut down, so that the next start can warm the pool up with them.
+ * <p>
+ * The file is an int count followed by one entry per page, each the PageId
+ * class name and its serialize() ints, as in the log file.  It is written
+ * to a temporary file first and renamed into place, so a crash while saving
+ * leaves the previous list.
+ *
+ * @see BufferPoolManager#getHotPages()
+ * @see BufferPoolManager#warmUp(List)
+ */
+public class HotPages {
+
+    private HotPages() {
+    }
+
+    /** Writes pids, hottest first, to f. */
+    public static void write(File f, List<PageId> pids) throws IOException {
+        final File tmp = new File(f.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeInt(pids.size());
+            for (PageId pid : pids) {
+                final int[] data = pid.serialize();
+                out.writeUTF(pid.getClass().getName());
+                out.writeInt(data.length);
+                for (int d : data) {
+                    out.writeInt(d);
+                }
+            }
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** @return the pages written to f, hottest first */
+    public static List<PageId> read(File f) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            final int count = in.readInt();
+            final List<PageId> pids = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final String idClassName = in.readUTF();
+                final Object[] args = new Object[in.readInt()];
+                for (int j = 0; j < args.length; j++) {
+                    args[j] = in.readInt();
+                }
+                pids.add(newPageId(idClassName, args));
+            }
+            return pids;
+        }
+    }
+
+    private static PageId newPageId(String idClassName, Object[] args) throws IOException {
+        try {
+            for (Constructor<?> c : Class.forName(idClassName).getDeclaredConstructors()) {
+                if (c.getParameterCount() == args.length) {
+                    return (PageId) c.newInstance(args);
+                }
+            }
+            throw new IOException("no constructor of " + idClassName + " takes "
+                    + args.length + " ints");
+        } catch (ClassNotFoundException | InstantiationException | IllegalAccessException
+                | InvocationTargetException | ClassCastException e) {
+            throw new IOException("cannot create a " + idClassName, e);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package simpledb.buffer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum, SIGMOD 1993).
+ * <p>
+ * The victim is the value whose K-th most recent reference is oldest.  Values
+ * referenced fewer than K times have an infinite backward K-distance and are
+ * evicted first, least recently used first, so pages a scan touches once go
+ * before pages that are read over and over.  The reference history of an
+ * evicted value is retained (for up to as many values as the replacer tracks)
+ * so that a value which is re-read soon after eviction is recognised as hot.
+ */
+
+public class LRUKReplacer<T> implements Replacer<T> {
+	private final int k;
+	private final int historyCapacity;
+	private long clock;
+
+	private final Map<T, History> resident;
+	private final LinkedHashMap<T, History> retained;
+	private final TreeSet<History> evictable;
+
+	/**
+	 * @param k the number of references remembered per value
+	 * @param historyCapacity the maximum number of evicted values whose
+	 *   history is retained, normally the number of frames in the pool
+	 */
+	public LRUKReplacer(int k, int historyCapacity) {
+		if(k < 1){
+			throw new IllegalArgumentException("k must be at least 1");
+		}
+		this.k = k;
+		this.historyCapacity = historyCapacity;
+		this.resident = new HashMap<>();
+		this.retained = new LinkedHashMap<>();
+		this.evictable = new TreeSet<>();
+	}
+
+	@Override
+	public synchronized void insert(final T value) {
+		History history = this.resident.get(value);
+		if(history == null){
+			history = this.retained.remove(value);
+			if(history == null){
+				history = new History(value, k);
+			}
+			this.resident.put(value, history);
+		}else{
+			this.evictable.remove(history);
+		}
+		history.reference(++clock);
+		this.evictable.add(history);
+	}
+
+	@Override
+	public synchronized void touch(final T value) {
+		final History history = this.resident.get(value);
+		if(history == null){
+			return;
+		}
+		this.evictable.remove(history);
+		history.reference(++clock);
+		this.evictable.add(history);
+	}
+
+	@Override
+	public synchronized T victim() {
+		final History history = this.evictable.pollFirst();
+		if(history == null){
+			return null;
+		}
+		this.resident.remove(history.value);
+		this.retained.put(history.value, history);
+		if(this.retained.size() > historyCapacity){
+			Iterator<History> eldest = this.retained.values().iterator();
+			eldest.next();
+			eldest.remove();
+		}
+		return history.value;
+	}
+
+	@Override
+	public synchronized boolean erase(final T value) {
+		final History history = this.resident.remove(value);
+		if(history == null){
+			return false;
+		}
+		this.evictable.remove(history);
+		return true;
+	}
+
+	@Override
+	public synchronized int size() {
+		return this.resident.size();
+	}
+
+	@Override
+	public synchronized List<T> victimOrder() {
+		final List<T> order = new ArrayList<>(this.evictable.size());
+		for(History history : this.evictable){
+			order.add(history.value);
+		}
+		return order;
+	}
+
+	/**
+	 * The last k reference times of one value.  Every reference gets a
+	 * distinct logical time, so two histories never compare equal.
+	 */
+	private class History implements Comparable<History> {
+		final T value;
+		final long[] references;
+		/** slot the next reference is written to, i.e. the oldest one kept */
+		int next;
+		/** number of references recorded, saturating at k */
+		int count;
+
+		History(T value, int k) {
+			this.value = value;
+			this.references = new long[k];
+		}
+
+		void reference(long time) {
+			references[next] = time;
+			next = (next + 1) % references.length;
+			if(count < references.length){
+				count++;
+			}
+		}
+
+		boolean full() {
+			return count == references.length;
+		}
+
+		/** @return the most recent reference time */
+		long last() {
+			return references[(next + references.length - 1) % references.length];
+		}
+
+		/** @return the k-th most recent reference time, once full() */
+		long kth() {
+			return references[next];
+		}
+
+		@Override
+		public int compareTo(History o) {
+			if(full() != o.full()){
+				return full() ? 1 : -1;
+			}
+			return full() ? Long.compare(kth(), o.kth()) : Long.compare(last(), o.last());
+		}
+	}
+}
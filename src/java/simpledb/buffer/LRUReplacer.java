@@ -1,6 +1,8 @@
 package simpledb.buffer;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -26,7 +28,7 @@ public class LRUReplacer<T> implements Replacer<T> {
 
 
 	@Override
-	public void insert(final T value) {
+	public synchronized void insert(final T value) {
 		DLinkedNode dLinkedNode = this.map.get(value);
 		if(dLinkedNode != null){
 			dLinkedNode.pre.next = dLinkedNode.next;
@@ -43,7 +45,14 @@ public class LRUReplacer<T> implements Replacer<T> {
 	}
 
 	@Override
-	public T victim() {
+	public synchronized void touch(final T value) {
+		if(this.map.containsKey(value)){
+			insert(value);
+		}
+	}
+
+	@Override
+	public synchronized T victim() {
 		if(this.map.isEmpty()){
 			return null;
 		}
@@ -55,14 +64,30 @@ public class LRUReplacer<T> implements Replacer<T> {
 	}
 
 	@Override
-	public boolean erase(final T value) {
-		return false;
+	public synchronized boolean erase(final T value) {
+		DLinkedNode dLinkedNode = this.map.remove(value);
+		if(dLinkedNode == null){
+			return false;
+		}
+		dLinkedNode.pre.next = dLinkedNode.next;
+		dLinkedNode.next.pre = dLinkedNode.pre;
+		return true;
 	}
 
 	@Override
-	public int size() {
+	public synchronized int size() {
 		return map.size();
 	}
+
+	@Override
+	public synchronized List<T> victimOrder() {
+		final List<T> order = new ArrayList<>(map.size());
+		for(DLinkedNode cur = this.tail.pre; cur != this.head; cur = cur.pre){
+			order.add(cur.value);
+		}
+		return order;
+	}
+
 	private class DLinkedNode{
 		T value;
 		DLinkedNode pre;
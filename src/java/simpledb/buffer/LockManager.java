@@ -0,0 +1,504 @@
+package simpledb.buffer;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import simpledb.PageId;
+import simpledb.Permissions;
+import simpledb.TransactionAbortedException;
+import simpledb.TransactionId;
+
+/**
+ * Multi-granularity locks on tables and pages for strict two-phase locking.
+ * <p>
+ * A lock is held in one of the {@link LockMode}s.  Locking a page for
+ * READ_ONLY takes IS on its table and S on the page, and READ_WRITE takes
+ * IX and X.  A request for a resource that a coarser lock already covers
+ * takes nothing, so once a transaction holds S or X on a table its page
+ * requests cost no more than a hash lookup.  A transaction that asks for a
+ * second mode on a resource is granted the weakest mode covering both, so
+ * S and then IX on a table give SIX.
+ * <p>
+ * The hierarchy stops at pages: there are no tuple locks, and writes lock
+ * whole pages.  An abort takes every page its transaction locked
+ * exclusively back to its committed version, which is only right if no
+ * other transaction can have changed it; tuple locks would first need undo
+ * by tuple.  Until then, two transactions writing different tuples of one
+ * page still conflict, and the second waits for the first to complete.
+ * <p>
+ * A transaction that holds more than the escalation threshold of page
+ * locks in one table tries to trade them for S on the table, or X if
+ * it has written to it.  Escalation never waits: if another transaction
+ * holds a conflicting lock, the fine locks are kept and it is tried again
+ * after another threshold's worth of them.
+ * <p>
+ * The lock table is striped: a resource's lock lives in one of
+ * {@link #STRIPES} hash tables, chosen by the resource's hash, and each
+ * stripe is its own monitor.  Acquiring or releasing locks in different
+ * stripes never contends.  A request that cannot be granted waits on its
+ * stripe and is woken when a lock in the stripe is released.  Requests for
+ * a lock the transaction does not hold yet queue behind the earlier
+ * requests they conflict with, so a stream of readers cannot starve a
+ * writer; conversions of a lock already held do not queue.
+ * <p>
+ * Deadlocks are detected as they form: a blocked request records whom it
+ * waits for in a {@link WaitsForGraph}, and the youngest transaction on a
+ * cycle fails its request with TransactionAbortedException, right away if
+ * it closed the cycle, else as soon as it is woken.  Its caller is expected
+ * to abort it, which releases its locks.  A timeout can also be set, after
+ * which any request gives up.
+ * <p>
+ * Each transaction also keeps the resources it holds locks on, so that
+ * releasing its locks when it completes costs O(locks held) rather than a
+ * scan of the table, and the pages it has locked, including those that a
+ * table lock covers.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+    /** Number of stripes of the lock table; must be a power of two. */
+    static final int STRIPES = 64;
+    /** Default number of fine locks in one table after which they are escalated. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 64;
+
+    private final Stripe[] stripes;
+    private final ConcurrentHashMap<TransactionId, TransactionLocks> transactions;
+    private final WaitsForGraph waitsFor;
+    /** time a request waits before giving up, in ms, or 0 to wait until granted */
+    private volatile long timeoutMillis;
+    private volatile int escalationThreshold;
+
+    /**
+     * One hash table of the lock table; also the monitor its waiters wait on.
+     * Tables are keyed by their Integer id and pages by PageId.
+     */
+    private static class Stripe {
+        final Map<Object, Lock> locks = new HashMap<>();
+    }
+
+    /** The holders of, and the requests waiting for, one resource's lock. */
+    private static class Lock {
+        final Map<TransactionId, LockMode> holders = new HashMap<>(2);
+        /** blocked requests, in the order they arrived */
+        final Map<TransactionId, LockMode> waiters = new LinkedHashMap<>(2);
+
+        boolean isFree() {
+            return holders.isEmpty() && waiters.isEmpty();
+        }
+
+        /**
+         * Grants tid mode, joined with any mode it already holds, if that is
+         * compatible with every other holder and, for a new holder, with
+         * every request that queued before it.
+         *
+         * @return the mode tid now holds, or null if it must wait
+         */
+        LockMode tryGrant(TransactionId tid, LockMode mode) {
+            final LockMode held = holders.get(tid);
+            final LockMode wanted = held == null ? mode : held.join(mode);
+            if (wanted == held) {
+                return held;
+            }
+            if (!conflicts(tid, held, wanted, null)) {
+                holders.put(tid, wanted);
+                return wanted;
+            }
+            return null;
+        }
+
+        /** @return the transactions a request by tid that tryGrant() refused waits for */
+        Set<TransactionId> blockers(TransactionId tid, LockMode mode) {
+            final LockMode held = holders.get(tid);
+            final Set<TransactionId> blockers = new HashSet<>();
+            conflicts(tid, held, held == null ? mode : held.join(mode), blockers);
+            return blockers;
+        }
+
+        /**
+         * @return true if tid cannot be granted wanted, adding who it waits
+         *   for to blockers unless that is null
+         */
+        private boolean conflicts(TransactionId tid, LockMode held, LockMode wanted,
+                Set<TransactionId> blockers) {
+            boolean conflict = false;
+            for (Map.Entry<TransactionId, LockMode> h : holders.entrySet()) {
+                if (!h.getKey().equals(tid) && !wanted.isCompatibleWith(h.getValue())) {
+                    if (blockers == null) {
+                        return true;
+                    }
+                    conflict = true;
+                    blockers.add(h.getKey());
+                }
+            }
+            if (held == null) {
+                for (Map.Entry<TransactionId, LockMode> w : waiters.entrySet()) {
+                    if (w.getKey().equals(tid)) {
+                        break;
+                    }
+                    if (!wanted.isCompatibleWith(w.getValue())) {
+                        if (blockers == null) {
+                            return true;
+                        }
+                        conflict = true;
+                        blockers.add(w.getKey());
+                    }
+                }
+            }
+            return conflict;
+        }
+    }
+
+    /** The locks of one transaction. */
+    private static class TransactionLocks {
+        /** every resource tid holds a lock on in the lock table */
+        final Set<Object> resources = ConcurrentHashMap.newKeySet();
+        /** the pages tid has locked, including those a table lock covers */
+        final Set<PageId> pages = ConcurrentHashMap.newKeySet();
+        /** the mode tid holds on each table it has locked */
+        final ConcurrentHashMap<Integer, LockMode> tables = new ConcurrentHashMap<>();
+        /** the number of page locks tid holds in each table */
+        final ConcurrentHashMap<Integer, Integer> fineLocks = new ConcurrentHashMap<>();
+
+        boolean tableCovers(int tableId, boolean write) {
+            final LockMode mode = tables.get(tableId);
+            return mode != null && (mode == LockMode.X || (!write && mode.coversReads()));
+        }
+    }
+
+    public LockManager() {
+        this.stripes = new Stripe[STRIPES];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.transactions = new ConcurrentHashMap<>();
+        this.waitsFor = new WaitsForGraph();
+        this.timeoutMillis = 0;
+        this.escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    }
+
+    /**
+     * Sets how long a request waits for a lock before aborting, in ms, or 0
+     * to wait until the lock is granted or the request is a deadlock victim.
+     */
+    public void setTimeout(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Sets how many page locks a transaction may hold in one table
+     * before they are escalated to a table lock, or 0 to never escalate.
+     */
+    public void setEscalationThreshold(int threshold) {
+        this.escalationThreshold = threshold;
+    }
+
+    public int getEscalationThreshold() {
+        return this.escalationThreshold;
+    }
+
+    /**
+     * Acquires a lock on the table with id tableId for tid, S for READ_ONLY
+     * and X for READ_WRITE.
+     *
+     * @throws TransactionAbortedException if tid was chosen as the victim of
+     *   a deadlock, the lock was not granted within the timeout, or the
+     *   waiting thread was interrupted
+     */
+    public void acquireTable(TransactionId tid, int tableId, Permissions perm)
+            throws TransactionAbortedException {
+        final boolean write = perm == Permissions.READ_WRITE;
+        final TransactionLocks locks = locksOf(tid);
+        if (!locks.tableCovers(tableId, write)) {
+            lockTable(tid, locks, tableId, write ? LockMode.X : LockMode.S);
+        }
+    }
+
+    /**
+     * Acquires a lock on pid for tid, waiting while another transaction
+     * holds a conflicting lock.
+     *
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     * @throws TransactionAbortedException if tid was chosen as the victim of
+     *   a deadlock, the lock was not granted within the timeout, or the
+     *   waiting thread was interrupted
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        final boolean write = perm == Permissions.READ_WRITE;
+        final TransactionLocks locks = locksOf(tid);
+        final int tableId = pid.getTableId();
+        if (!locks.tableCovers(tableId, write)) {
+            lockTable(tid, locks, tableId, write ? LockMode.IX : LockMode.IS);
+            lockFine(tid, locks, tableId, pid, write ? LockMode.X : LockMode.S);
+        }
+        locks.pages.add(pid);
+    }
+
+    private TransactionLocks locksOf(TransactionId tid) {
+        return this.transactions.computeIfAbsent(tid, t -> new TransactionLocks());
+    }
+
+    private void lockTable(TransactionId tid, TransactionLocks locks, int tableId, LockMode mode)
+            throws TransactionAbortedException {
+        final LockMode held = locks.tables.get(tableId);
+        if (held == null || !held.covers(mode)) {
+            locks.resources.add(tableId);
+            locks.tables.put(tableId, lock(tid, tableId, mode));
+        }
+    }
+
+    /** Locks a page of table tableId, then escalates if it holds too many. */
+    private void lockFine(TransactionId tid, TransactionLocks locks, int tableId, Object resource,
+            LockMode mode) throws TransactionAbortedException {
+        // add before locking, so that releaseAll() finds the lock even if the
+        // thread dies while waiting
+        final boolean added = locks.resources.add(resource);
+        boolean locked = false;
+        try {
+            lock(tid, resource, mode);
+            locked = true;
+        } finally {
+            if (added && !locked) {
+                locks.resources.remove(resource);
+            }
+        }
+        if (added) {
+            final int count = locks.fineLocks.merge(tableId, 1, Integer::sum);
+            final int threshold = this.escalationThreshold;
+            if (threshold > 0 && count >= threshold && count % threshold == 0) {
+                escalate(tid, locks, tableId);
+            }
+        }
+    }
+
+    /**
+     * Tries to replace tid's page locks in table tableId with one
+     * lock on the table, without waiting.
+     */
+    private void escalate(TransactionId tid, TransactionLocks locks, int tableId) {
+        final LockMode intention = locks.tables.get(tableId);
+        final LockMode mode = intention == LockMode.IX || intention == LockMode.SIX
+                ? LockMode.X : LockMode.S;
+        final Stripe stripe = stripe(tableId);
+        final LockMode granted;
+        synchronized (stripe) {
+            final Lock lock = stripe.locks.get(tableId);
+            granted = lock == null ? null : lock.tryGrant(tid, mode);
+        }
+        if (granted == null) {
+            return;
+        }
+        locks.tables.put(tableId, granted);
+        for (Object resource : locks.resources) {
+            if (resource instanceof PageId && ((PageId) resource).getTableId() == tableId
+                    && locks.resources.remove(resource)) {
+                unlock(tid, resource);
+            }
+        }
+        locks.fineLocks.remove(tableId);
+    }
+
+    /**
+     * Acquires mode on resource for tid, waiting if needed.
+     *
+     * @return the mode tid now holds on resource
+     */
+    private LockMode lock(TransactionId tid, Object resource, LockMode mode)
+            throws TransactionAbortedException {
+        final Stripe stripe = stripe(resource);
+        synchronized (stripe) {
+            final LockMode granted = stripe.locks.computeIfAbsent(resource, r -> new Lock()).tryGrant(tid, mode);
+            if (granted != null) {
+                return granted;
+            }
+        }
+        return waitFor(tid, resource, mode, stripe);
+    }
+
+    /**
+     * Waits until tid is granted mode on resource, keeping its edges in the
+     * waits-for graph up to date and waking the victim of any deadlock it
+     * closes.  Other stripes are only ever locked after leaving stripe.
+     */
+    private LockMode waitFor(TransactionId tid, Object resource, LockMode mode, Stripe stripe)
+            throws TransactionAbortedException {
+        final long timeout = this.timeoutMillis;
+        final long deadline = System.nanoTime() + timeout * 1000000L;
+        boolean granted = false;
+        try {
+            while (true) {
+                final Object wake;
+                synchronized (stripe) {
+                    if (this.waitsFor.takeVictim(tid)) {
+                        throw new TransactionAbortedException();
+                    }
+                    // a lock leaves the table only once it has no waiters
+                    final Lock lock = stripe.locks.computeIfAbsent(resource, r -> new Lock());
+                    lock.waiters.putIfAbsent(tid, mode);
+                    final LockMode held = lock.tryGrant(tid, mode);
+                    if (held != null) {
+                        granted = true;
+                        lock.waiters.remove(tid);
+                        if (!lock.waiters.isEmpty()) {
+                            // requests queued behind this one may go now
+                            stripe.notifyAll();
+                        }
+                        return held;
+                    }
+                    final TransactionId victim = this.waitsFor.waitFor(tid,
+                            lock.blockers(tid, mode), stripe);
+                    if (tid.equals(victim)) {
+                        throw new TransactionAbortedException();
+                    }
+                    if (victim == null) {
+                        if (timeout == 0) {
+                            stripe.wait();
+                        } else {
+                            final long remaining = (deadline - System.nanoTime()) / 1000000L;
+                            if (remaining <= 0) {
+                                throw new TransactionAbortedException();
+                            }
+                            stripe.wait(remaining);
+                        }
+                        continue;
+                    }
+                    wake = this.waitsFor.monitorOf(victim);
+                }
+                if (wake != null) {
+                    synchronized (wake) {
+                        wake.notifyAll();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionAbortedException();
+        } finally {
+            this.waitsFor.leave(tid);
+            if (!granted) {
+                synchronized (stripe) {
+                    final Lock lock = stripe.locks.get(resource);
+                    if (lock != null) {
+                        if (lock.waiters.remove(tid) != null) {
+                            // requests queued behind this one can go
+                            recheckWaiters(lock);
+                            stripe.notifyAll();
+                        }
+                        if (lock.isFree()) {
+                            stripe.locks.remove(resource);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param resource an Integer table id or a PageId
+     * @return the mode tid holds on resource itself, ignoring coarser locks
+     *   that cover it, or null if it holds none
+     */
+    public LockMode getLockMode(TransactionId tid, Object resource) {
+        final Stripe stripe = stripe(resource);
+        synchronized (stripe) {
+            final Lock lock = stripe.locks.get(resource);
+            return lock == null ? null : lock.holders.get(tid);
+        }
+    }
+
+    /** @return true if tid holds a lock on pid, or on its table, that lets it read pid */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        final TransactionLocks locks = this.transactions.get(tid);
+        if (locks == null) {
+            return false;
+        }
+        if (locks.tableCovers(pid.getTableId(), false)) {
+            return true;
+        }
+        final LockMode mode = getLockMode(tid, pid);
+        return mode != null && mode.coversReads();
+    }
+
+    /** @return true if tid holds an exclusive lock on pid or on its table */
+    public boolean holdsExclusive(TransactionId tid, PageId pid) {
+        final TransactionLocks locks = this.transactions.get(tid);
+        return locks != null && (locks.tableCovers(pid.getTableId(), true)
+                || getLockMode(tid, pid) == LockMode.X);
+    }
+
+    /**
+     * @return the pages tid has locked, including those a lock on their
+     *   table covers; the set is live, not a copy
+     */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        final TransactionLocks locks = this.transactions.get(tid);
+        return locks == null ? Collections.<PageId>emptySet() : Collections.unmodifiableSet(locks.pages);
+    }
+
+    /**
+     * Releases the lock tid holds on pid, if any.  A lock tid holds on the
+     * table is kept.
+     */
+    public void release(TransactionId tid, PageId pid) {
+        final TransactionLocks locks = this.transactions.get(tid);
+        if (locks == null) {
+            return;
+        }
+        locks.pages.remove(pid);
+        if (locks.resources.remove(pid)) {
+            locks.fineLocks.computeIfPresent(pid.getTableId(), (t, n) -> n > 1 ? n - 1 : null);
+            unlock(tid, pid);
+        }
+    }
+
+    /** Releases every lock tid holds. */
+    public void releaseAll(TransactionId tid) {
+        final TransactionLocks locks = this.transactions.remove(tid);
+        if (locks == null) {
+            return;
+        }
+        for (Object resource : locks.resources) {
+            unlock(tid, resource);
+        }
+    }
+
+    private void unlock(TransactionId tid, Object resource) {
+        final Stripe stripe = stripe(resource);
+        synchronized (stripe) {
+            final Lock lock = stripe.locks.get(resource);
+            if (lock == null) {
+                return;
+            }
+            lock.holders.remove(tid);
+            if (lock.isFree()) {
+                stripe.locks.remove(resource);
+            }
+            recheckWaiters(lock);
+            stripe.notifyAll();
+        }
+    }
+
+    /**
+     * Drops the edges of lock's waiters, which the caller is about to wake,
+     * before they recheck.  Otherwise a transaction that gives up a lock and
+     * asks for it again at once can close a cycle through an edge that no
+     * longer holds, and be aborted for a deadlock that does not exist.
+     * Called with the lock's stripe held.
+     */
+    private void recheckWaiters(Lock lock) {
+        for (TransactionId waiter : lock.waiters.keySet()) {
+            this.waitsFor.recheck(waiter);
+        }
+    }
+
+    private Stripe stripe(Object resource) {
+        int h = resource.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (STRIPES - 1)];
+    }
+}
@@ -0,0 +1,61 @@
+package simpledb.buffer;
+
+/**
+ * The modes of a multi-granularity lock.
+ * <p>
+ * S and X lock a resource and everything below it for reading or writing.
+ * The intention modes IS and IX are taken on a table before S or X on a
+ * page of it, and say that finer locks are held below; SIX is
+ * S on the whole resource plus the intention to write parts of it.
+ */
+public enum LockMode {
+    IS, IX, S, SIX, X;
+
+    /** COMPATIBLE[a][b] is true if a and b can be held by two transactions */
+    private static final boolean[][] COMPATIBLE = {
+        //          IS     IX     S      SIX    X
+        /* IS  */ { true,  true,  true,  true,  false },
+        /* IX  */ { true,  true,  false, false, false },
+        /* S   */ { true,  false, true,  false, false },
+        /* SIX */ { true,  false, false, false, false },
+        /* X   */ { false, false, false, false, false },
+    };
+
+    /** @return true if one transaction can hold this while another holds other */
+    public boolean isCompatibleWith(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /** @return true if holding this grants everything other does */
+    public boolean covers(LockMode other) {
+        switch (this) {
+        case X:
+            return true;
+        case SIX:
+            return other != X;
+        case S:
+            return other == S || other == IS;
+        case IX:
+            return other == IX || other == IS;
+        default:
+            return other == IS;
+        }
+    }
+
+    /** @return the weakest mode that covers both this and other */
+    public LockMode join(LockMode other) {
+        if (covers(other)) {
+            return this;
+        }
+        if (other.covers(this)) {
+            return other;
+        }
+        // S and IX are the only pair neither covers
+        return SIX;
+    }
+
+    /** @return true if this lets its holder read the whole resource */
+    public boolean coversReads() {
+        return covers(S);
+    }
+}
@@ -0,0 +1,104 @@
+package simpledb.buffer;
+
+import java.util.function.IntFunction;
+import java.util.function.IntSupplier;
+
+import simpledb.PageId;
+
+/**
+ * Adaptive sequential read-ahead for one reader of one file, modelled on the
+ * Linux page cache read-ahead.
+ * <p>
+ * The reader reports every page number it is about to request with
+ * {@link #access(int)}.  Once two requests in a row are for consecutive pages
+ * (or the first request is for page 0) the stream is sequential, and a window
+ * of the following pages is handed to {@link BufferPoolManager#prefetchPage}.
+ * When the reader reaches the first page of the last window, the next window
+ * is issued, twice as large as the previous one up to {@link #MAX_WINDOW}, so
+ * the background reads stay ahead of the reader.  A request for any other
+ * page ends the sequential run and read-ahead starts over.
+ * <p>
+ * A read-ahead stream belongs to a single iterator and is not thread-safe.
+ */
+public class ReadAhead {
+    /** Pages read ahead when a sequential run is first detected. */
+    static final int INITIAL_WINDOW = 4;
+    /** Largest window, in pages. */
+    static final int MAX_WINDOW = 32;
+
+    private final BufferPoolManager pool;
+    private final IntFunction<PageId> pageIds;
+    private final IntSupplier numPages;
+
+    /** the page number a sequential reader asks for next, or -1 */
+    private int expected = -1;
+    /** size of the last window issued, 0 if not in a sequential run */
+    private int window;
+    /** reaching this page issues the next window */
+    private int marker;
+    /** end (exclusive) of the pages issued so far */
+    private int end;
+
+    /**
+     * @param pool the buffer pool the pages are read into
+     * @param pageIds maps a page number of the file to its PageId
+     * @param numPages the current number of pages in the file
+     */
+    public ReadAhead(BufferPoolManager pool, IntFunction<PageId> pageIds, IntSupplier numPages) {
+        this.pool = pool;
+        this.pageIds = pageIds;
+        this.numPages = numPages;
+    }
+
+    /**
+     * Records that the reader is about to request page pageNo, reading
+     * ahead if the reader is sequential.
+     */
+    public void access(int pageNo) {
+        final boolean sequential = pageNo == expected || (expected < 0 && pageNo == 0);
+        if (!sequential) {
+            cancel(pageNo);
+            window = 0;
+        }
+        expected = pageNo + 1;
+        if (!sequential) {
+            return;
+        }
+        if (window == 0) {
+            window = INITIAL_WINDOW;
+            marker = pageNo + 1;
+            end = pageNo + 1;
+            issue(window);
+        } else if (pageNo >= marker) {
+            window = Math.min(MAX_WINDOW, window * 2);
+            marker = end;
+            issue(window);
+        }
+    }
+
+    /** Drops the pages read ahead that the reader has not asked for yet. */
+    public void close() {
+        cancel(-1);
+        expected = -1;
+        window = 0;
+    }
+
+    private void issue(int count) {
+        final int last = Math.min(end + count, numPages.getAsInt());
+        for (; end < last; end++) {
+            pool.prefetchPage(pageIds.apply(end));
+        }
+    }
+
+    /** Cancels the pages issued but not yet asked for, except keep. */
+    private void cancel(int keep) {
+        if (window == 0) {
+            return;
+        }
+        for (int p = expected; p < end; p++) {
+            if (p != keep) {
+                pool.cancelPrefetch(pageIds.apply(p));
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package simpledb.buffer;
+
+/**
+ * The page replacement policies a BufferPoolManager can be constructed with.
+ *
+ * @see BufferPoolManager#BufferPoolManager(int, ReplacementPolicy)
+ */
+
+public enum ReplacementPolicy {
+	/** Exact recency order; every hit relinks a list node under one lock. */
+	LRU {
+		@Override
+		public <T> Replacer<T> newReplacer(int capacity) {
+			return new LRUReplacer<>();
+		}
+	},
+	/** One reference bit per frame; a hit is a single bit set.  The default. */
+	CLOCK {
+		@Override
+		public <T> Replacer<T> newReplacer(int capacity) {
+			return new ClockReplacer<>(capacity);
+		}
+	},
+	/** LRU-2 with retained history; one-touch scan pages are evicted first. */
+	LRU_K {
+		@Override
+		public <T> Replacer<T> newReplacer(int capacity) {
+			return new LRUKReplacer<>(2, capacity);
+		}
+	},
+	/** Hot/cold CLOCK with non-resident history, resistant to one-touch scans. */
+	CLOCK_PRO {
+		@Override
+		public <T> Replacer<T> newReplacer(int capacity) {
+			return new ClockProReplacer<>(capacity);
+		}
+	};
+
+	/**
+	 * @param capacity the number of frames the replacer will be asked to track
+	 * @return a new, empty replacer implementing this policy
+	 */
+	public abstract <T> Replacer<T> newReplacer(int capacity);
+}
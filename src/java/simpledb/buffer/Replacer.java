@@ -4,11 +4,28 @@ import java.util.List;
 
 /**
  * Create by hzzhenglu on 2018/10/20
+ *
+ * Implementations must be safe to call from several threads at once; the
+ * buffer pool calls touch() on every hit without holding any lock.
  */
 
 public interface Replacer<T> {
 	void insert(T value);
+
+	/**
+	 * Records a reference to a value that is already tracked.  Unlike
+	 * insert(), this never starts tracking a value that is not present.
+	 */
+	void touch(T value);
+
 	T victim();
 	boolean erase(T value);
 	int size();
+
+	/**
+	 * Returns the tracked values in the order victim() would return them if
+	 * nothing else happened, without changing any state.  Replacers that
+	 * only approximate an order, such as CLOCK, return their best guess.
+	 */
+	List<T> victimOrder();
 }
@@ -0,0 +1,152 @@
+package simpledb.buffer;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import simpledb.DbException;
+import simpledb.Page;
+import simpledb.PageId;
+import simpledb.TransactionId;
+
+/**
+ * Committed versions of pages, for transactions that read a snapshot.
+ * <p>
+ * Every commit gets a timestamp from a clock, and a snapshot is the clock
+ * value when it began: it sees exactly the commits with timestamps up to
+ * it.  The newest committed version of a page is its before image, which
+ * a commit replaces with the page's contents.  While snapshots are
+ * running, a commit first moves the before images it replaces into a
+ * chain of older versions, each labelled with the commit that made it,
+ * and records its own timestamp against the page; a snapshot older than
+ * that reads the newest version in the chain it can see.  Versions no
+ * running snapshot can see are dropped from a chain when the page is next
+ * committed, and every chain goes as soon as no snapshot is running, so
+ * without snapshots a commit keeps nothing.
+ * <p>
+ * A page written to disk before its transaction commits no longer has its
+ * committed version on disk, so the before image it had then is kept here
+ * until the page is committed, for snapshots that read it back from disk.
+ *
+ * @Threadsafe, commits and snapshot changes are serialized on this; reads
+ *   go through concurrent maps and never block
+ */
+class VersionStore {
+    /** An older committed version of a page. */
+    private static class Version {
+        final Page page;
+        /** timestamp of the commit that made this version */
+        final long from;
+        volatile Version older;
+
+        Version(Page page, long from, Version older) {
+            this.page = page;
+            this.from = from;
+            this.older = older;
+        }
+    }
+
+    /** timestamp of the last commit; guarded by this */
+    private long clock;
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    /** timestamp of the last commit of each page committed while snapshots ran */
+    private final Map<PageId, Long> committedAt = new ConcurrentHashMap<>();
+    /** older versions of each page, newest first */
+    private final Map<PageId, Version> versions = new ConcurrentHashMap<>();
+    /** committed versions of pages whose disk copy is not committed */
+    private final Map<PageId, Page> stolen = new ConcurrentHashMap<>();
+
+    /** Starts a snapshot for tid that sees every commit so far. */
+    synchronized void beginSnapshot(TransactionId tid) {
+        this.snapshots.put(tid, this.clock);
+    }
+
+    /** Ends tid's snapshot, if it has one. */
+    synchronized void endSnapshot(TransactionId tid) {
+        if (this.snapshots.remove(tid) != null && this.snapshots.isEmpty()) {
+            this.committedAt.clear();
+            this.versions.clear();
+        }
+    }
+
+    /** @return tid's snapshot, or null if tid does not read a snapshot */
+    Long snapshotOf(TransactionId tid) {
+        return this.snapshots.get(tid);
+    }
+
+    /** @return the timestamp of the last commit of pid a snapshot may not see, or 0 */
+    long committedAt(PageId pid) {
+        final Long at = this.committedAt.get(pid);
+        return at == null ? 0 : at;
+    }
+
+    /** @return the committed version of pid if its disk copy is not committed, else null */
+    Page stolenImage(PageId pid) {
+        return this.stolen.get(pid);
+    }
+
+    /**
+     * @return the newest version of pid committed at or before snapshot,
+     *   which must be older than committedAt(pid)
+     */
+    Page versionAt(PageId pid, long snapshot) throws DbException {
+        for (Version v = this.versions.get(pid); v != null; v = v.older) {
+            if (v.from <= snapshot) {
+                return v.page;
+            }
+        }
+        throw new DbException("no version of " + pid + " is visible to snapshot " + snapshot);
+    }
+
+    /**
+     * Records that page is about to be written while the transaction that
+     * dirtied it may still be running.
+     */
+    void stealing(Page page) {
+        this.stolen.computeIfAbsent(page.getId(), pid -> page.getBeforeImage());
+    }
+
+    /** Records that pid's disk copy has been put back to its committed version. */
+    void restored(PageId pid) {
+        this.stolen.remove(pid);
+    }
+
+    /**
+     * Makes the current contents of pages their committed versions, in one
+     * commit.
+     *
+     * @param written the pages the committing transaction may have changed
+     */
+    synchronized void commit(List<Page> written) {
+        final long ts = ++this.clock;
+        long oldest = Long.MAX_VALUE;
+        for (long snapshot : this.snapshots.values()) {
+            oldest = Math.min(oldest, snapshot);
+        }
+        for (Page page : written) {
+            final PageId pid = page.getId();
+            final Page committed = this.stolen.get(pid);
+            if (oldest < ts) {
+                final Version chain = new Version(
+                        committed != null ? committed : page.getBeforeImage(),
+                        committedAt(pid), this.versions.get(pid));
+                prune(chain, oldest);
+                this.versions.put(pid, chain);
+                // readers see the new timestamp before the new before image
+                this.committedAt.put(pid, ts);
+            }
+            this.stolen.remove(pid);
+            page.setBeforeImage();
+        }
+    }
+
+    /** Drops the versions in chain older than the one oldest sees. */
+    private static void prune(Version chain, long oldest) {
+        for (Version v = chain; v != null; v = v.older) {
+            if (v.from <= oldest) {
+                v.older = null;
+                return;
+            }
+        }
+    }
+}
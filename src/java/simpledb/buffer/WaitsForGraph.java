@@ -0,0 +1,111 @@
+package simpledb.buffer;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import simpledb.TransactionId;
+
+/**
+ * The waits-for graph of the transactions blocked in a {@link LockManager}.
+ * <p>
+ * An edge from a to b means that a waits for a lock b holds, or for a lock
+ * b asked for first in a conflicting mode.  A blocked request replaces its
+ * edges each time it rechecks its lock, and whenever they change the graph
+ * looks for a cycle through it, so every deadlock is found by the request
+ * that closes it.  The youngest transaction on the cycle, the one with the
+ * largest id, is chosen as the victim: it has done the least work.
+ *
+ * @Threadsafe, all state is guarded by this
+ */
+class WaitsForGraph {
+    private final Map<TransactionId, Set<TransactionId>> edges = new HashMap<>();
+    /** monitor each blocked transaction waits on */
+    private final Map<TransactionId, Object> monitors = new HashMap<>();
+    /** blocked transactions chosen as victims that have not noticed yet */
+    private final Set<TransactionId> victims = new HashSet<>();
+
+    /**
+     * Records that tid waits on monitor for blockers.
+     *
+     * @return the victim if that closes a cycle, which may be tid itself,
+     *   or null if there is no deadlock
+     */
+    synchronized TransactionId waitFor(TransactionId tid, Set<TransactionId> blockers, Object monitor) {
+        this.monitors.put(tid, monitor);
+        if (blockers.equals(this.edges.put(tid, blockers))) {
+            return null;
+        }
+        final TransactionId victim = youngestOnCycle(tid);
+        if (victim != null && !victim.equals(tid)) {
+            this.victims.add(victim);
+        }
+        return victim;
+    }
+
+    /**
+     * Drops the edges of tid, which waits for a lock that was just released
+     * and is about to be woken.  They may point at a transaction that no
+     * longer blocks it; tid records them afresh when it rechecks the lock,
+     * and any cycle they close is found then.
+     */
+    synchronized void recheck(TransactionId tid) {
+        this.edges.remove(tid);
+    }
+
+    /** @return the monitor victim waits on, to wake it up with */
+    synchronized Object monitorOf(TransactionId victim) {
+        return this.monitors.get(victim);
+    }
+
+    /** @return true, once, if tid has been chosen as a victim */
+    synchronized boolean takeVictim(TransactionId tid) {
+        return this.victims.remove(tid);
+    }
+
+    /** Removes tid, which no longer waits. */
+    synchronized void leave(TransactionId tid) {
+        this.edges.remove(tid);
+        this.monitors.remove(tid);
+        this.victims.remove(tid);
+    }
+
+    /**
+     * Looks for a cycle through start with a depth-first search.
+     *
+     * @return the youngest transaction on the cycle, or null if there is none
+     */
+    private TransactionId youngestOnCycle(TransactionId start) {
+        final Map<TransactionId, TransactionId> parent = new HashMap<>();
+        final Deque<TransactionId> stack = new ArrayDeque<>();
+        stack.push(start);
+        parent.put(start, null);
+        while (!stack.isEmpty()) {
+            final TransactionId tid = stack.pop();
+            final Set<TransactionId> out = this.edges.get(tid);
+            if (out == null) {
+                continue;
+            }
+            for (TransactionId next : out) {
+                if (next.equals(start)) {
+                    // walk the path back from tid to start
+                    TransactionId youngest = start;
+                    for (TransactionId t = tid; t != null; t = parent.get(t)) {
+                        if (t.getId() > youngest.getId()) {
+                            youngest = t;
+                        }
+                    }
+                    return youngest;
+                }
+                if (!parent.containsKey(next)) {
+                    parent.put(next, tid);
+                    stack.push(next);
+                }
+            }
+        }
+        return null;
+    }
+}
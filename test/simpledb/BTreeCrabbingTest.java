@@ -0,0 +1,107 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeCrabbingTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * @return the pages other than leaves that tid holds locks on
+	 */
+	private List<PageId> lockedAboveLeaves(TransactionId tid) {
+		List<PageId> above = new ArrayList<PageId>();
+		for (PageId pid : Database.getBufferPool().getLockManager().getLockedPages(tid)) {
+			if (pid instanceof BTreePageId && ((BTreePageId) pid).pgcateg() != BTreePageId.LEAF)
+				above.add(pid);
+		}
+		return above;
+	}
+
+	@Test
+	public void searchKeepsOnlyLeafLocks() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20000, null, tuples, 0);
+		int key = tuples.get(tuples.size() / 2).get(0);
+
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		it.open();
+		assertTrue(it.hasNext());
+		while (it.hasNext())
+			assertEquals(new IntField(key), it.next().getField(0));
+		it.close();
+
+		assertTrue(lockedAboveLeaves(tid).isEmpty());
+		assertFalse(Database.getBufferPool().getLockManager().getLockedPages(tid).isEmpty());
+	}
+
+	@Test
+	public void insertWithRoomLocksOnlyLeaf() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20000, null, tuples, 0);
+		int key = tuples.get(tuples.size() / 2).get(0);
+
+		// the first insert may have to split the leaf; the second has room
+		TransactionId first = new TransactionId();
+		Database.getBufferPool().insertTuple(first, bf.getId(), BTreeUtility.getBTreeTuple(key, 2));
+		Database.getBufferPool().transactionComplete(first);
+
+		Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(key, 2));
+		assertTrue(lockedAboveLeaves(tid).isEmpty());
+		assertEquals(1, Database.getBufferPool().getLockManager().getLockedPages(tid).size());
+	}
+
+	@Test
+	public void staleSearchMovesRight() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10, null, tuples, 0);
+		BTreePageId oldRoot = bf.getRootId(tid);
+		assertEquals(BTreePageId.LEAF, oldRoot.pgcateg());
+
+		// grow the root leaf into a tree of several leaves
+		TransactionId writer = new TransactionId();
+		int rows = 4 * BTreeUtility.getNumTuplesPerPage(2);
+		for (int i = 0; i < rows; ++i) {
+			Database.getBufferPool().insertTuple(writer, bf.getId(),
+					BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE + i, 2));
+		}
+		Database.getBufferPool().transactionComplete(writer);
+		assertFalse(oldRoot.equals(bf.getRootId(tid)));
+
+		// a search that read the old root reaches the last leaf through the siblings
+		Field last = new IntField(BTreeUtility.MAX_RAND_VALUE + rows - 1);
+		BTreeLeafPage leaf = bf.findLeafPage(tid, oldRoot, Permissions.READ_ONLY, last);
+		assertNull(leaf.getRightSiblingId());
+		Iterator<Tuple> it = leaf.reverseIterator();
+		assertEquals(last, it.next().getField(0));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCrabbingTest.class);
+	}
+}
@@ -7,6 +7,13 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
 
@@ -43,6 +50,87 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Inserts into file from threads at once, each running transactions
+     * of one insert, and fails if any transaction does not commit.
+     */
+    private static void insertConcurrently(final HeapFile file, final int columns,
+            int threads, final int transactions) throws Exception {
+        final CyclicBarrier start = new CyclicBarrier(threads);
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        List<Thread> inserters = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread inserter = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < transactions; j++) {
+                            TransactionId t = new TransactionId();
+                            try {
+                                Database.getBufferPool().insertTuple(t, file.getId(),
+                                        Utility.getHeapTuple(j, columns));
+                            } catch (TransactionAbortedException e) {
+                                // release its locks, or the other inserters hang
+                                Database.getBufferPool().transactionComplete(t, false);
+                                throw e;
+                            }
+                            Database.getBufferPool().transactionComplete(t);
+                        }
+                    } catch (Exception e) {
+                        error.set(e);
+                    }
+                }
+            };
+            inserter.start();
+            inserters.add(inserter);
+        }
+        for (Thread inserter : inserters) {
+            inserter.join();
+        }
+        assertNull(error.get());
+    }
+
+    /**
+     * Transactions inserting into the same page at once all commit: none
+     * holds a shared lock on the page while it waits for an exclusive one,
+     * so none is aborted as a deadlock victim.
+     */
+    @Test(timeout = 60000) public void concurrentInserts() throws Exception {
+        empty.insertTuple(tid, Utility.getHeapTuple(-1, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        insertConcurrently(empty, 2, 2, 100);
+        assertEquals(1, empty.numPages());
+        HeapPage page = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), 0));
+        assertEquals(504 - 1 - 2 * 100, page.getNumEmptySlots());
+    }
+
+    /**
+     * Inserts that extend the file at once each get a page of their own:
+     * no committed tuple is lost to another insert writing the same new
+     * page empty, and the file grows by no more pages than it needs.
+     */
+    @Test(timeout = 60000) public void concurrentExtension() throws Exception {
+        // wide tuples, so that few fit on a page and the file grows often;
+        // eight to a page, which fills the header byte exactly
+        final int columns = 120;
+        File f = File.createTempFile("wide", ".dat");
+        f.deleteOnExit();
+        HeapFile wide = Utility.createEmptyHeapFile(f.getAbsolutePath(), columns);
+        insertConcurrently(wide, columns, 4, 50);
+
+        int perPage = new HeapPage(new HeapPageId(wide.getId(), 0),
+                HeapPage.createEmptyPageData()).getNumEmptySlots();
+        int tuples = 0;
+        for (int p = 0; p < wide.numPages(); p++) {
+            HeapPage page = (HeapPage) wide.readPage(new HeapPageId(wide.getId(), p));
+            for (Iterator<Tuple> it = page.iterator(); it.hasNext(); it.next()) {
+                tuples++;
+            }
+        }
+        assertEquals(4 * 50, tuples);
+        assertEquals((4 * 50 + perPage - 1) / perPage, wide.numPages());
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,71 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LogBufferTest {
+    private File file;
+    private RandomAccessFile raf;
+    private LogBuffer buffer;
+
+    @Before public void setUp() throws Exception {
+        file = File.createTempFile("logbuffer", ".log");
+        file.deleteOnExit();
+        raf = new RandomAccessFile(file, "rw");
+        buffer = new LogBuffer(64);
+    }
+
+    @After public void tearDown() throws Exception {
+        buffer.close();
+        raf.close();
+    }
+
+    private byte[] contents() throws Exception {
+        byte[] bytes = new byte[(int) raf.length()];
+        raf.seek(0);
+        raf.readFully(bytes);
+        return bytes;
+    }
+
+    /** Records wrap around the ring, and ones larger than it grow it. */
+    @Test public void writesRecordsInOrder() throws Exception {
+        buffer.attach(raf.getChannel(), 0);
+        Random r = new Random(0);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 500; i++) {
+            byte[] record = new byte[1 + r.nextInt(i == 250 ? 200 : 40)];
+            r.nextBytes(record);
+            assertEquals(expected.size(), buffer.append(record));
+            expected.write(record);
+        }
+        buffer.flush(raf.getChannel(), expected.size());
+        assertArrayEquals(expected.toByteArray(), contents());
+    }
+
+    /** Attaching to a new offset waits for the bytes before it. */
+    @Test public void attachWaitsForWrites() throws Exception {
+        buffer.attach(raf.getChannel(), 8);
+        buffer.append(new byte[] {1, 2, 3});
+        buffer.attach(raf.getChannel(), 4);
+        assertEquals(4, buffer.append(new byte[] {9}));
+        buffer.flush(raf.getChannel(), 5);
+        assertArrayEquals(new byte[] {0, 0, 0, 0, 9, 0, 0, 0, 1, 2, 3}, contents());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogBufferTest.class);
+    }
+}
@@ -0,0 +1,86 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures commit throughput with 1 to 64 client threads, each running
+ * transactions that insert one tuple into the client's own table back to
+ * back, with and without group commit, and with asynchronous commit.  A
+ * commit writes no pages, only the log, so the numbers are bounded by the
+ * log force, which async commits leave to the flusher.  Run with:
+ * <pre>
+ *     ant runbench -Dbench=LogCommitBenchmark [-Dbench.args="maxClients"]
+ * </pre>
+ */
+public class LogCommitBenchmark {
+    private static final long RUN_MILLIS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int maxClients = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        LogFile log = Database.getLogFile();
+
+        System.out.println("-- force per commit");
+        log.setGroupCommit(false);
+        run(log, maxClients, false);
+        System.out.println("-- group commit");
+        log.setGroupCommit(true);
+        run(log, maxClients, false);
+        System.out.println("-- async commit");
+        run(log, maxClients, true);
+    }
+
+    private static void run(LogFile log, int maxClients, boolean async) throws Exception {
+        for (int clients = 1; clients <= maxClients; clients *= 2) {
+            int forces = log.getTotalForces();
+            long begin = System.nanoTime();
+            long commits = measure(clients, async);
+            long elapsed = System.nanoTime() - begin;
+            System.out.printf("clients=%2d  %9.0f commits/s  %6.1f commits/force%n",
+                    clients, commits * 1e9 / elapsed,
+                    (double) commits / Math.max(1, log.getTotalForces() - forces));
+        }
+    }
+
+    private static long measure(int clients, final boolean async) throws Exception {
+        final AtomicLong commits = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long deadline = System.nanoTime() + RUN_MILLIS * 1000000L;
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int c = 0; c < clients; c++) {
+            File f = File.createTempFile("logcommit", ".db");
+            f.deleteOnExit();
+            final HeapFile table = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+            Thread w = new Thread(new Runnable() {
+                public void run() {
+                    long n = 0;
+                    try {
+                        start.await();
+                        while (System.nanoTime() < deadline) {
+                            Transaction t = new Transaction();
+                            t.setAsyncCommit(async);
+                            t.start();
+                            Database.getBufferPool().insertTuple(t.getId(), table.getId(),
+                                    Utility.getHeapTuple((int) n, 2));
+                            t.commit();
+                            n++;
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    commits.addAndGet(n);
+                }
+            });
+            w.start();
+            workers.add(w);
+        }
+        start.countDown();
+        for (Thread w : workers) {
+            w.join();
+        }
+        return commits.get();
+    }
+}
@@ -0,0 +1,378 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.buffer.BufferPoolManager;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogFileTest extends SimpleDbTestBase {
+    private static final int CLIENTS = 16;
+    private static final int COMMITS = 20;
+
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        log = Database.getLogFile();
+    }
+
+    /**
+     * Runs COMMITS transactions on each of CLIENTS threads at once, each
+     * inserting a tuple into its client's own table.
+     */
+    private void commitConcurrently() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        List<Thread> clients = new ArrayList<Thread>();
+        for (int c = 0; c < CLIENTS; c++) {
+            File file = new File("logfiletest" + c + ".db");
+            file.deleteOnExit();
+            final HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < COMMITS; i++) {
+                            insertAndCommit(hf, i);
+                        }
+                    } catch (Exception e) {
+                        error.set(e);
+                    }
+                }
+            };
+            t.start();
+            clients.add(t);
+        }
+        start.countDown();
+        for (Thread t : clients) {
+            t.join();
+        }
+        assertEquals(null, error.get());
+    }
+
+    /** Every commit is logged, and concurrent commits share forces. */
+    @Test public void groupCommit() throws Exception {
+        int records = log.getTotalRecords();
+        int forces = log.getTotalForces();
+        commitConcurrently();
+        // BEGIN, TUPLE_INSERT and COMMIT
+        assertEquals(records + 3 * CLIENTS * COMMITS, log.getTotalRecords());
+        int shared = log.getTotalForces() - forces;
+        assertTrue(shared > 0);
+        assertTrue(shared < CLIENTS * COMMITS);
+    }
+
+    /** Without group commit each commit forces the log once. */
+    @Test public void forcePerCommit() throws Exception {
+        log.setGroupCommit(false);
+        try {
+            int forces = log.getTotalForces();
+            commitConcurrently();
+            assertEquals(CLIENTS * COMMITS, log.getTotalForces() - forces);
+        } finally {
+            log.setGroupCommit(true);
+        }
+    }
+
+    /** An async commit returns without a force, and the flusher forces it soon after. */
+    @Test public void asyncCommitForcedLater() throws Exception {
+        log.setAsyncCommitDelay(200);
+        Transaction t = new Transaction();
+        t.setAsyncCommit(true);
+        t.start();
+        int forces = log.getTotalForces();
+        t.commit();
+        assertEquals(forces, log.getTotalForces());
+        for (int i = 0; i < 100 && log.getTotalForces() == forces; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(forces + 1, log.getTotalForces());
+    }
+
+    /** A crash that loses an async commit's record rolls the transaction back. */
+    @Test public void lostAsyncCommitRolledBack() throws Exception {
+        log.setAsyncCommitDelay(60000);
+        File file = new File("logfiletest.db");
+        file.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        Transaction t = new Transaction();
+        t.setAsyncCommit(true);
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(1, 2));
+        Database.getBufferPool().flushPages(t.getId());
+        long commit = log.currentOffset;
+        t.commit();
+        assertEquals(1, tuplesOnDisk(hf));
+
+        // crash before the flusher forces the log: the commit record is
+        // lost, while the insert was forced ahead of the page
+        log.close();
+        RandomAccessFile segment = new RandomAccessFile(log.logFile.getPath() + ".0", "rw");
+        try {
+            segment.setLength(commit);
+        } finally {
+            segment.close();
+        }
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(0, tuplesOnDisk(hf));
+    }
+
+    /** Recovery leaves alone a commit made through the buffer pool, without a BEGIN. */
+    @Test public void poolCommitNotRolledBack() throws Exception {
+        File file = new File("logfiletest.db");
+        file.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        // the first append starts a new log; the commit itself appends nothing
+        log.logCheckpoint();
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(1, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1, tuplesOnDisk(hf));
+
+        log.close();
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(1, tuplesOnDisk(hf));
+    }
+
+    /** A single-tuple insert into a heap file logs the tuple, not its page. */
+    @Test public void insertLogsTupleOnly() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Transaction t = new Transaction();
+        t.start();
+        log.force();
+        long before = log.currentOffset;
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(7, 2));
+        log.force();
+        long logged = log.currentOffset - before;
+        assertTrue(logged > 0);
+        assertTrue(logged < 100);
+        t.commit();
+    }
+
+    /** @return the number of tuples on page 0 of hf, on disk */
+    private int tuplesOnDisk(HeapFile hf) {
+        Iterator<Tuple> it = ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0))).iterator();
+        int n = 0;
+        for (; it.hasNext(); it.next()) {
+            n++;
+        }
+        return n;
+    }
+
+    private void insertAndCommit(HeapFile hf, int value) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(value, 2));
+        t.commit();
+    }
+
+    /** Redo starts from the dirty page table, not the start of the log. */
+    @Test public void redoSkipsPagesCleanAtCheckpoint() throws Exception {
+        File file = new File("logfiletest.db");
+        file.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        insertAndCommit(hf, 1);
+        Database.getBufferPool().flushAllPages();
+        log.logCheckpoint();
+        insertAndCommit(hf, 2);
+
+        // empty the page behind the log's back: only the change logged
+        // since the checkpoint is redone
+        hf.writePage(new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData()));
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(1, tuplesOnDisk(hf));
+    }
+
+    /**
+     * A commit leaves its pages dirty, and a checkpoint writes them, but not
+     * a running transaction's.
+     */
+    @Test public void checkpointWritesCommittedPages() throws Exception {
+        File file = new File("logfiletest.db");
+        file.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(1, 2));
+        log.logCheckpoint();
+        assertEquals(0, tuplesOnDisk(hf));
+        t.commit();
+        assertEquals(0, tuplesOnDisk(hf));
+        log.logCheckpoint();
+        assertEquals(1, tuplesOnDisk(hf));
+    }
+
+    /** Truncation deletes whole segments, and recovery reads across them. */
+    @Test public void truncateDropsSegments() throws Exception {
+        long size = 4 * BufferPoolManager.getPageSize();
+        LogFile.setSegmentSize(size);
+        try {
+            Database.reset();
+            log = Database.getLogFile();
+            File file = new File("logfiletest.db");
+            file.deleteOnExit();
+            HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+            for (int i = 0; i < 200; i++) {
+                insertAndCommit(hf, i);
+            }
+            assertTrue(log.currentOffset / size >= 1);
+            assertTrue(new File(log.logFile.getPath() + ".0").exists());
+            // the committed pages are written, so redo needs nothing older
+            // than the running transaction
+            Database.getBufferPool().flushAllPages();
+
+            Transaction t = new Transaction();
+            t.start();
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(200, 2));
+            log.logCheckpoint();
+            assertFalse(new File(log.logFile.getPath() + ".0").exists());
+            Database.getBufferPool().flushAllPages();
+            assertEquals(201, tuplesOnDisk(hf));
+
+            Database.reset();
+            hf = Utility.openHeapFile(2, file);
+            Database.getLogFile().recover();
+            assertEquals(200, tuplesOnDisk(hf));
+        } finally {
+            LogFile.resetSegmentSize();
+        }
+    }
+
+    /** Page images are logged compressed: a nearly empty page takes little. */
+    @Test public void pageImagesCompressed() throws Exception {
+        File file = new File("logfiletest.db");
+        file.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage before = new HeapPage(pid, HeapPage.createEmptyPageData());
+        HeapPage after = new HeapPage(pid, HeapPage.createEmptyPageData());
+        after.insertTuple(Utility.getHeapTuple(7, 2));
+        Transaction t = new Transaction();
+        t.start();
+        long start = log.logWrite(t.getId(), before, after);
+        long logged = log.currentOffset - start;
+        assertTrue(logged < BufferPoolManager.getPageSize() / 8);
+        t.commit();
+    }
+
+    /** Recovery stops at a record whose checksum fails, as after a torn write. */
+    @Test public void tornRecordEndsLog() throws Exception {
+        File file = new File("logfiletest.db");
+        file.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        insertAndCommit(hf, 1);
+        insertAndCommit(hf, 2);
+        Database.getBufferPool().flushAllPages();
+        assertEquals(2, tuplesOnDisk(hf));
+        log.force();
+
+        // damage the last record, the second commit: recovery takes the
+        // second transaction for one that never committed, and undoes it
+        RandomAccessFile segment = new RandomAccessFile(log.logFile.getPath() + ".0", "rw");
+        try {
+            long pos = segment.length() - LogFile.LONG_SIZE - 1;
+            segment.seek(pos);
+            int b = segment.read();
+            segment.seek(pos);
+            segment.write(b ^ 0xff);
+        } finally {
+            segment.close();
+        }
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(1, tuplesOnDisk(hf));
+    }
+
+    /** Redo on several threads leaves every page as serial redo would. */
+    @Test public void parallelRedo() throws Exception {
+        File file = new File("logfiletest.db");
+        file.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        for (int i = 0; i < 1200; i++) {
+            insertAndCommit(hf, i);
+        }
+        int pages = hf.numPages();
+        assertTrue(pages > 2);
+
+        // lose every page behind the log's back; with no checkpoint all
+        // of the log is redone
+        for (int p = 0; p < pages; p++) {
+            hf.writePage(new HeapPage(new HeapPageId(hf.getId(), p), HeapPage.createEmptyPageData()));
+        }
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().setRedoThreads(4);
+        Database.getLogFile().recover();
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId());
+        scan.open();
+        int n = 0;
+        for (; scan.hasNext(); scan.next()) {
+            n++;
+        }
+        scan.close();
+        t.commit();
+        assertEquals(1200, n);
+    }
+
+    /** print() reads back every kind of record the log writes. */
+    @Test public void printShowsRecords() throws Exception {
+        File file = new File("logfiletest.db");
+        file.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        insertAndCommit(hf, 1);
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(2, 2));
+        log.logCheckpoint();
+        t.abort();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(out, true));
+        try {
+            log.print();
+        } finally {
+            System.setOut(stdout);
+        }
+        String printed = out.toString();
+        for (String type : new String[] {"BEGIN", "TUPLE_INSERT", "COMMIT", "CHECKPOINT",
+                                         "COMPENSATION tid " + t.getId().getId() + " as TUPLE_DELETE",
+                                         "ABORT"}) {
+            assertTrue(type + " missing from:\n" + printed, printed.contains(type));
+        }
+        assertFalse(printed.contains("torn"));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
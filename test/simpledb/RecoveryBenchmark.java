@@ -0,0 +1,102 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures recovery time over a synthetic log of committed page updates
+ * that never reached the tables, redone with 1 up to maxThreads threads.
+ * The log spreads its updates over 16 tables of 256 pages each, one
+ * transaction per 64 updates, and has no checkpoint, so recovery redoes
+ * all of it.  The log is written once and recovered repeatedly; it is
+ * likely in the page cache after the first run.  Run with:
+ * <pre>
+ *     ant runbench -Dbench=RecoveryBenchmark [-Dbench.args="logMB maxThreads"]
+ * </pre>
+ * A multi-GB log needs as much free disk for its segments.
+ */
+public class RecoveryBenchmark {
+    private static final int TABLES = 16;
+    private static final int PAGES_PER_TABLE = 256;
+    private static final int UPDATES_PER_TRANSACTION = 64;
+
+    public static void main(String[] args) throws Exception {
+        long logMB = args.length > 0 ? Long.parseLong(args[0]) : 1024;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+
+        File dir = new File(System.getProperty("java.io.tmpdir"), "simpledb-recovery");
+        dir.mkdirs();
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < TABLES; i++) {
+            files.add(new File(dir, "table" + i + ".dat"));
+        }
+        try {
+            Database.reset();
+            long bytes = writeLog(files, logMB << 20);
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                long elapsed = recover(files, threads);
+                System.out.printf("threads=%2d  %7.2f s  %8.1f MB/s%n",
+                        threads, elapsed / 1e9, (bytes / 1048576.0) * 1e9 / elapsed);
+            }
+        } finally {
+            // starting a fresh log drops the benchmark's segments
+            Database.reset();
+            Database.getLogFile().logTruncate();
+            for (File f : files) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * Logs updates to the tables in files until the log holds bytes,
+     * and closes it without writing any page.
+     *
+     * @return the number of bytes logged
+     */
+    private static long writeLog(List<File> files, long bytes) throws Exception {
+        List<HeapFile> tables = new ArrayList<HeapFile>();
+        for (File f : files) {
+            tables.add(Utility.createEmptyHeapFile(f.getAbsolutePath(), 2));
+        }
+        LogFile log = Database.getLogFile();
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long start = log.currentOffset;
+        for (int i = 0; log.currentOffset - start < bytes; i++) {
+            HeapFile table = tables.get(i % TABLES);
+            HeapPageId pid = new HeapPageId(table.getId(), (i / TABLES) % PAGES_PER_TABLE);
+            HeapPage before = new HeapPage(pid, HeapPage.createEmptyPageData());
+            HeapPage after = new HeapPage(pid, HeapPage.createEmptyPageData());
+            after.insertTuple(Utility.getHeapTuple(i, 2));
+            log.logWrite(tid, before, after);
+            if (i % UPDATES_PER_TRANSACTION == UPDATES_PER_TRANSACTION - 1) {
+                log.logCommit(tid);
+                tid = new TransactionId();
+                log.logXactionBegin(tid);
+            }
+        }
+        log.logCommit(tid);
+        long logged = log.currentOffset - start;
+        log.close();
+        return logged;
+    }
+
+    /** @return the nanoseconds recovery took with threads redo threads */
+    private static long recover(List<File> files, int threads) throws Exception {
+        Database.reset();
+        for (File f : files) {
+            Utility.openHeapFile(2, f);
+        }
+        LogFile log = Database.getLogFile();
+        log.setRedoThreads(threads);
+        long begin = System.nanoTime();
+        log.recover();
+        long elapsed = System.nanoTime() - begin;
+        log.close();
+        return elapsed;
+    }
+}
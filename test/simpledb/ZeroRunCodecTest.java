@@ -0,0 +1,62 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ZeroRunCodecTest {
+    private static byte[] roundTrip(byte[] data) throws IOException {
+        byte[] compressed = ZeroRunCodec.compress(data, data.length);
+        byte[] expanded = ZeroRunCodec.expand(compressed, compressed.length);
+        assertArrayEquals(data, expanded);
+        return compressed;
+    }
+
+    /** Inputs of every shape come back as they went in. */
+    @Test public void roundTrips() throws Exception {
+        roundTrip(new byte[0]);
+        roundTrip(new byte[] {0});
+        roundTrip(new byte[] {1, 0, 0, 2, 0, 0, 0, 0, 3, 0});
+        roundTrip(new byte[] {0, 0, 0, 0, 0, 7});
+        Random random = new Random(24);
+        for (int i = 0; i < 200; i++) {
+            byte[] data = new byte[random.nextInt(5000)];
+            for (int j = 0; j < data.length; j++) {
+                // mostly zeros, in runs of all lengths
+                if (random.nextInt(8) == 0) {
+                    data[j] = (byte) random.nextInt();
+                }
+            }
+            roundTrip(data);
+        }
+    }
+
+    /** An empty page shrinks to a few bytes, and a full one hardly grows. */
+    @Test public void sizes() throws Exception {
+        assertTrue(roundTrip(new byte[4096]).length < 8);
+        byte[] full = new byte[4096];
+        Arrays.fill(full, (byte) 1);
+        assertTrue(roundTrip(full).length < 4096 + 8);
+    }
+
+    /** A truncated encoding is rejected rather than expanded. */
+    @Test(expected = IOException.class) public void truncated() throws Exception {
+        byte[] data = new byte[100];
+        data[50] = 1;
+        byte[] compressed = ZeroRunCodec.compress(data, data.length);
+        ZeroRunCodec.expand(compressed, compressed.length - 1);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ZeroRunCodecTest.class);
+    }
+}
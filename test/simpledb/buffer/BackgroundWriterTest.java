@@ -0,0 +1,112 @@
+package simpledb.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BackgroundWriterTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 20;
+
+    private HeapFile file;
+    private BufferPoolManager bp;
+
+    @Before public void createFile() throws Exception {
+        file = SystemTestUtil.createRandomHeapFile(2, 3 * POOL_PAGES * 504, null, null);
+        bp = Database.resetBufferPool(POOL_PAGES);
+    }
+
+    /** Reads pages [from, to) READ_WRITE and marks them dirty by tid. */
+    private void dirty(TransactionId tid, int from, int to) throws Exception {
+        for (int p = from; p < to; p++) {
+            Page page = bp.getPage(tid, new HeapPageId(file.getId(), p), Permissions.READ_WRITE);
+            page.markDirty(true, tid);
+        }
+    }
+
+    /**
+     * Marks pages [from, to) dirty by a transaction that has completed
+     * without its pages being written.  Committing through the buffer pool
+     * writes them, so the pages are read outside of any transaction.
+     */
+    private TransactionId dirtyCompleted(int from, int to) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int p = from; p < to; p++) {
+            resident(p).markDirty(true, tid);
+        }
+        return tid;
+    }
+
+    private Page resident(int p) throws Exception {
+        return bp.getPage(null, new HeapPageId(file.getId(), p), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Once the writer has cleaned the pages of a completed transaction,
+     * evicting them needs no write.
+     */
+    @Test public void missesFindCleanVictims() throws Exception {
+        dirtyCompleted(0, POOL_PAGES);
+
+        BackgroundWriter writer = new BackgroundWriter(bp, 0, 8);
+        assertEquals(8, writer.writeRound());
+        assertEquals(8, writer.writeRound());
+        assertEquals(4, writer.writeRound());
+        assertEquals(0, writer.writeRound());
+        for (int p = 0; p < POOL_PAGES; p++) {
+            assertNull(resident(p).isDirty());
+        }
+
+        for (int p = POOL_PAGES; p < 3 * POOL_PAGES; p++) {
+            resident(p);
+        }
+        assertEquals(0, bp.getEvictionWrites());
+    }
+
+    /** Pages dirtied by a running transaction are never written. */
+    @Test public void runningTransactionsAreSkipped() throws Exception {
+        TransactionId running = new TransactionId();
+        dirtyCompleted(0, 5);
+        dirty(running, 5, 10);
+
+        BackgroundWriter writer = new BackgroundWriter(bp, 0, POOL_PAGES);
+        assertEquals(5, writer.writeRound());
+        assertEquals(0, writer.writeRound());
+        for (int p = 5; p < 10; p++) {
+            assertNotNull(resident(p).isDirty());
+        }
+    }
+
+    /** The started writer cleans pages on its own and stops on request. */
+    @Test public void startAndStop() throws Exception {
+        dirtyCompleted(0, POOL_PAGES);
+
+        bp.startBackgroundWriter(1, 4);
+        long deadline = System.currentTimeMillis() + 10000;
+        boolean clean = false;
+        while (!clean && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+            clean = true;
+            for (int p = 0; p < POOL_PAGES; p++) {
+                clean &= resident(p).isDirty() == null;
+            }
+        }
+        bp.stopBackgroundWriter();
+        assertTrue(clean);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BackgroundWriterTest.class);
+    }
+}
@@ -0,0 +1,101 @@
+package simpledb.buffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures BufferPoolManager.getPage() throughput with 1 to N client threads.
+ * <p>
+ * Two workloads are run over the same heap file: a hit-only workload where
+ * the whole table fits in the pool, and a miss-heavy workload where the pool
+ * holds a quarter of the table.  Run with:
+ * <pre>
+ *     ant runbench -Dbench=buffer.BufferPoolBenchmark [-Dbench.args="threads policy"]
+ * </pre>
+ * where policy is one of the {@link ReplacementPolicy} names (default CLOCK).
+ */
+public class BufferPoolBenchmark {
+    private static final int TABLE_PAGES = 256;
+    private static final int TUPLES_PER_PAGE = 504;
+    private static final long RUN_MILLIS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0])
+                : Runtime.getRuntime().availableProcessors();
+        ReplacementPolicy policy = args.length > 1 ? ReplacementPolicy.valueOf(args[1])
+                : ReplacementPolicy.CLOCK;
+
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, TABLE_PAGES * TUPLES_PER_PAGE, null, null);
+        System.out.println("table pages: " + f.numPages() + ", policy: " + policy);
+
+        System.out.println("-- hits (pool holds the whole table)");
+        run(f, f.numPages() * 2, policy, maxThreads);
+        System.out.println("-- misses (pool holds a quarter of the table)");
+        run(f, f.numPages() / 4, policy, maxThreads);
+    }
+
+    private static void run(HeapFile f, int poolPages, ReplacementPolicy policy, int maxThreads)
+            throws Exception {
+        double base = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            BufferPoolManager bp = Database.resetBufferPool(poolPages, policy);
+            // warm the pool so the hit workload never reads from disk
+            for (int i = 0; i < Math.min(poolPages, f.numPages()); i++) {
+                bp.getPage(null, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+            }
+            double opsPerSec = measure(bp, f, threads);
+            if (threads == 1) {
+                base = opsPerSec;
+            }
+            System.out.printf("threads=%2d  %12.0f getPage/s  speedup %.2fx%n",
+                    threads, opsPerSec, opsPerSec / base);
+        }
+    }
+
+    private static double measure(final BufferPoolManager bp, final HeapFile f, int threads)
+            throws InterruptedException {
+        final AtomicLong ops = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long deadline[] = new long[1];
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            Thread w = new Thread(new Runnable() {
+                public void run() {
+                    Random r = new Random(seed);
+                    TransactionId tid = new TransactionId();
+                    long n = 0;
+                    try {
+                        start.await();
+                        while (System.nanoTime() < deadline[0]) {
+                            for (int i = 0; i < 1024; i++) {
+                                bp.getPage(tid, new HeapPageId(f.getId(), r.nextInt(f.numPages())),
+                                        Permissions.READ_ONLY);
+                            }
+                            n += 1024;
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    ops.addAndGet(n);
+                }
+            });
+            w.start();
+            workers.add(w);
+        }
+        long begin = System.nanoTime();
+        deadline[0] = begin + RUN_MILLIS * 1000000L;
+        start.countDown();
+        for (Thread w : workers) {
+            w.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        return ops.get() * 1e9 / elapsed;
+    }
+}
@@ -0,0 +1,148 @@
+package simpledb.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+public class ClockProReplacerTest {
+
+    /**
+     * Emulates a buffer pool of the given size: a miss evicts a victim when
+     * the pool is full and inserts the value, a hit touches it.
+     *
+     * @return true if the access was a hit
+     */
+    private static boolean access(Replacer<Integer> replacer, Set<Integer> resident,
+                                  int capacity, int value) {
+        if (resident.contains(value)) {
+            replacer.touch(value);
+            return true;
+        }
+        if (resident.size() == capacity) {
+            Integer victim = replacer.victim();
+            assertNotNull(victim);
+            assertTrue(resident.remove(victim));
+        }
+        replacer.insert(value);
+        resident.add(value);
+        return false;
+    }
+
+    @Test public void victimAndErase() {
+        ClockProReplacer<Integer> replacer = new ClockProReplacer<Integer>(3);
+        replacer.insert(1);
+        replacer.insert(2);
+        replacer.insert(3);
+        assertEquals(3, replacer.size());
+        assertTrue(replacer.erase(2));
+        assertFalse(replacer.erase(2));
+        assertEquals(2, replacer.size());
+        assertNotNull(replacer.victim());
+        assertNotNull(replacer.victim());
+        assertNull(replacer.victim());
+        assertEquals(0, replacer.size());
+    }
+
+    /**
+     * A value evicted during its test period and then re-inserted comes
+     * back hot, so it outlives values that were only touched once.
+     */
+    @Test public void reinsertDuringTestPeriodIsHot() {
+        ClockProReplacer<Integer> replacer = new ClockProReplacer<Integer>(4);
+        for (int i = 1; i <= 4; i++) {
+            replacer.insert(i);
+        }
+        assertEquals(Integer.valueOf(1), replacer.victim());
+        replacer.insert(1);
+        for (int i = 5; i <= 7; i++) {
+            Integer victim = replacer.victim();
+            assertNotNull(victim);
+            assertFalse(victim.equals(1));
+            replacer.insert(i);
+        }
+    }
+
+    /**
+     * A small hot set that is re-read between the pages of a long one-touch
+     * scan stays cached under CLOCK-Pro, while plain CLOCK loses it.
+     */
+    @Test public void scanResistance() {
+        final int capacity = 20;
+        int proHits = 0;
+        int clockHits = 0;
+        Replacer<Integer> pro = new ClockProReplacer<Integer>(capacity);
+        Replacer<Integer> clock = new ClockReplacer<Integer>(capacity);
+        Set<Integer> proResident = new HashSet<Integer>();
+        Set<Integer> clockResident = new HashSet<Integer>();
+        int scan = 1000;
+        for (int round = 0; round < 200; round++) {
+            for (int hot = 0; hot < 5; hot++) {
+                if (access(pro, proResident, capacity, hot)) proHits++;
+                if (access(clock, clockResident, capacity, hot)) clockHits++;
+            }
+            for (int i = 0; i < 10; i++, scan++) {
+                access(pro, proResident, capacity, scan);
+                access(clock, clockResident, capacity, scan);
+            }
+        }
+        assertTrue("CLOCK-Pro hits " + proHits, proHits > 900);
+        assertTrue("CLOCK-Pro " + proHits + " vs CLOCK " + clockHits, proHits > clockHits);
+    }
+
+    /**
+     * Lock-free hits racing with a pool that keeps evicting and admitting
+     * never disturb which values are resident.
+     */
+    @Test public void touchRacesWithEviction() throws Exception {
+        final int capacity = 16;
+        final ClockProReplacer<Integer> replacer = new ClockProReplacer<Integer>(capacity);
+        final AtomicBoolean done = new AtomicBoolean();
+        List<Thread> touchers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final Random random = new Random(t);
+            Thread toucher = new Thread() {
+                public void run() {
+                    while (!done.get()) {
+                        replacer.touch(random.nextInt(64));
+                    }
+                }
+            };
+            toucher.start();
+            touchers.add(toucher);
+        }
+        Set<Integer> resident = new HashSet<Integer>();
+        Random random = new Random(2);
+        try {
+            for (int i = 0; i < 200000; i++) {
+                access(replacer, resident, capacity, random.nextInt(64));
+            }
+        } finally {
+            done.set(true);
+            for (Thread toucher : touchers) {
+                toucher.join();
+            }
+        }
+        assertEquals(capacity, replacer.size());
+        assertEquals(resident, new HashSet<Integer>(replacer.victimOrder()));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ClockProReplacerTest.class);
+    }
+}
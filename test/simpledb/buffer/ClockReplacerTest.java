@@ -0,0 +1,79 @@
+package simpledb.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClockReplacerTest {
+
+    private ClockReplacer<Integer> replacer;
+
+    @Before public void setUp() {
+        replacer = new ClockReplacer<Integer>(4);
+        for (int i = 0; i < 4; i++) {
+            replacer.insert(i);
+        }
+    }
+
+    /**
+     * With every reference bit set, the hand clears them all and then
+     * evicts in slot order.
+     */
+    @Test public void victimInInsertOrder() {
+        assertEquals(4, replacer.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Integer.valueOf(i), replacer.victim());
+        }
+        assertNull(replacer.victim());
+        assertEquals(0, replacer.size());
+    }
+
+    /**
+     * A value touched after the hand cleared its bit gets a second chance.
+     */
+    @Test public void touchGivesSecondChance() {
+        assertEquals(Integer.valueOf(0), replacer.victim());
+        replacer.touch(1);
+        assertEquals(Integer.valueOf(2), replacer.victim());
+        assertEquals(Integer.valueOf(3), replacer.victim());
+        assertEquals(Integer.valueOf(1), replacer.victim());
+    }
+
+    /**
+     * touch() never starts tracking a value; insert() reuses freed slots.
+     */
+    @Test public void touchDoesNotAdmit() {
+        replacer.touch(7);
+        assertEquals(4, replacer.size());
+        replacer.victim();
+        replacer.touch(7);
+        assertEquals(3, replacer.size());
+        replacer.insert(7);
+        assertEquals(4, replacer.size());
+    }
+
+    @Test public void erase() {
+        assertTrue(replacer.erase(0));
+        assertFalse(replacer.erase(0));
+        assertEquals(3, replacer.size());
+        assertEquals(Integer.valueOf(1), replacer.victim());
+        replacer.insert(9);
+        assertEquals(3, replacer.size());
+    }
+
+    @Test(expected = IllegalStateException.class) public void full() {
+        replacer.insert(4);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ClockReplacerTest.class);
+    }
+}
@@ -0,0 +1,141 @@
+package simpledb.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.systemtest.SystemTestUtil.InstrumentedHeapFile;
+
+public class FlushTest extends SimpleDbTestBase {
+    private static final int TABLE_PAGES = 10;
+
+    private InstrumentedHeapFile a;
+    private InstrumentedHeapFile b;
+    private BufferPoolManager bp;
+
+    @Before public void setUp() throws Exception {
+        a = SystemTestUtil.createInstrumentedHeapFile(TABLE_PAGES, null);
+        b = SystemTestUtil.createInstrumentedHeapFile(TABLE_PAGES, null);
+        bp = Database.resetBufferPool(2 * TABLE_PAGES);
+    }
+
+    /** Deletes the first tuple of a page on behalf of tid and returns the page. */
+    private HeapPage dirty(HeapFile file, int pageNumber, TransactionId tid) throws Exception {
+        HeapPage page = (HeapPage) bp.getPage(tid, new HeapPageId(file.getId(), pageNumber),
+                Permissions.READ_WRITE);
+        page.deleteTuple(page.iterator().next());
+        page.markDirty(true, tid);
+        return page;
+    }
+
+    private int emptySlotsOnDisk(HeapFile file, int pageNumber) {
+        return ((HeapPage) file.readPage(new HeapPageId(file.getId(), pageNumber))).getNumEmptySlots();
+    }
+
+    /** Each file gets its dirty pages in one batch, sorted by page number. */
+    @Test public void flushAllPagesBatchesPerFile() throws Exception {
+        TransactionId tid = new TransactionId();
+        List<HeapPage> pages = new ArrayList<HeapPage>();
+        for (int p : new int[] { 7, 2, 3, 5 }) {
+            pages.add(dirty(a, p, tid));
+        }
+        pages.add(dirty(b, 4, tid));
+        pages.add(dirty(b, 1, tid));
+
+        bp.flushAllPages();
+        assertEquals(Arrays.asList(Arrays.asList(2, 3, 5, 7)), a.batches);
+        assertEquals(Arrays.asList(Arrays.asList(1, 4)), b.batches);
+        assertEquals(0, a.singleWrites.get() + b.singleWrites.get());
+        // 2 and 3 are adjacent and go in one write
+        assertEquals(Arrays.asList(3), a.batchWrites);
+        assertEquals(Arrays.asList(2), b.batchWrites);
+        assertEquals(5, bp.getFlushWrites());
+        for (HeapPage page : pages) {
+            assertNull(page.isDirty());
+            HeapPageId pid = page.getId();
+            HeapFile file = pid.getTableId() == a.getId() ? a : b;
+            assertEquals(page.getNumEmptySlots(), emptySlotsOnDisk(file, pid.getPageNumber()));
+        }
+    }
+
+    /** flushPages writes the pages of one transaction and leaves the others dirty. */
+    @Test public void flushPagesWritesOneTransaction() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        HeapPage p1 = dirty(a, 1, t1);
+        HeapPage p2 = dirty(a, 2, t2);
+        HeapPage p6 = dirty(a, 6, t1);
+
+        bp.flushPages(t1);
+        assertEquals(Arrays.asList(Arrays.asList(1, 6)), a.batches);
+        assertNull(p1.isDirty());
+        assertNull(p6.isDirty());
+        assertSame(t2, p2.isDirty());
+        assertEquals(p6.getNumEmptySlots(), emptySlotsOnDisk(a, 6));
+        assertEquals(p2.getNumEmptySlots() - 1, emptySlotsOnDisk(a, 2));
+
+        bp.flushPages(t1);
+        assertEquals(1, a.batches.size());
+    }
+
+    /** A run of adjacent dirty pages goes to disk in one gathering write. */
+    @Test public void adjacentPagesMergeIntoOneWrite() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int p = 3; p <= 6; p++) {
+            dirty(a, p, tid);
+        }
+        dirty(a, 8, tid);
+
+        bp.flushPages(tid);
+        assertEquals(Arrays.asList(Arrays.asList(3, 4, 5, 6, 8)), a.batches);
+        assertEquals(Arrays.asList(2), a.batchWrites);
+        assertEquals(2, bp.getFlushWrites());
+    }
+
+    /** Flushes of different transactions run at once rather than queueing on the pool. */
+    @Test public void flushesDoNotShareAMonitor() throws Exception {
+        final TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        dirty(a, 1, t1);
+        HeapPage p2 = dirty(b, 2, t2);
+        final Thread flusher = new Thread() {
+            public void run() {
+                try {
+                    bp.flushPages(t1);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        // hold a's batch mid-write: t2's flush of b still completes
+        synchronized (a) {
+            flusher.start();
+            while (flusher.getState() != Thread.State.BLOCKED) {
+                Thread.sleep(1);
+            }
+            bp.flushPages(t2);
+            assertNull(p2.isDirty());
+        }
+        flusher.join();
+        assertEquals(1, a.batches.size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FlushTest.class);
+    }
+}
@@ -0,0 +1,85 @@
+package simpledb.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.systemtest.SystemTestUtil.InstrumentedHeapFile;
+
+public class FrameArenaTest extends SimpleDbTestBase {
+    /** Images go in and come out unchanged; the arena never exceeds its frames. */
+    @Test public void putAndGet() throws Exception {
+        InstrumentedHeapFile f = SystemTestUtil.createInstrumentedHeapFile(6, null);
+        FrameArena arena = new FrameArena(4, BufferPoolManager.getPageSize());
+        for (int p = 0; p < 6; p++) {
+            HeapPageId pid = new HeapPageId(f.getId(), p);
+            arena.put(pid, f.readPage(pid).getPageData());
+        }
+        int held = 0;
+        for (int p = 0; p < 6; p++) {
+            HeapPageId pid = new HeapPageId(f.getId(), p);
+            if (arena.contains(pid)) {
+                held++;
+                Page page = arena.get(pid, f);
+                assertTrue(Arrays.equals(f.readPage(pid).getPageData(), page.getPageData()));
+            }
+        }
+        assertEquals(4, held);
+        assertTrue(arena.contains(new HeapPageId(f.getId(), 5)));
+
+        arena.invalidate(new HeapPageId(f.getId(), 5));
+        assertFalse(arena.contains(new HeapPageId(f.getId(), 5)));
+    }
+
+    /** Pages evicted from a small on-heap pool are served from the arena. */
+    @Test public void missesHitArena() throws Exception {
+        InstrumentedHeapFile f = SystemTestUtil.createInstrumentedHeapFile(40, null);
+        BufferPoolManager bp = Database.resetBufferPool(4, ReplacementPolicy.LRU, 64);
+        for (int pass = 0; pass < 2; pass++) {
+            for (int p = 0; p < 40; p++) {
+                bp.getPage(null, new HeapPageId(f.getId(), p), Permissions.READ_ONLY);
+            }
+        }
+        assertEquals(40, f.reads.get());
+    }
+
+    /** A modified page keeps its changes after eviction to the arena and discard. */
+    @Test public void modificationsSurviveEviction() throws Exception {
+        InstrumentedHeapFile f = SystemTestUtil.createInstrumentedHeapFile(10, null);
+        BufferPoolManager bp = Database.resetBufferPool(2, ReplacementPolicy.LRU, 16);
+        TransactionId tid = new TransactionId();
+        HeapPageId pid = new HeapPageId(f.getId(), 3);
+        HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+        Tuple t = page.iterator().next();
+        page.deleteTuple(t);
+        page.markDirty(true, tid);
+        int free = page.getNumEmptySlots();
+
+        for (int p = 0; p < 10; p++) {
+            bp.getPage(tid, new HeapPageId(f.getId(), p), Permissions.READ_ONLY);
+        }
+        assertNotNull(bp.getArena());
+        assertTrue(bp.getArena().contains(pid));
+        assertEquals(free, ((HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY)).getNumEmptySlots());
+
+        bp.discardPage(pid);
+        assertFalse(bp.getArena().contains(pid));
+        assertEquals(free, ((HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY)).getNumEmptySlots());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FrameArenaTest.class);
+    }
+}
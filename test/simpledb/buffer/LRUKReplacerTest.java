@@ -0,0 +1,81 @@
+package simpledb.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LRUKReplacerTest {
+
+    private LRUKReplacer<Integer> replacer;
+
+    @Before public void setUp() {
+        replacer = new LRUKReplacer<Integer>(2, 4);
+    }
+
+    /**
+     * Values referenced once are evicted before values referenced twice,
+     * least recently used first.
+     */
+    @Test public void singleReferencesGoFirst() {
+        replacer.insert(1);
+        replacer.insert(2);
+        replacer.touch(1);
+        replacer.insert(3);
+        assertEquals(Integer.valueOf(2), replacer.victim());
+        assertEquals(Integer.valueOf(3), replacer.victim());
+        assertEquals(Integer.valueOf(1), replacer.victim());
+        assertNull(replacer.victim());
+    }
+
+    /**
+     * Among values with K references, the oldest K-th reference loses even if
+     * its most recent reference is newer.
+     */
+    @Test public void backwardKDistance() {
+        replacer.insert(1);
+        replacer.insert(2);
+        replacer.touch(2);
+        replacer.touch(1);
+        assertEquals(Integer.valueOf(1), replacer.victim());
+        assertEquals(Integer.valueOf(2), replacer.victim());
+    }
+
+    /**
+     * History survives eviction, so a value re-read soon after it was
+     * evicted outranks values seen only once.
+     */
+    @Test public void retainedHistory() {
+        replacer.insert(1);
+        assertEquals(Integer.valueOf(1), replacer.victim());
+        replacer.insert(2);
+        replacer.insert(1);
+        replacer.insert(3);
+        assertEquals(Integer.valueOf(2), replacer.victim());
+        assertEquals(Integer.valueOf(3), replacer.victim());
+        assertEquals(Integer.valueOf(1), replacer.victim());
+    }
+
+    @Test public void touchAndErase() {
+        replacer.touch(1);
+        assertEquals(0, replacer.size());
+        replacer.insert(1);
+        replacer.insert(2);
+        assertTrue(replacer.erase(1));
+        assertFalse(replacer.erase(1));
+        assertEquals(1, replacer.size());
+        assertEquals(Integer.valueOf(2), replacer.victim());
+        assertEquals(0, replacer.size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LRUKReplacerTest.class);
+    }
+}
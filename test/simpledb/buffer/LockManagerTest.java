@@ -0,0 +1,244 @@
+package simpledb.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+public class LockManagerTest {
+    private LockManager locks;
+    private TransactionId t1;
+    private TransactionId t2;
+    private PageId p0;
+    private PageId p1;
+
+    @Before public void setUp() {
+        locks = new LockManager();
+        locks.setTimeout(200);
+        t1 = new TransactionId();
+        t2 = new TransactionId();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+    }
+
+    private void assertTimesOut(TransactionId tid, PageId pid, Permissions perm) {
+        try {
+            locks.acquire(tid, pid, perm);
+            fail("expected " + perm + " on " + pid + " to time out");
+        } catch (TransactionAbortedException expected) {
+        }
+    }
+
+    @Test public void sharedLocksAreCompatible() throws Exception {
+        locks.acquire(t1, p0, Permissions.READ_ONLY);
+        locks.acquire(t2, p0, Permissions.READ_ONLY);
+        assertTrue(locks.holdsLock(t1, p0));
+        assertTrue(locks.holdsLock(t2, p0));
+        assertFalse(locks.holdsExclusive(t1, p0));
+        assertTimesOut(t2, p0, Permissions.READ_WRITE);
+        assertTrue(locks.holdsLock(t2, p0));
+    }
+
+    @Test public void exclusiveLockConflicts() throws Exception {
+        locks.acquire(t1, p0, Permissions.READ_WRITE);
+        assertTimesOut(t2, p0, Permissions.READ_ONLY);
+        assertTimesOut(t2, p0, Permissions.READ_WRITE);
+        assertFalse(locks.holdsLock(t2, p0));
+        locks.acquire(t1, p0, Permissions.READ_ONLY);
+        assertTrue(locks.holdsExclusive(t1, p0));
+        locks.acquire(t2, p1, Permissions.READ_WRITE);
+    }
+
+    @Test public void soleSharedHolderUpgrades() throws Exception {
+        locks.acquire(t1, p0, Permissions.READ_ONLY);
+        locks.acquire(t1, p0, Permissions.READ_WRITE);
+        assertTrue(locks.holdsExclusive(t1, p0));
+        assertTimesOut(t2, p0, Permissions.READ_ONLY);
+    }
+
+    @Test public void releaseWakesWaiter() throws Exception {
+        locks.setTimeout(10000);
+        locks.acquire(t1, p0, Permissions.READ_WRITE);
+        final CountDownLatch granted = new CountDownLatch(1);
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    locks.acquire(t2, p0, Permissions.READ_WRITE);
+                    granted.countDown();
+                } catch (Exception e) {
+                    error.set(e);
+                }
+            }
+        };
+        waiter.start();
+        assertFalse(granted.await(100, TimeUnit.MILLISECONDS));
+        locks.releaseAll(t1);
+        assertTrue(granted.await(5, TimeUnit.SECONDS));
+        waiter.join();
+        assertEquals(null, error.get());
+        assertTrue(locks.holdsExclusive(t2, p0));
+    }
+
+    @Test public void lockedPagesArePerTransaction() throws Exception {
+        locks.acquire(t1, p0, Permissions.READ_ONLY);
+        locks.acquire(t1, p1, Permissions.READ_WRITE);
+        locks.acquire(t2, p0, Permissions.READ_ONLY);
+        assertEquals(new HashSet<PageId>(Arrays.asList(p0, p1)), locks.getLockedPages(t1));
+
+        locks.release(t1, p0);
+        assertFalse(locks.holdsLock(t1, p0));
+        assertEquals(new HashSet<PageId>(Arrays.asList(p1)), locks.getLockedPages(t1));
+
+        locks.releaseAll(t1);
+        assertTrue(locks.getLockedPages(t1).isEmpty());
+        assertFalse(locks.holdsLock(t1, p1));
+        assertTrue(locks.holdsLock(t2, p0));
+        locks.acquire(t2, p1, Permissions.READ_WRITE);
+    }
+
+    /** Starts a thread that requests pid for tid and aborts tid if that fails. */
+    private Thread request(final TransactionId tid, final PageId pid, final Permissions perm,
+            final CountDownLatch granted, final AtomicReference<Exception> error) {
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    locks.acquire(tid, pid, perm);
+                    granted.countDown();
+                } catch (TransactionAbortedException e) {
+                    error.set(e);
+                    locks.releaseAll(tid);
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    /** The request that closes a cycle fails at once if it is the youngest. */
+    @Test public void deadlockAbortsYoungestRequester() throws Exception {
+        locks.setTimeout(0);
+        locks.acquire(t1, p0, Permissions.READ_WRITE);
+        locks.acquire(t2, p1, Permissions.READ_WRITE);
+        CountDownLatch granted = new CountDownLatch(1);
+        AtomicReference<Exception> error = new AtomicReference<Exception>();
+        Thread older = request(t1, p1, Permissions.READ_WRITE, granted, error);
+        assertFalse(granted.await(100, TimeUnit.MILLISECONDS));
+
+        long start = System.currentTimeMillis();
+        try {
+            locks.acquire(t2, p0, Permissions.READ_ONLY);
+            fail("expected a deadlock");
+        } catch (TransactionAbortedException expected) {
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        locks.releaseAll(t2);
+        assertTrue(granted.await(5, TimeUnit.SECONDS));
+        older.join();
+        assertEquals(null, error.get());
+    }
+
+    /** A younger transaction already waiting on the cycle is woken and fails. */
+    @Test public void deadlockAbortsYoungestWaiter() throws Exception {
+        locks.setTimeout(0);
+        locks.acquire(t1, p0, Permissions.READ_ONLY);
+        locks.acquire(t2, p0, Permissions.READ_ONLY);
+        CountDownLatch youngerGranted = new CountDownLatch(1);
+        AtomicReference<Exception> youngerError = new AtomicReference<Exception>();
+        Thread younger = request(t2, p0, Permissions.READ_WRITE, youngerGranted, youngerError);
+        assertFalse(youngerGranted.await(100, TimeUnit.MILLISECONDS));
+
+        // both upgrade: t1 closes the cycle, and t2 is the victim
+        locks.acquire(t1, p0, Permissions.READ_WRITE);
+        younger.join(5000);
+        assertTrue(youngerError.get() instanceof TransactionAbortedException);
+        assertTrue(locks.holdsExclusive(t1, p0));
+        assertFalse(locks.holdsLock(t2, p0));
+    }
+
+    @Test public void modesJoinAndConflict() {
+        assertEquals(LockMode.SIX, LockMode.S.join(LockMode.IX));
+        assertEquals(LockMode.X, LockMode.IX.join(LockMode.X));
+        assertEquals(LockMode.S, LockMode.IS.join(LockMode.S));
+        assertTrue(LockMode.IS.isCompatibleWith(LockMode.SIX));
+        assertFalse(LockMode.IX.isCompatibleWith(LockMode.S));
+        assertTrue(LockMode.IX.isCompatibleWith(LockMode.IX));
+        assertFalse(LockMode.SIX.isCompatibleWith(LockMode.SIX));
+    }
+
+    /** Page locks take intention locks on their table. */
+    @Test public void pageLocksTakeTableIntentions() throws Exception {
+        locks.acquire(t1, p0, Permissions.READ_ONLY);
+        assertEquals(LockMode.IS, locks.getLockMode(t1, 1));
+        assertEquals(LockMode.S, locks.getLockMode(t1, p0));
+        locks.acquire(t1, p1, Permissions.READ_WRITE);
+        assertEquals(LockMode.IX, locks.getLockMode(t1, 1));
+
+        // a table lock conflicts with the intention under it
+        try {
+            locks.acquireTable(t2, 1, Permissions.READ_ONLY);
+            fail("expected S on the table to time out");
+        } catch (TransactionAbortedException expected) {
+        }
+        locks.acquire(t2, p0, Permissions.READ_ONLY);
+        locks.acquire(t2, new HeapPageId(2, 0), Permissions.READ_WRITE);
+    }
+
+    /** A table lock covers the pages below it, and S then IX give SIX. */
+    @Test public void tableLockCoversPages() throws Exception {
+        locks.acquireTable(t1, 1, Permissions.READ_ONLY);
+        locks.acquire(t1, p0, Permissions.READ_ONLY);
+        assertEquals(null, locks.getLockMode(t1, p0));
+        assertTrue(locks.holdsLock(t1, p0));
+        assertEquals(new HashSet<PageId>(Arrays.asList(p0)), locks.getLockedPages(t1));
+
+        locks.acquire(t1, p1, Permissions.READ_WRITE);
+        assertEquals(LockMode.SIX, locks.getLockMode(t1, 1));
+        assertTrue(locks.holdsExclusive(t1, p1));
+        assertFalse(locks.holdsExclusive(t1, p0));
+        locks.acquire(t2, p0, Permissions.READ_ONLY);
+        assertTimesOut(t2, p0, Permissions.READ_WRITE);
+    }
+
+    /** Enough page locks in one table are traded for a lock on the table. */
+    @Test public void pageLocksEscalate() throws Exception {
+        locks.setEscalationThreshold(4);
+        for (int i = 0; i < 3; i++) {
+            locks.acquire(t1, new HeapPageId(1, i), Permissions.READ_ONLY);
+        }
+        assertEquals(LockMode.IS, locks.getLockMode(t1, 1));
+        locks.acquire(t1, new HeapPageId(1, 3), Permissions.READ_WRITE);
+        assertEquals(LockMode.X, locks.getLockMode(t1, 1));
+        assertEquals(null, locks.getLockMode(t1, p0));
+        assertTrue(locks.holdsExclusive(t1, p1));
+        assertEquals(4, locks.getLockedPages(t1).size());
+        assertTimesOut(t2, new HeapPageId(1, 9), Permissions.READ_ONLY);
+
+        // escalation does not wait for other transactions' locks
+        locks.acquire(t2, new HeapPageId(2, 0), Permissions.READ_WRITE);
+        for (int i = 0; i < 4; i++) {
+            locks.acquire(t1, new HeapPageId(2, i + 1), Permissions.READ_ONLY);
+        }
+        assertEquals(LockMode.IS, locks.getLockMode(t1, 2));
+        assertEquals(LockMode.S, locks.getLockMode(t1, new HeapPageId(2, 1)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,103 @@
+package simpledb.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PinTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 4;
+
+    private HeapFile file;
+    private BufferPoolManager bp;
+
+    @Before public void createFile() throws Exception {
+        file = SystemTestUtil.createRandomHeapFile(2, 20 * 504, null, null);
+        bp = Database.resetBufferPool(POOL_PAGES);
+    }
+
+    private HeapPageId pid(int p) {
+        return new HeapPageId(file.getId(), p);
+    }
+
+    /** Pinned pages stay resident however many other pages are read. */
+    @Test public void pinnedPagesAreNotEvicted() throws Exception {
+        Page p0 = bp.pinPage(null, pid(0), Permissions.READ_ONLY);
+        Page p1 = bp.pinPage(null, pid(1), Permissions.READ_ONLY);
+        bp.pinPage(null, pid(1), Permissions.READ_ONLY);
+        assertEquals(2, bp.getPinCount(pid(1)));
+        for (int p = 2; p < 20; p++) {
+            bp.getPage(null, pid(p), Permissions.READ_ONLY);
+        }
+        assertSame(p0, bp.getPage(null, pid(0), Permissions.READ_ONLY));
+        assertSame(p1, bp.getPage(null, pid(1), Permissions.READ_ONLY));
+
+        bp.unpinPage(pid(0));
+        bp.unpinPage(pid(1));
+        assertEquals(0, bp.getPinCount(pid(0)));
+        assertEquals(1, bp.getPinCount(pid(1)));
+        for (int p = 2; p < 20; p++) {
+            bp.getPage(null, pid(p), Permissions.READ_ONLY);
+        }
+        assertEquals(0, bp.getPinCount(pid(0)));
+        assertSame(p1, bp.getPage(null, pid(1), Permissions.READ_ONLY));
+    }
+
+    /** A miss fails rather than evicting when every frame is pinned. */
+    @Test public void allPinned() throws Exception {
+        for (int p = 0; p < POOL_PAGES; p++) {
+            bp.pinPage(null, pid(p), Permissions.READ_ONLY);
+        }
+        try {
+            bp.getPage(null, pid(POOL_PAGES), Permissions.READ_ONLY);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.unpinPage(pid(2));
+        bp.getPage(null, pid(POOL_PAGES), Permissions.READ_ONLY);
+        assertEquals(0, bp.getPinCount(pid(2)));
+    }
+
+    /** A heap file iterator pins exactly the page it is reading. */
+    @Test public void iteratorPinsCurrentPage() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        it.next();
+        assertEquals(1, bp.getPinCount(pid(0)));
+        for (int i = 1; i < 504; i++) {
+            it.next();
+        }
+        assertEquals(1, bp.getPinCount(pid(0)));
+        it.next();
+        assertEquals(0, bp.getPinCount(pid(0)));
+        assertEquals(1, bp.getPinCount(pid(1)));
+        it.close();
+        assertEquals(0, bp.getPinCount(pid(1)));
+    }
+
+    /** Discarding a pinned page drops its pins with it. */
+    @Test public void discardDropsPins() throws Exception {
+        bp.pinPage(null, pid(0), Permissions.READ_ONLY);
+        bp.discardPage(pid(0));
+        assertEquals(0, bp.getPinCount(pid(0)));
+        bp.unpinPage(pid(0));
+        bp.getPage(null, pid(0), Permissions.READ_ONLY);
+        assertEquals(0, bp.getPinCount(pid(0)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PinTest.class);
+    }
+}
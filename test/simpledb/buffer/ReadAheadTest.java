@@ -0,0 +1,107 @@
+package simpledb.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.HeapPageId;
+import simpledb.PageId;
+
+public class ReadAheadTest {
+
+    /** Records read-ahead requests instead of reading anything. */
+    static class RecordingPool extends BufferPoolManager {
+        final List<Integer> prefetched = new ArrayList<Integer>();
+        final List<Integer> cancelled = new ArrayList<Integer>();
+
+        RecordingPool() {
+            super(64);
+        }
+
+        @Override
+        public void prefetchPage(PageId pid) {
+            prefetched.add(pid.getPageNumber());
+        }
+
+        @Override
+        public void cancelPrefetch(PageId pid) {
+            cancelled.add(pid.getPageNumber());
+        }
+    }
+
+    private RecordingPool pool;
+    private ReadAhead readAhead;
+
+    @Before public void setUp() {
+        pool = new RecordingPool();
+        readAhead = new ReadAhead(pool, n -> new HeapPageId(1, n), () -> 100);
+    }
+
+    private static List<Integer> range(int from, int to) {
+        List<Integer> r = new ArrayList<Integer>();
+        for (int i = from; i < to; i++) {
+            r.add(i);
+        }
+        return r;
+    }
+
+    /**
+     * A scan from page 0 is read ahead at once, and each time the reader
+     * reaches the previous window the next, larger, window is issued.
+     */
+    @Test public void windowGrows() {
+        readAhead.access(0);
+        assertEquals(range(1, 1 + ReadAhead.INITIAL_WINDOW), pool.prefetched);
+        readAhead.access(1);
+        assertEquals(range(1, 13), pool.prefetched);
+        for (int p = 2; p < 5; p++) {
+            readAhead.access(p);
+        }
+        assertEquals(range(1, 13), pool.prefetched);
+        readAhead.access(5);
+        assertEquals(range(1, 29), pool.prefetched);
+    }
+
+    /** Windows never exceed MAX_WINDOW nor go past the end of the file. */
+    @Test public void windowIsBounded() {
+        for (int p = 0; p < 100; p++) {
+            readAhead.access(p);
+            int ahead = pool.prefetched.size() - p;
+            assertTrue(ahead <= 2 * ReadAhead.MAX_WINDOW);
+        }
+        assertEquals(range(1, 100), pool.prefetched);
+    }
+
+    /** Random access reads nothing ahead and cancels what is outstanding. */
+    @Test public void randomAccessStopsReadAhead() {
+        readAhead.access(0);
+        readAhead.access(50);
+        assertEquals(range(1, 5), pool.cancelled);
+        readAhead.access(20);
+        readAhead.access(70);
+        assertEquals(range(1, 5), pool.prefetched);
+        // a new sequential run starts read-ahead again
+        readAhead.access(71);
+        assertEquals(range(72, 76), pool.prefetched.subList(4, 8));
+    }
+
+    @Test public void closeCancelsOutstanding() {
+        readAhead.access(0);
+        readAhead.access(1);
+        readAhead.close();
+        assertEquals(range(2, 13), pool.cancelled);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -0,0 +1,138 @@
+package simpledb.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ResizeTest extends SimpleDbTestBase {
+    private static final int TABLE_PAGES = 40;
+
+    private HeapFile file;
+
+    @Before public void createFile() throws Exception {
+        file = SystemTestUtil.createRandomHeapFile(2, TABLE_PAGES * 504, null, null);
+    }
+
+    private HeapPageId pid(int p) {
+        return new HeapPageId(file.getId(), p);
+    }
+
+    private List<Page> load(BufferPoolManager bp, int from, int to) throws Exception {
+        List<Page> loaded = new ArrayList<Page>();
+        for (int p = from; p < to; p++) {
+            loaded.add(bp.getPage(null, pid(p), Permissions.READ_ONLY));
+        }
+        return loaded;
+    }
+
+    /** Growing keeps every cached page and makes room for more. */
+    @Test public void grow() throws Exception {
+        BufferPoolManager bp = Database.resetBufferPool(10);
+        List<Page> first = load(bp, 0, 10);
+        bp.resize(20);
+        assertEquals(20, bp.getNumPages());
+        List<Page> second = load(bp, 10, 20);
+        assertEquals(first, load(bp, 0, 10));
+        assertEquals(second, load(bp, 10, 20));
+    }
+
+    /**
+     * Shrinking keeps pinned and recently used pages and writes the dirty
+     * pages it evicts.
+     */
+    @Test public void shrink() throws Exception {
+        BufferPoolManager bp = Database.resetBufferPool(20);
+        load(bp, 0, 20);
+        Page pinned = bp.pinPage(null, pid(3), Permissions.READ_ONLY);
+        TransactionId tid = new TransactionId();
+        HeapPage dirty = (HeapPage) bp.getPage(tid, pid(0), Permissions.READ_WRITE);
+        dirty.deleteTuple(dirty.iterator().next());
+        dirty.markDirty(true, tid);
+        List<Page> hot = load(bp, 16, 20);
+
+        bp.resize(5);
+        assertEquals(5, bp.getNumPages());
+        assertSame(pinned, bp.getPage(null, pid(3), Permissions.READ_ONLY));
+        assertEquals(hot, load(bp, 16, 20));
+        assertEquals(dirty.getNumEmptySlots(), ((HeapPage) file.readPage(pid(0))).getNumEmptySlots());
+
+        // the smaller pool still works and stays within its size
+        load(bp, 20, 40);
+        assertSame(pinned, bp.getPage(null, pid(3), Permissions.READ_ONLY));
+        assertNotSame(hot.get(0), bp.getPage(null, pid(16), Permissions.READ_ONLY));
+        bp.unpinPage(pid(3));
+    }
+
+    /** A pool cannot shrink below its pinned pages. */
+    @Test public void shrinkBelowPinned() throws Exception {
+        BufferPoolManager bp = Database.resetBufferPool(10);
+        for (int p = 0; p < 6; p++) {
+            bp.pinPage(null, pid(p), Permissions.READ_ONLY);
+        }
+        try {
+            bp.resize(5);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        assertEquals(10, bp.getNumPages());
+        load(bp, 0, 20);
+    }
+
+    /** Readers keep getting the right pages while the pool changes size. */
+    @Test public void resizeUnderLoad() throws Exception {
+        final BufferPoolManager bp = Database.resetBufferPool(16);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final long deadline = System.currentTimeMillis() + 1000;
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final Random r = new Random(t);
+            Thread reader = new Thread() {
+                public void run() {
+                    try {
+                        while (System.currentTimeMillis() < deadline) {
+                            HeapPageId id = pid(r.nextInt(TABLE_PAGES));
+                            assertEquals(id, bp.getPage(null, id, Permissions.READ_ONLY).getId());
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+        int[] sizes = { 4, 32, 8, 24, 12 };
+        for (int i = 0; System.currentTimeMillis() < deadline; i++) {
+            bp.resize(sizes[i % sizes.length]);
+            Thread.sleep(10);
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ResizeTest.class);
+    }
+}
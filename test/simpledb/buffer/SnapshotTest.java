@@ -0,0 +1,120 @@
+package simpledb.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SnapshotTest extends SimpleDbTestBase {
+    private static final int TABLE_PAGES = 3;
+    private static final int ROWS = TABLE_PAGES * 504;
+
+    private HeapFile file;
+    private BufferPoolManager bp;
+    private TransactionId writer;
+    private TransactionId reader;
+
+    @Before public void setUp() throws Exception {
+        file = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        bp = Database.resetBufferPool(2 * TABLE_PAGES);
+        bp.getLockManager().setTimeout(1000);
+        writer = new TransactionId();
+        reader = new TransactionId();
+        bp.beginSnapshot(reader);
+    }
+
+    @After public void tearDown() throws Exception {
+        bp.transactionComplete(reader, true);
+    }
+
+    /** Deletes the first tuple of a page on behalf of tid. */
+    private void deleteFirst(TransactionId tid, int pageNumber) throws Exception {
+        HeapPage page = (HeapPage) bp.getPage(tid, pid(pageNumber), Permissions.READ_WRITE);
+        page.deleteTuple(page.iterator().next());
+        page.markDirty(true, tid);
+    }
+
+    private HeapPageId pid(int pageNumber) {
+        return new HeapPageId(file.getId(), pageNumber);
+    }
+
+    private int emptySlots(TransactionId tid, int pageNumber) throws Exception {
+        return ((HeapPage) bp.getPage(tid, pid(pageNumber), Permissions.READ_ONLY)).getNumEmptySlots();
+    }
+
+    private int count(TransactionId tid) throws Exception {
+        SeqScan scan = new SeqScan(tid, file.getId());
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        return n;
+    }
+
+    /** A snapshot reads past a writer's exclusive lock and sees no uncommitted change. */
+    @Test public void readsWithoutLocks() throws Exception {
+        deleteFirst(writer, 0);
+        assertEquals(ROWS, count(reader));
+        assertEquals(0, emptySlots(reader, 0));
+        assertTrue(bp.getLockManager().getLockedPages(reader).isEmpty());
+        assertEquals(1, emptySlots(writer, 0));
+    }
+
+    /** Commits after a snapshot began are not seen by it, on any page. */
+    @Test public void ignoresLaterCommits() throws Exception {
+        assertEquals(0, emptySlots(reader, 0));
+        deleteFirst(writer, 0);
+        deleteFirst(writer, 2);
+        bp.transactionComplete(writer, true);
+
+        assertEquals(0, emptySlots(reader, 0));
+        assertEquals(0, emptySlots(reader, 2));
+        assertEquals(ROWS, count(reader));
+
+        TransactionId later = new TransactionId();
+        bp.beginSnapshot(later);
+        assertEquals(ROWS - 2, count(later));
+        bp.transactionComplete(later, true);
+        assertEquals(ROWS - 2, count(new TransactionId()));
+    }
+
+    /** A page written before its transaction commits keeps its committed version. */
+    @Test public void stolenPageKeepsCommittedVersion() throws Exception {
+        deleteFirst(writer, 1);
+        bp.flushPages(writer);
+        bp.discardPage(pid(1));
+        assertEquals(0, emptySlots(reader, 1));
+        assertEquals(1, emptySlots(null, 1));
+
+        TransactionId later = new TransactionId();
+        bp.beginSnapshot(later);
+        assertEquals(0, emptySlots(later, 1));
+        bp.transactionComplete(later, true);
+    }
+
+    @Test public void snapshotsCannotWrite() throws Exception {
+        try {
+            bp.getPage(reader, pid(0), Permissions.READ_WRITE);
+            fail("expected a snapshot to be read-only");
+        } catch (DbException expected) {
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotTest.class);
+    }
+}
@@ -0,0 +1,90 @@
+package simpledb.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.systemtest.SystemTestUtil.InstrumentedHeapFile;
+
+public class WarmUpTest extends SimpleDbTestBase {
+    private static final int TABLE_PAGES = 40;
+
+    private InstrumentedHeapFile file;
+
+    @Before public void createFile() throws Exception {
+        file = SystemTestUtil.createInstrumentedHeapFile(TABLE_PAGES, null);
+    }
+
+    private HeapPageId pid(int p) {
+        return new HeapPageId(file.getId(), p);
+    }
+
+    private void load(BufferPoolManager bp, int... pageNumbers) throws Exception {
+        for (int p : pageNumbers) {
+            bp.getPage(null, pid(p), Permissions.READ_ONLY);
+        }
+    }
+
+    @Test public void hotPagesRoundTrip() throws Exception {
+        List<PageId> pids = Arrays.<PageId>asList(pid(7), new BTreePageId(file.getId(), 3,
+                BTreePageId.LEAF), pid(0));
+        File f = File.createTempFile("hotpages", null);
+        f.deleteOnExit();
+        HotPages.write(f, pids);
+        assertEquals(pids, HotPages.read(f));
+    }
+
+    @Test public void hotPagesAreListedHottestFirst() throws Exception {
+        BufferPoolManager bp = Database.resetBufferPool(4, ReplacementPolicy.LRU);
+        load(bp, 0, 1, 2, 3, 1);
+        assertEquals(Arrays.<PageId>asList(pid(1), pid(3), pid(2), pid(0)), bp.getHotPages());
+    }
+
+    /** A smaller pool loads the hottest pages that fit, in file order. */
+    @Test public void warmUpReadsHottestPagesInFileOrder() throws Exception {
+        BufferPoolManager bp = Database.resetBufferPool(20, ReplacementPolicy.LRU);
+        for (int p = 0; p < 20; p++) {
+            load(bp, p);
+        }
+        load(bp, 12, 4, 9);
+        List<PageId> hot = bp.getHotPages();
+
+        bp = Database.resetBufferPool(5);
+        assertEquals(5, (int) bp.warmUp(hot).get());
+        assertEquals(Arrays.asList(4, 9, 12, 18, 19), file.backgroundReads);
+        List<PageId> resident = bp.getHotPages();
+        Collections.sort(resident, (a, b) -> a.getPageNumber() - b.getPageNumber());
+        assertEquals(Arrays.<PageId>asList(pid(4), pid(9), pid(12), pid(18), pid(19)), resident);
+    }
+
+    /** Warm-up fills free frames only and skips pages that are resident. */
+    @Test public void warmUpNeverEvicts() throws Exception {
+        BufferPoolManager bp = Database.resetBufferPool(3);
+        load(bp, 30, 31);
+        Page p30 = bp.getPage(null, pid(30), Permissions.READ_ONLY);
+        Page p31 = bp.getPage(null, pid(31), Permissions.READ_ONLY);
+        List<PageId> hot = Arrays.<PageId>asList(pid(31), pid(2), pid(1));
+        assertEquals(1, (int) bp.warmUp(hot).get());
+        assertEquals(Arrays.asList(1), file.backgroundReads);
+        assertSame(p30, bp.getPage(null, pid(30), Permissions.READ_ONLY));
+        assertSame(p31, bp.getPage(null, pid(31), Permissions.READ_ONLY));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(WarmUpTest.class);
+    }
+}
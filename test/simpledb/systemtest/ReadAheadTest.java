@@ -0,0 +1,42 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Scans tables with sequential read-ahead enabled, checking that the scan
+ * sees the right data and that its pages are read by the background thread.
+ */
+public class ReadAheadTest extends SimpleDbTestBase {
+    private void scan(int pages, int poolPages) throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        SystemTestUtil.InstrumentedHeapFile table =
+                SystemTestUtil.createInstrumentedHeapFile(pages, tuples);
+        Database.resetBufferPool(poolPages);
+
+        SystemTestUtil.matchTuples(table, tuples);
+        // every page is read exactly once, almost all of them ahead of the scan
+        assertEquals(pages, table.reads.get());
+        assertTrue("pages read ahead: " + table.backgroundReads.size(),
+                table.backgroundReads.size() >= pages / 2);
+    }
+
+    @Test public void scanFitsInPool() throws Exception {
+        scan(40, 100);
+    }
+
+    @Test public void scanThroughRing() throws Exception {
+        scan(200, 50);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -0,0 +1,104 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.buffer.BufferAccessStrategy;
+import simpledb.buffer.BufferPoolManager;
+import simpledb.buffer.ReplacementPolicy;
+
+/**
+ * Runs an OLTP-like workload that repeatedly reads a small set of hot pages
+ * while full scans of a table four times the size of the buffer pool run in
+ * between, and measures how many of the hot page reads hit the buffer pool.
+ * The replacement policies are compared with the scan reading every page
+ * through the shared pool; SeqScan itself reads through a ring of frames.
+ */
+public class ScanResistanceTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 50;
+    private static final int HOT_PAGES = 10;
+    private static final int SCAN_PAGES = 200;
+    private static final int ROUNDS = 5;
+
+    /**
+     * @param seqScan true to scan the big table with a SeqScan, false to read
+     *   each of its pages with a plain getPage()
+     * @return the fraction of hot page reads after the first round that hit
+     */
+    private double hotHitRatio(ReplacementPolicy policy, boolean seqScan) throws Exception {
+        // reads counts the pages read from disk, i.e. buffer pool misses
+        SystemTestUtil.InstrumentedHeapFile hot =
+                SystemTestUtil.createInstrumentedHeapFile(HOT_PAGES, null);
+        SystemTestUtil.InstrumentedHeapFile big =
+                SystemTestUtil.createInstrumentedHeapFile(SCAN_PAGES, null);
+        assertEquals(SCAN_PAGES, big.numPages());
+        BufferPoolManager bp = Database.resetBufferPool(POOL_PAGES, policy);
+        TransactionId tid = new TransactionId();
+
+        int lookups = 0;
+        int readsBefore = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            if (round == 1) {
+                readsBefore = hot.reads.get();
+            }
+            // point lookups: every hot page is read a few times
+            for (int rep = 0; rep < 3; rep++) {
+                for (int p = 0; p < HOT_PAGES; p++) {
+                    bp.getPage(tid, new HeapPageId(hot.getId(), p), Permissions.READ_ONLY);
+                    if (round > 0) lookups++;
+                }
+            }
+            // report: a full scan of the big table
+            if (seqScan) {
+                SeqScan scan = new SeqScan(tid, big.getId(), "");
+                scan.open();
+                while (scan.hasNext()) {
+                    scan.next();
+                }
+                scan.close();
+            } else {
+                for (int p = 0; p < SCAN_PAGES; p++) {
+                    bp.getPage(tid, new HeapPageId(big.getId(), p), Permissions.READ_ONLY);
+                }
+            }
+        }
+        int misses = hot.reads.get() - readsBefore;
+        return 1.0 - (double) misses / lookups;
+    }
+
+    @Test public void lruKRetainsHotPages() throws Exception {
+        double lru = hotHitRatio(ReplacementPolicy.LRU, false);
+        double lruK = hotHitRatio(ReplacementPolicy.LRU_K, false);
+        System.out.println("hot page hit ratio: LRU " + lru + ", LRU-2 " + lruK);
+        assertTrue("LRU-2 hit ratio " + lruK, lruK > 0.99);
+        assertTrue(lruK > lru);
+    }
+
+    @Test public void clockProRetainsHotPages() throws Exception {
+        double clockPro = hotHitRatio(ReplacementPolicy.CLOCK_PRO, false);
+        System.out.println("hot page hit ratio: CLOCK-Pro " + clockPro);
+        assertTrue("CLOCK-Pro hit ratio " + clockPro, clockPro > 0.9);
+    }
+
+    @Test public void seqScanRingRetainsHotPages() throws Exception {
+        double ring = hotHitRatio(ReplacementPolicy.LRU, true);
+        System.out.println("hot page hit ratio: LRU with scan ring " + ring);
+        assertTrue("scan ring hit ratio " + ring, ring > 0.99);
+    }
+
+    @Test public void smallScansAreCached() throws Exception {
+        BufferPoolManager bp = Database.resetBufferPool(POOL_PAGES, ReplacementPolicy.LRU);
+        assertNull(bp.getScanStrategy(POOL_PAGES));
+        BufferAccessStrategy strategy = bp.getScanStrategy(SCAN_PAGES);
+        assertEquals(POOL_PAGES / 8, strategy.size());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ScanResistanceTest.class);
+    }
+}
@@ -2,11 +2,14 @@ package simpledb.systemtest;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Assert;
 
@@ -86,6 +89,75 @@ public class SystemTestUtil {
         return temp;
     }
 
+    /**
+     * A HeapFile that counts the pages read from disk and records the
+     * writes made to it, for tests of the buffer pool's I/O.  Pages may be
+     * read and written from several threads at once.  Writes hold the
+     * file's monitor, so a test can hold them back by synchronizing on it.
+     */
+    public static class InstrumentedHeapFile extends HeapFile {
+        /** The number of pages read from disk. */
+        public final AtomicInteger reads = new AtomicInteger();
+        /** The page numbers read by the background I/O thread, in order. */
+        public final List<Integer> backgroundReads =
+                Collections.synchronizedList(new ArrayList<Integer>());
+        /** The number of pages written one at a time. */
+        public final AtomicInteger singleWrites = new AtomicInteger();
+        /** The page numbers of every batch written, in order. */
+        public final List<List<Integer>> batches =
+                Collections.synchronizedList(new ArrayList<List<Integer>>());
+        /** The number of writes each batch took. */
+        public final List<Integer> batchWrites =
+                Collections.synchronizedList(new ArrayList<Integer>());
+
+        public InstrumentedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public void readPageData(PageId pid, ByteBuffer frame) throws IOException {
+            reads.incrementAndGet();
+            if (Thread.currentThread().getName().equals("simpledb-prefetch")) {
+                backgroundReads.add(pid.getPageNumber());
+            }
+            super.readPageData(pid, frame);
+        }
+
+        @Override
+        public synchronized void writePage(Page page) throws IOException {
+            singleWrites.incrementAndGet();
+            super.writePage(page);
+        }
+
+        @Override
+        public synchronized int writePages(List<Page> pages) throws IOException {
+            List<Integer> batch = new ArrayList<Integer>();
+            for (Page p : pages) {
+                batch.add(p.getId().getPageNumber());
+            }
+            batches.add(batch);
+            int writes = super.writePages(pages);
+            batchWrites.add(writes);
+            return writes;
+        }
+    }
+
+    /**
+     * Creates a table of two random int columns that fills the given number
+     * of pages, and adds it to the catalog.
+     *
+     * @param tuples if not null, filled with the generated tuples
+     */
+    public static InstrumentedHeapFile createInstrumentedHeapFile(int pages,
+            ArrayList<ArrayList<Integer>> tuples) throws IOException {
+        TupleDesc td = Utility.getTupleDesc(2);
+        File f = createRandomHeapFileUnopened(2, pages * HeapPage.getNumTuples(td),
+                MAX_RAND_VALUE, null, tuples);
+        InstrumentedHeapFile hf = new InstrumentedHeapFile(f, td);
+        Database.getCatalog().addTable(hf, getUUID());
+        return hf;
+    }
+
     public static ArrayList<Integer> tupleToList(Tuple tuple) {
         ArrayList<Integer> list = new ArrayList<Integer>();
         for (int i = 0; i < tuple.getTupleDesc().numFields(); ++i) {